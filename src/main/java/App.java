@@ -599,6 +599,7 @@ public class App {
 				Textures.ground
 		);
 		quadtree.setSeedPoint(new Vector2f(camera.getPosition().x, camera.getPosition().z));
+		quadtree.setProjection(projection);
 
 		TreePool.getTreePool();
 		List<Tree.Reference> trees = (new EcosystemSimulation(quadtree)).simulate(parameters.ecosystemSimulation.numIterations);
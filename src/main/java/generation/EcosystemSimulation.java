@@ -21,42 +21,70 @@
 
 package generation;
 
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.DoubleSummaryStatistics;
 import java.util.List;
-import java.util.Objects;
 import java.util.Random;
-import java.util.function.Function;
-import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static utils.MathsUtils.circlesColliding;
 import static utils.MathsUtils.cylindersColliding;
 
-import org.apache.commons.math3.util.Pair;
+import lombok.AllArgsConstructor;
 import org.joml.Matrix4f;
-import org.joml.Vector2f;
 import org.joml.Vector3f;
 import params.ParameterLoader;
 import params.Parameters;
+import params.RandomStreams;
 import sceneobjects.Tree;
 
 public class EcosystemSimulation {
 	private static final Parameters parameters = ParameterLoader.getParameters();
 	private static final float GROUND_WIDTH = parameters.terrain.width;
-	private static final float DEFAULT_TREE_DENSITY = 0.02f;
+	static final float DEFAULT_TREE_DENSITY = 0.02f;
 	private static final int MAX_COUNT = 5000;
+	// Number of plants to seed in each task, as most plants produce no seedlings
+	private static final int SEEDING_CHUNK_SIZE = 1024;
+	// "FGES" in the byte order the file was written in, so files from a machine with another byte order are ignored
+	private static final int MAGIC = 0x46474553;
+	// Increment when the format of saved simulations changes
+	private static final int VERSION = 1;
 
 	private final TerrainQuadtree quadtree;
 
-	private List<Plant> plants = new ArrayList<>();
-	private List<Float> coveredAreaByType = new ArrayList<>();
+	private final List<Species> species = new ArrayList<>();
+	private final Plants plants = new Plants();
+	// Seed of the ecosystem's random stream, which every random number after the initial scattering is split from
+	private long seed = parameters.random.streams.getSeed(RandomStreams.Subsystem.ECOSYSTEM);
+	private int completedIterations = 0;
 
+	/**
+	 * Scatters new plants, or continues the saved simulation if a resume file is set
+	 */
 	public EcosystemSimulation(TerrainQuadtree quadtree) {
 		this.quadtree = quadtree;
-		init();
-		calculateCoveredArea();
+		TreePool treePool = TreePool.getTreePool();
+		for (int type = 0; type < parameters.sceneObjects.trees.size(); type++) {
+			species.add(new Species(parameters.sceneObjects.trees.get(type),
+					treePool.getMinimumMask(type), treePool.getMaximumMask(type)));
+		}
+		String resumeFile = parameters.ecosystemSimulation.resumeFile;
+		if (resumeFile.isEmpty() || !load(Paths.get(resumeFile))) {
+			init();
+		}
 	}
 
 	/**
@@ -64,25 +92,24 @@ public class EcosystemSimulation {
 	 */
 	private void init() {
 		System.out.println("Simulating ecosystem");
-		Random r = parameters.random.generator;
+		Random r = parameters.random.streams.get(RandomStreams.Subsystem.ECOSYSTEM, -1);
 		int numTypes = parameters.sceneObjects.trees.size();
 
-		int indexCount = 0;
 		List<List<Integer>> indicesByType = new ArrayList<>();
 		for (int type = 0; type < numTypes; type++) {
 			Parameters.SceneObjects.Tree params = parameters.sceneObjects.trees.get(type);
 			int numTrees = (int) (GROUND_WIDTH * GROUND_WIDTH * DEFAULT_TREE_DENSITY * params.density / numTypes);
+			int indexCount = plants.count;
 			indicesByType.add(IntStream.range(indexCount, indexCount + numTrees).boxed().collect(Collectors.toList()));
 			for (int i = 0; i < numTrees; i++) {
-				plants.add(new Plant(type, r.nextInt(params.maxAge)));
+				// Plants are positioned below
+				plants.add(plants.count, type, r.nextInt(params.maxAge), 0, 0);
 			}
-			indexCount += numTrees;
-			coveredAreaByType.add(0f);
 		}
 
 		indicesByType = indicesByType.stream()
 				.map(is -> is.stream()
-						.sorted(Comparator.comparingDouble(i -> plants.get((int) i).getCanopyXZRadius()).reversed())
+						.sorted(Comparator.comparingDouble(i -> plants.canopyXZRadius[(int) i]).reversed())
 						.collect(Collectors.toList()))
 				.collect(Collectors.toList());
 
@@ -99,340 +126,633 @@ public class EcosystemSimulation {
 		}
 
 		// Greedy approach
-		for (Integer i : sortedIndices) {
-			Plant plant = plants.get(i);
+		SpatialGrid grid = new SpatialGrid(GROUND_WIDTH, 2 * getMaxInteractionRadius());
+		boolean[] unplaced = new boolean[numPlants];
+		for (int i : sortedIndices) {
 			int count = 0;
 			do {
-				float x = (r.nextFloat() - 0.5f) * GROUND_WIDTH;
-				float z = (r.nextFloat() - 0.5f) * GROUND_WIDTH;
-				plant.position = new Vector2f(x, z);
+				plants.x[i] = (r.nextFloat() - 0.5f) * GROUND_WIDTH;
+				plants.z[i] = (r.nextFloat() - 0.5f) * GROUND_WIDTH;
 				count += 1;
-			} while (collidingCanopies(i) && count < MAX_COUNT);
+			} while (collidingCanopies(grid, i) && count < MAX_COUNT);
 			if (count == MAX_COUNT) {
 				count = 0;
 				do {
-					float x = (r.nextFloat() - 0.5f) * GROUND_WIDTH;
-					float z = (r.nextFloat() - 0.5f) * GROUND_WIDTH;
-					plant.position = new Vector2f(x, z);
+					plants.x[i] = (r.nextFloat() - 0.5f) * GROUND_WIDTH;
+					plants.z[i] = (r.nextFloat() - 0.5f) * GROUND_WIDTH;
 					count += 1;
-				} while (collidingTrunks(i) && count < MAX_COUNT);
+				} while (collidingTrunks(grid, i) && count < MAX_COUNT);
 				if (count == MAX_COUNT) {
-					plants.set(i, null);
-					System.out.println("Unable to place tree " + parameters.sceneObjects.trees.get(plant.type) +
+					unplaced[i] = true;
+					System.out.println("Unable to place tree " + parameters.sceneObjects.trees.get(plants.type[i]) +
 							" : Maximum number of attempts reached. Consider reducing density or scale parameters.");
+					continue;
 				}
 			}
+			grid.add(i, plants.x[i], plants.z[i]);
 		}
 
-		plants = plants.stream().filter(Objects::nonNull).collect(Collectors.toList());
-		System.out.println("Initial plant count: " + plants.size());
+		plants.remove(unplaced);
+		System.out.println("Initial plant count: " + plants.count);
 	}
 
 	public List<Tree.Reference> simulate(int numIterations) {
 
 		int stepsPerYear = parameters.ecosystemSimulation.yearLength;
-		for (int i = 0; i < numIterations; i++) {
-			if (i % stepsPerYear == 0 && i > 0) {
-				List<Plant> newSeeds = new ArrayList<>();
-				for (Plant plant : plants) {
-					newSeeds.addAll(plant.seed());
-				}
-				plants.addAll(newSeeds);
-			}
-			calculateCoveredArea();
-			removeColliding();
-			// preventing deaths seems to prevent holes in the distribution from large plants dying
-			plants = plants.stream().filter(Predicate.not(Plant::isDead)).collect(Collectors.toList());
-			plants.forEach(Plant::grow);
+		String checkpointFile = parameters.ecosystemSimulation.checkpointFile;
+		int checkpointYears = parameters.ecosystemSimulation.checkpointYears;
+		while (completedIterations < numIterations) {
+			int i = completedIterations;
+			step(i);
+			completedIterations += 1;
 			if (i % stepsPerYear == 0) {
 				System.out.printf("Ecosystem simulated: %.2f%% %n", (float) i * 100 / numIterations);
 			}
+			if (!checkpointFile.isEmpty() && checkpointYears > 0 &&
+					completedIterations % (stepsPerYear * checkpointYears) == 0) {
+				save(Paths.get(checkpointFile));
+			}
+		}
+		if (!checkpointFile.isEmpty()) {
+			save(Paths.get(checkpointFile));
 		}
 
-		System.out.println("Generating tree models for " + plants.size() + " plants");
-		List<Tree.Reference> trees = plants.stream().map(Plant::toReference).collect(Collectors.toList());
+		System.out.println("Generating tree models for " + plants.count + " plants");
+		List<Tree.Reference> trees = IntStream.range(0, plants.count)
+				.mapToObj(this::toReference)
+				.collect(Collectors.toList());
+		// The trees are generated concurrently as they are requested, then uploaded here
+		TreePool.getTreePool().finishGeneration();
 		TreePool.getTreePool().printGenerationStatistics();
 		return trees;
 	}
 
-	private void printAreas() {
+	/**
+	 * Performs one iteration of the simulation, where every year length iterations the plants seed
+	 */
+	void step(int iteration) {
+		int stepsPerYear = parameters.ecosystemSimulation.yearLength;
+		if (iteration % stepsPerYear == 0 && iteration > 0) {
+			// Seedlings are added after the existing plants in the order of their parents
+			int numParents = plants.count;
+			int numChunks = (numParents + SEEDING_CHUNK_SIZE - 1) / SEEDING_CHUNK_SIZE;
+			List<Plants> seedlings = getRange(numChunks)
+					.mapToObj(chunk -> {
+						Plants chunkSeedlings = new Plants();
+						int end = Math.min((chunk + 1) * SEEDING_CHUNK_SIZE, numParents);
+						for (int plant = chunk * SEEDING_CHUNK_SIZE; plant < end; plant++) {
+							seed(plant, chunkSeedlings);
+						}
+						return chunkSeedlings;
+					})
+					.collect(Collectors.toList());
+			seedlings.forEach(plants::addAll);
+		}
+		removeColliding(calculatePopulation());
+		// preventing deaths seems to prevent holes in the distribution from large plants dying
+		removeDead();
+		grow();
+	}
+
+	/**
+	 * The indices up to count, which are processed in parallel if enabled. Each index must only write its own state.
+	 */
+	private IntStream getRange(int count) {
+		IntStream range = IntStream.range(0, count);
+		return parameters.ecosystemSimulation.parallel ? range.parallel() : range;
+	}
+
+	int getPlantCount() {
+		return plants.count;
+	}
+
+	int getType(int plant) {
+		return plants.type[plant];
+	}
+
+	int getAge(int plant) {
+		return plants.age[plant];
+	}
+
+	float getCanopyXZRadius(int plant) {
+		return plants.canopyXZRadius[plant];
+	}
+
+	private void printAreas(Population population) {
 		StringBuilder stringBuilder = new StringBuilder("Areas: ");
-		float totalArea = coveredAreaByType.stream().reduce(Float::sum).orElse(0f);
-		for (int type = 0; type < coveredAreaByType.size(); type++) {
+		for (int type = 0; type < population.coveredAreaByType.length; type++) {
 			Parameters.SceneObjects.Tree params = parameters.sceneObjects.trees.get(type);
 			stringBuilder.append(params.name)
 					.append(": ")
-					.append(coveredAreaByType.get(type) / totalArea)
+					.append(population.coveredAreaByType[type] / population.totalCoveredArea)
 					.append(", ");
 		}
 		System.out.println(stringBuilder.toString());
 	}
 
-	private void removeColliding() {
-		Random r = parameters.random.generator;
-		int numPlants = plants.size();
-		List<Pair<Integer, Integer>> collidingPlants = IntStream.range(0, numPlants)
-				.boxed()
-				.flatMap(i1 -> IntStream
-						.range(0, i1)
-						.mapToObj(i2 -> Pair.create(i1, i2)))
-				.filter(pair -> {
-					int i1 = pair.getFirst();
-					int i2 = pair.getSecond();
-					Plant p1 = plants.get(i1);
-					Plant p2 = plants.get(i2);
-					// Only removes those where a canopy is intersecting with a trunk (not just 2 canopies)
-					return collidingTrunks(p1, p2);
-				})
-				.collect(Collectors.toList());
+	private void removeColliding(Population population) {
+		int numPlants = plants.count;
+		SpatialGrid grid = new SpatialGrid(GROUND_WIDTH, 2 * getMaxInteractionRadius());
+		for (int i = 0; i < numPlants; i++) {
+			grid.add(i, plants.x[i], plants.z[i]);
+		}
 
-		List<Integer> removed = new ArrayList<>();
-		for (Pair<Integer, Integer> pair : collidingPlants) {
-			if (removed.contains(pair.getFirst()) || removed.contains(pair.getSecond())) {
+		// Finding the collisions is independent for each plant, but which plants are removed depends on the earlier
+		// removals. Pairs are visited in the same order as testing every pair (i2 < i1), so the same plants are removed.
+		int[][] collisions = new int[numPlants][];
+		getRange(numPlants).forEach(i -> collisions[i] = getEarlierCollisions(grid, i));
+		boolean[] removed = new boolean[numPlants];
+		for (int i1 = 0; i1 < numPlants; i1++) {
+			if (collisions[i1] == null) {
 				continue;
 			}
-			Plant p1 = plants.get(pair.getFirst());
-			Plant p2 = plants.get(pair.getSecond());
-			float viability1 = p1.getViability();
-			float viability2 = p2.getViability();
-			removed.add(viability1 > viability2 ? pair.getSecond() : pair.getFirst());
+			for (int i2 : collisions[i1]) {
+				if (removed[i1]) {
+					break;
+				}
+				if (removed[i2]) {
+					continue;
+				}
+				float viability1 = getViability(i1, population);
+				float viability2 = getViability(i2, population);
+				removed[viability1 > viability2 ? i2 : i1] = true;
+			}
 		}
-		removed = removed.stream().sorted((i1, i2) -> Integer.compare(i2, i1)).collect(Collectors.toList());
-		for (Integer index : removed) {
-			plants.remove((int) index);
+		plants.remove(removed);
+	}
+
+	/**
+	 * The plants before plant[index] whose trunks collide with it in ascending order, or null if there are none
+	 */
+	private int[] getEarlierCollisions(SpatialGrid grid, int index) {
+		int[] near = grid.getNear(plants.x[index], plants.z[index]);
+		int count = 0;
+		for (int i : near) {
+			if (i >= index) {
+				break;
+			}
+			// Only removes those where a canopy is intersecting with a trunk (not just 2 canopies)
+			if (collidingTrunks(index, i)) {
+				near[count++] = i;
+			}
 		}
+		return count > 0 ? Arrays.copyOf(near, count) : null;
+	}
+
+	private void removeDead() {
+		boolean[] dead = new boolean[plants.count];
+		getRange(plants.count).forEach(i -> dead[i] = plants.age[i] >= species.get(plants.type[i]).maxAge);
+		plants.remove(dead);
+	}
+
+	private void grow() {
+		getRange(plants.count).forEach(i -> {
+			plants.age[i] += 1;
+			plants.updateSize(i);
+		});
 	}
 
-	private void calculateCoveredArea() {
-		for (int type = 0; type < coveredAreaByType.size(); type++) {
-			coveredAreaByType.set(type, 0f);
+	private Population calculatePopulation() {
+		float[] coveredAreaByType = new float[species.size()];
+		for (int i = 0; i < plants.count; i++) {
+			float r = plants.canopyXZRadius[i];
+			coveredAreaByType[plants.type[i]] += (float) (Math.PI * r * r);
 		}
-		for (Plant plant : plants) {
-			coveredAreaByType.set(plant.type, coveredAreaByType.get(plant.type) + plant.getCoveredArea());
+		float totalCoveredArea = 0;
+		for (float area : coveredAreaByType) {
+			totalCoveredArea += area;
 		}
+		DoubleSummaryStatistics radii = IntStream.range(0, plants.count)
+				.mapToDouble(i -> plants.canopyXZRadius[i])
+				.summaryStatistics();
+		boolean empty = plants.count == 0;
+		return new Population(coveredAreaByType, totalCoveredArea, (float) radii.getAverage(),
+				empty ? 0 : (float) radii.getMin(), empty ? 0 : (float) radii.getMax());
 	}
 
 	/**
-	 * True if the canopy (cylinder) for plant[index] is intersecting with another canopy (or trunk)
+	 * The largest distance from a plant's position at which its canopy or trunk can collide with another plant
 	 */
-	private boolean collidingCanopies(int index) {
-		Plant p1 = plants.get(index);
-		for (int i = 0; i < plants.size(); i++) {
-			if (i == index) {
-				continue;
-			}
-			Plant p2 = plants.get(i);
-			if (p2 == null || p2.position == null) {
-				continue;
-			}
-			if (collidingCanopies(p1, p2)) {
-				return true;
-			}
+	private float getMaxInteractionRadius() {
+		float maxRadius = 0;
+		for (int i = 0; i < plants.count; i++) {
+			maxRadius = Math.max(maxRadius, Math.max(plants.canopyXZRadius[i], plants.trunkRadius[i]));
 		}
-		return false;
+		return maxRadius;
+	}
+
+	private float getDistanceSquared(int i1, int i2) {
+		float dx = plants.x[i1] - plants.x[i2];
+		float dz = plants.z[i1] - plants.z[i2];
+		return dx * dx + dz * dz;
 	}
 
 	/**
-	 * True if the canopy (cylinder)  for p1 is intersecting with the canopy (or trunk) of p2
+	 * True if the canopy (cylinder) for plant[index] is intersecting with another canopy (or trunk) already in the grid
 	 */
-	private boolean collidingCanopies(Plant p1, Plant p2) {
+	private boolean collidingCanopies(SpatialGrid grid, int index) {
+		return grid.anyNear(plants.x[index], plants.z[index], i -> i != index && collidingCanopies(index, i));
+	}
+
+	/**
+	 * True if the canopy (cylinder)  for plant[i1] is intersecting with the canopy (or trunk) of plant[i2]
+	 */
+	private boolean collidingCanopies(int i1, int i2) {
+		float distanceSquared = getDistanceSquared(i1, i2);
 		// Canopies colliding
-		if (cylindersColliding(p1.position, p1.getCanopyCentreY(), p1.getCanopyXZRadius(), p1.getCanopyYRadius(),
-				p2.position, p2.getCanopyCentreY(), p2.getCanopyXZRadius(), p2.getCanopyYRadius())) {
+		if (cylindersColliding(distanceSquared,
+				plants.canopyCentreY[i1], plants.canopyXZRadius[i1], plants.canopyYRadius[i1],
+				plants.canopyCentreY[i2], plants.canopyXZRadius[i2], plants.canopyYRadius[i2])) {
 			return true;
 		}
 		// p1 canopy and p2 trunk
-		if (cylindersColliding(p1.position, p1.getCanopyCentreY(), p1.getCanopyXZRadius(), p1.getCanopyYRadius(),
-				p2.position, p2.getTrunkCentreY(), p2.getTrunkRadius(), p2.getTrunkCentreY())) {
+		if (cylindersColliding(distanceSquared,
+				plants.canopyCentreY[i1], plants.canopyXZRadius[i1], plants.canopyYRadius[i1],
+				plants.getTrunkCentreY(i2), plants.trunkRadius[i2], plants.getTrunkCentreY(i2))) {
 			return true;
 		}
 		// p1 trunk and p2 canopy
-		return cylindersColliding(p1.position, p1.getTrunkCentreY(), p1.getTrunkRadius(), p1.getTrunkCentreY(),
-				p2.position, p2.getCanopyCentreY(), p2.getCanopyXZRadius(), p2.getCanopyYRadius());
+		return cylindersColliding(distanceSquared,
+				plants.getTrunkCentreY(i1), plants.trunkRadius[i1], plants.getTrunkCentreY(i1),
+				plants.canopyCentreY[i2], plants.canopyXZRadius[i2], plants.canopyYRadius[i2]);
 	}
 
 	/**
-	 * True if the trunk (circle) for plant[index] is intersecting with another canopy or trunk, or vice versa
+	 * True if the trunk (circle) for plant[index] is intersecting with another canopy or trunk already in the grid, or
+	 * vice versa
 	 */
-	private boolean collidingTrunks(int index) {
-		Plant p1 = plants.get(index);
-		for (int i = 0; i < plants.size(); i++) {
-			if (i == index) {
-				continue;
-			}
-			Plant p2 = plants.get(i);
-			if (p2 == null || p2.position == null) {
-				continue;
-			}
-			if (collidingTrunks(p1, p2)) {
-				return true;
-			}
-		}
-		return false;
+	private boolean collidingTrunks(SpatialGrid grid, int index) {
+		return grid.anyNear(plants.x[index], plants.z[index], i -> i != index && collidingTrunks(index, i));
 	}
 
 	/**
-	 * True if the trunk (circle) for p1 is intersecting with the canopy or trunk of p2, or vice versa
+	 * True if the trunk (circle) for plant[i1] is intersecting with the canopy or trunk of plant[i2], or vice versa
 	 */
-	private boolean collidingTrunks(Plant p1, Plant p2) {
+	private boolean collidingTrunks(int i1, int i2) {
+		float distanceSquared = getDistanceSquared(i1, i2);
 		// Both trunks (with slack of 50% leaf radius)
-		if (circlesColliding(p1.position, (p1.getTrunkRadius() + p1.getCanopyXZRadius()) / 2,
-				p2.position, (p2.getTrunkRadius() + p2.getCanopyXZRadius()) / 2)) {
+		if (circlesColliding(distanceSquared, (plants.trunkRadius[i1] + plants.canopyXZRadius[i1]) / 2,
+				(plants.trunkRadius[i2] + plants.canopyXZRadius[i2]) / 2)) {
 			return true;
 		}
 		// p1 canopy and p2 trunk
-		if (cylindersColliding(p1.position, p1.getCanopyCentreY(), p1.getCanopyXZRadius(), p1.getCanopyYRadius(),
-				p2.position, p2.getTrunkCentreY(), p2.getTrunkRadius(), p2.getTrunkCentreY())) {
+		if (cylindersColliding(distanceSquared,
+				plants.canopyCentreY[i1], plants.canopyXZRadius[i1], plants.canopyYRadius[i1],
+				plants.getTrunkCentreY(i2), plants.trunkRadius[i2], plants.getTrunkCentreY(i2))) {
 			return true;
 		}
 		// p1 trunk and p2 canopy
-		return cylindersColliding(p1.position, p1.getTrunkCentreY(), p1.getTrunkRadius(), p1.getTrunkCentreY(),
-				p2.position, p2.getCanopyCentreY(), p2.getCanopyXZRadius(), p2.getCanopyYRadius());
+		return cylindersColliding(distanceSquared,
+				plants.getTrunkCentreY(i1), plants.trunkRadius[i1], plants.getTrunkCentreY(i1),
+				plants.canopyCentreY[i2], plants.canopyXZRadius[i2], plants.canopyYRadius[i2]);
 	}
 
-	private class Plant {
-		private final int maxAge;
-		private final int type;
-		private final Tree.Mask minMask;
-		private final Tree.Mask maxMask;
-		private final float modelScale;
-		private final float minScaleFactor;
-		private final float maxScaleFactor;
-		private final Parameters.SceneObjects.Tree treeParams;
-		private Vector2f position;
-		private int age;
-
-		Plant(int type, int age) {
-			this.type = type;
-			this.age = age;
-
-			TreePool treePool = TreePool.getTreePool();
-			this.minMask = treePool.getMinimumMask(type);
-			this.maxMask = treePool.getMaximumMask(type);
-			this.treeParams = parameters.sceneObjects.trees.get(type);
-			this.maxAge = treeParams.maxAge;
-			this.modelScale = treeParams.scale;
-			this.minScaleFactor = treeParams.minScaleFactor;
-			this.maxScaleFactor = treeParams.maxScaleFactor;
-		}
-
-		private float getCurrentFromMinMax(Function<Tree.Mask, Float> property) {
-			float min = property.apply(minMask) * minScaleFactor;
-			float max = property.apply(maxMask) * maxScaleFactor;
-			return (Math.min((float) age / maxAge, 1) * (max - min) + min) * modelScale;
-		}
-
-		float getCanopyXZRadius() {
-			return getCurrentFromMinMax(Tree.Mask::getCanopyXZRadius);
-		}
-
-		float getCanopyYRadius() {
-			return getCurrentFromMinMax(Tree.Mask::getCanopyYRadius);
-		}
-
-		float getCanopyCentreY() {
-			return getCurrentFromMinMax(m -> m.getCanopyCentre().y);
-		}
-
-		float getTrunkRadius() {
-			return getCurrentFromMinMax(Tree.Mask::getTrunkRadius);
-		}
-
-		public float getTrunkCentreY() {
-			return (getCanopyCentreY() + getCanopyYRadius()) / 2;
-		}
-
-		private float getSeedRadius() {
-			return getCanopyXZRadius() * treeParams.seedRadiusMultiplier;
-		}
-
-		float getViability() {
-			float threshold = parameters.ecosystemSimulation.ageThreshold;
-			float x = Math.min((float) age / maxAge, 1);
-			float plantViability = x < threshold
-					? x / threshold
-					: (1 - x) / (1 - threshold);
-			float totalSum = coveredAreaByType.stream().reduce(Float::sum).orElse(0f);
-			float speciesWeightedViability = (1 - coveredAreaByType.get(type) / totalSum) * plantViability;
-			float avgRadius = (float) plants.stream().mapToDouble(Plant::getCanopyXZRadius).average().orElse(0);
-			float maxRadius = (float) plants.stream().mapToDouble(Plant::getCanopyXZRadius).max().orElse(0);
-			float minRadius = (float) plants.stream().mapToDouble(Plant::getCanopyXZRadius).min().orElse(0);
-			float scaledAvgRadius = (avgRadius - minRadius) / (maxRadius - minRadius);
-			float scaledRadius = (this.getCanopyXZRadius() - minRadius) / (maxRadius - minRadius);
-			float p = parameters.ecosystemSimulation.smallRadiusViability;
-			float m = parameters.ecosystemSimulation.averageRadiusViability;
-			float radiusViability = scaledRadius < scaledAvgRadius
-					? (m - p) / scaledAvgRadius * scaledRadius + p
-					: (1 - m) * (scaledRadius - scaledAvgRadius) / (1 - scaledAvgRadius) + m;
-			float rW = parameters.ecosystemSimulation.radiusWeight;
-			return radiusViability * rW + speciesWeightedViability * (1 - rW);
-		}
-
-		float getCoveredArea() {
-			float r = getCanopyXZRadius();
-			return (float) (Math.PI * r * r);
-		}
-
-		Tree.Reference toReference() {
-			Random r = parameters.random.generator;
-			float x = position.x;
-			float z = position.y;
-			float y = quadtree.getHeight(x, z) + treeParams.yOffset;
-			Matrix4f model = new Matrix4f()
-					.identity()
-					.translate(x, y, z);
-			if (treeParams.pitchVariability > 0) {
-				model = model.rotate(
-						r.nextFloat() * (float) Math.PI * treeParams.pitchVariability,
-						new Vector3f(r.nextFloat(), 0, r.nextFloat()).normalize()
-				);
+	private float getViability(int plant, Population population) {
+		float threshold = parameters.ecosystemSimulation.ageThreshold;
+		float x = Math.min((float) plants.age[plant] / species.get(plants.type[plant]).maxAge, 1);
+		float plantViability = x < threshold
+				? x / threshold
+				: (1 - x) / (1 - threshold);
+		float speciesWeightedViability = (1 - population.coveredAreaByType[plants.type[plant]] /
+				population.totalCoveredArea) * plantViability;
+		float minRadius = population.minRadius;
+		float maxRadius = population.maxRadius;
+		float scaledAvgRadius = (population.averageRadius - minRadius) / (maxRadius - minRadius);
+		float scaledRadius = (plants.canopyXZRadius[plant] - minRadius) / (maxRadius - minRadius);
+		float p = parameters.ecosystemSimulation.smallRadiusViability;
+		float m = parameters.ecosystemSimulation.averageRadiusViability;
+		float radiusViability = scaledRadius < scaledAvgRadius
+				? (m - p) / scaledAvgRadius * scaledRadius + p
+				: (1 - m) * (scaledRadius - scaledAvgRadius) / (1 - scaledAvgRadius) + m;
+		float rW = parameters.ecosystemSimulation.radiusWeight;
+		return radiusViability * rW + speciesWeightedViability * (1 - rW);
+	}
+
+	/**
+	 * Scatters seedlings of plant[parent] around it, appending them to seedlings. The seedlings only depend on the
+	 * parent, so plants can seed in parallel.
+	 */
+	private void seed(int parent, Plants seedlings) {
+		long id = plants.id[parent];
+		int type = plants.type[parent];
+		int age = plants.age[parent];
+		Parameters.SceneObjects.Tree treeParams = species.get(type).params;
+		Random r = new Random(RandomStreams.split(seed, id, age));
+		float trunkRadius2 = plants.trunkRadius[parent] * 2;
+		float seedRadius = plants.canopyXZRadius[parent] * treeParams.seedRadiusMultiplier;
+		float seedArea = (float) (Math.PI * seedRadius * seedRadius - Math.PI * trunkRadius2 * trunkRadius2);
+		int numSeeds = (int) (seedArea * DEFAULT_TREE_DENSITY * treeParams.density);
+		for (int i = 0; i < numSeeds; i++) {
+			float angle = (float) (r.nextFloat() * Math.PI * 2);
+			float distance = r.nextFloat() * (seedRadius - trunkRadius2) + trunkRadius2;
+			float xOffset = distance * (float) Math.cos(angle);
+			float zOffset = distance * (float) Math.sin(angle);
+			float x = plants.x[parent] + xOffset;
+			float z = plants.z[parent] + zOffset;
+			if (Math.abs(x) <= GROUND_WIDTH / 2 && Math.abs(z) <= GROUND_WIDTH / 2) {
+				seedlings.add(RandomStreams.mix(RandomStreams.mix(id, age), i), type, 0, x, z);
 			}
+		}
+	}
 
-			int maxI = treeParams.maxIterations;
-			int minI = treeParams.minIterations;
-			int iterationStep = (int) (Math.min((float) age / maxAge, 1) * ((maxI + 1) - minI));
-			int iterations = iterationStep + minI;
-			float scaleFactor = (Math.min((float) age / maxAge, 1) *
-					((maxI + 1) - minI) - iterationStep) *
-					(maxScaleFactor - minScaleFactor)
-					+ minScaleFactor;
+	private Tree.Reference toReference(int plant) {
+		int type = plants.type[plant];
+		int age = plants.age[plant];
+		Species plantSpecies = species.get(type);
+		Parameters.SceneObjects.Tree treeParams = plantSpecies.params;
+		Random r = new Random(RandomStreams.split(seed, plants.id[plant]));
+		float x = plants.x[plant];
+		float z = plants.z[plant];
+		float y = quadtree.getHeight(x, z) + treeParams.yOffset;
+		Matrix4f model = new Matrix4f()
+				.identity()
+				.translate(x, y, z);
+		if (treeParams.pitchVariability > 0) {
+			model = model.rotate(
+					r.nextFloat() * (float) Math.PI * treeParams.pitchVariability,
+					new Vector3f(r.nextFloat(), 0, r.nextFloat()).normalize()
+			);
+		}
 
-			model = model.rotate(r.nextFloat() * (float) Math.PI * 2, new Vector3f(0, 1, 0))
-					.scale(scaleFactor * modelScale);
+		int maxAge = plantSpecies.maxAge;
+		int maxI = treeParams.maxIterations;
+		int minI = treeParams.minIterations;
+		int iterationStep = (int) (Math.min((float) age / maxAge, 1) * ((maxI + 1) - minI));
+		int iterations = iterationStep + minI;
+		float scaleFactor = (Math.min((float) age / maxAge, 1) *
+				((maxI + 1) - minI) - iterationStep) *
+				(treeParams.maxScaleFactor - treeParams.minScaleFactor)
+				+ treeParams.minScaleFactor;
 
-			TreePool treePool = TreePool.getTreePool();
-			int poolIndex = treePool.getTreeIndexWithIterations(type, iterations);
+		float modelScale = treeParams.scale;
+		model = model.rotate(r.nextFloat() * (float) Math.PI * 2, new Vector3f(0, 1, 0))
+				.scale(scaleFactor * modelScale);
+
+		TreePool treePool = TreePool.getTreePool();
+		int poolIndex = treePool.requestTreeIndexWithIterations(type, iterations, r);
+
+		return new Tree.Reference(type, poolIndex, new Vector3f(x, y, z), model, scaleFactor * modelScale);
+	}
 
-			return new Tree.Reference(type, poolIndex, new Vector3f(x, y, z), model, scaleFactor * modelScale);
+	/**
+	 * Writes the plants and the state of the random stream, which is written to a temporary file and then moved so that
+	 * a partly written save is never loaded. The sizes of the plants are not saved, as they only depend on their ages.
+	 */
+	void save(Path path) {
+		// Magic, version, number of types, completed iterations and number of plants, then the seed
+		int size = 5 * Integer.BYTES + Long.BYTES
+				+ plants.count * (Long.BYTES + 2 * Integer.BYTES + 2 * Float.BYTES);
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(species.size());
+		buffer.putInt(completedIterations);
+		buffer.putInt(plants.count);
+		buffer.putLong(seed);
+		buffer.asLongBuffer().put(plants.id, 0, plants.count);
+		buffer.position(buffer.position() + plants.count * Long.BYTES);
+		buffer.asIntBuffer().put(plants.type, 0, plants.count);
+		buffer.position(buffer.position() + plants.count * Integer.BYTES);
+		buffer.asIntBuffer().put(plants.age, 0, plants.count);
+		buffer.position(buffer.position() + plants.count * Integer.BYTES);
+		buffer.asFloatBuffer().put(plants.x, 0, plants.count);
+		buffer.position(buffer.position() + plants.count * Float.BYTES);
+		buffer.asFloatBuffer().put(plants.z, 0, plants.count);
+		buffer.position(buffer.position() + plants.count * Float.BYTES);
+		buffer.flip();
+
+		try {
+			Path absolute = path.toAbsolutePath();
+			Files.createDirectories(absolute.getParent());
+			Path temporary = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+			Files.move(temporary, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.out.println("Unable to save ecosystem simulation to " + path + ": " + e.getMessage());
 		}
+	}
 
-		public void grow() {
-			this.age += 1;
+	/**
+	 * Replaces the plants and the state of the random stream with those saved, returning false if the file cannot be
+	 * read or was saved with a different number of tree types. Throws if the file is corrupt.
+	 */
+	boolean load(Path path) {
+		ByteBuffer buffer;
+		try {
+			// Read onto the heap rather than mapped, as a mapping keeps the file locked on some platforms
+			buffer = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.nativeOrder());
+		} catch (IOException e) {
+			System.out.println("Unable to resume ecosystem simulation from " + path + ": " + e.getMessage());
+			return false;
 		}
+		try {
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				System.out.println("Unable to resume ecosystem simulation from " + path + ": Unknown format");
+				return false;
+			}
+			if (buffer.getInt() != species.size()) {
+				System.out.println("Unable to resume ecosystem simulation from " + path +
+						": The number of tree types has changed");
+				return false;
+			}
+			int iterations = buffer.getInt();
+			int count = buffer.getInt();
+			long savedSeed = buffer.getLong();
+			int plantSize = Long.BYTES + 2 * Integer.BYTES + 2 * Float.BYTES;
+			if (count < 0 || (long) count * plantSize != buffer.remaining()) {
+				throw new RuntimeException("Corrupt ecosystem simulation " + path + ": " + count +
+						" plants do not fit the remaining " + buffer.remaining() + " bytes");
+			}
+			long[] id = new long[count];
+			int[] type = new int[count];
+			int[] age = new int[count];
+			float[] x = new float[count];
+			float[] z = new float[count];
+			buffer.asLongBuffer().get(id);
+			buffer.position(buffer.position() + count * Long.BYTES);
+			buffer.asIntBuffer().get(type);
+			buffer.position(buffer.position() + count * Integer.BYTES);
+			buffer.asIntBuffer().get(age);
+			buffer.position(buffer.position() + count * Integer.BYTES);
+			buffer.asFloatBuffer().get(x);
+			buffer.position(buffer.position() + count * Float.BYTES);
+			buffer.asFloatBuffer().get(z);
+			for (int i = 0; i < count; i++) {
+				if (type[i] < 0 || type[i] >= species.size()) {
+					throw new RuntimeException("Corrupt ecosystem simulation " + path + ": Plant " + i +
+							" has type " + type[i] + " but there are " + species.size() + " types");
+				}
+			}
 
-		public boolean isDead() {
-			return age >= maxAge;
+			plants.count = 0;
+			for (int i = 0; i < count; i++) {
+				plants.add(id[i], type[i], age[i], x[i], z[i]);
+			}
+			seed = savedSeed;
+			completedIterations = iterations;
+			System.out.println("Resumed ecosystem simulation of " + count + " plants after " + iterations +
+					" iterations");
+			return true;
+		} catch (BufferUnderflowException e) {
+			throw new RuntimeException("Corrupt ecosystem simulation " + path + ": The file is incomplete");
+		}
+	}
+
+	/**
+	 * Totals over all the plants, which the viability of each plant is relative to. These are calculated once per step
+	 * as no plants are added or removed while scoring.
+	 */
+	@AllArgsConstructor
+	private static class Population {
+		private final float[] coveredAreaByType;
+		private final float totalCoveredArea;
+		private final float averageRadius;
+		private final float minRadius;
+		private final float maxRadius;
+	}
+
+	/**
+	 * The sizes of a type of plant at its youngest and oldest, which plants of the type interpolate between as they age
+	 */
+	private static class Species {
+		private final Parameters.SceneObjects.Tree params;
+		private final int maxAge;
+		private final float minCanopyXZRadius;
+		private final float maxCanopyXZRadius;
+		private final float minCanopyYRadius;
+		private final float maxCanopyYRadius;
+		private final float minCanopyCentreY;
+		private final float maxCanopyCentreY;
+		private final float minTrunkRadius;
+		private final float maxTrunkRadius;
+
+		Species(Parameters.SceneObjects.Tree params, Tree.Mask minMask, Tree.Mask maxMask) {
+			this.params = params;
+			this.maxAge = params.maxAge;
+			this.minCanopyXZRadius = minMask.getCanopyXZRadius() * params.minScaleFactor;
+			this.maxCanopyXZRadius = maxMask.getCanopyXZRadius() * params.maxScaleFactor;
+			this.minCanopyYRadius = minMask.getCanopyYRadius() * params.minScaleFactor;
+			this.maxCanopyYRadius = maxMask.getCanopyYRadius() * params.maxScaleFactor;
+			this.minCanopyCentreY = minMask.getCanopyCentre().y * params.minScaleFactor;
+			this.maxCanopyCentreY = maxMask.getCanopyCentre().y * params.maxScaleFactor;
+			this.minTrunkRadius = minMask.getTrunkRadius() * params.minScaleFactor;
+			this.maxTrunkRadius = maxMask.getTrunkRadius() * params.maxScaleFactor;
 		}
 
-		public List<Plant> seed() {
-			Random r = parameters.random.generator;
-			float trunkRadius2 = getTrunkRadius() * 2;
-			float seedRadius = getSeedRadius();
-			float seedArea = (float) (Math.PI * seedRadius * seedRadius - Math.PI * trunkRadius2 * trunkRadius2);
-			int numSeeds = (int) (seedArea * DEFAULT_TREE_DENSITY * treeParams.density);
-			List<Plant> seeds = new ArrayList<>();
-			for (int i = 0; i < numSeeds; i++) {
-				Plant seed = new Plant(type, 0);
-				float angle = (float) (r.nextFloat() * Math.PI * 2);
-				float distance = r.nextFloat() * (seedRadius - trunkRadius2) + trunkRadius2;
-				float xOffset = distance * (float) Math.cos(angle);
-				float zOffset = distance * (float) Math.sin(angle);
-				seed.position = new Vector2f(position.x + xOffset, position.y + zOffset);
-				if (Math.abs(seed.position.x) <= GROUND_WIDTH / 2 && Math.abs(seed.position.y) <= GROUND_WIDTH / 2) {
-					seeds.add(seed);
+		private float interpolate(int age, float min, float max) {
+			return (Math.min((float) age / maxAge, 1) * (max - min) + min) * params.scale;
+		}
+	}
+
+	/**
+	 * The plants as parallel arrays, so the passes over every plant read only the values they need. Plant i is stored
+	 * at index i of each array, for i less than the count.
+	 */
+	private class Plants {
+		private static final int INITIAL_CAPACITY = 256;
+
+		private int count = 0;
+		/**
+		 * Identifies each plant's random stream: initial plants use their index and seedlings derive theirs from the
+		 * parent, so the result does not depend on the order plants are processed in
+		 */
+		private long[] id = new long[INITIAL_CAPACITY];
+		private int[] type = new int[INITIAL_CAPACITY];
+		private int[] age = new int[INITIAL_CAPACITY];
+		private float[] x = new float[INITIAL_CAPACITY];
+		private float[] z = new float[INITIAL_CAPACITY];
+		// Sizes at the current age, updated as the plant grows rather than on every use
+		private float[] canopyXZRadius = new float[INITIAL_CAPACITY];
+		private float[] canopyYRadius = new float[INITIAL_CAPACITY];
+		private float[] canopyCentreY = new float[INITIAL_CAPACITY];
+		private float[] trunkRadius = new float[INITIAL_CAPACITY];
+
+		void add(long id, int type, int age, float x, float z) {
+			ensureCapacity(count + 1);
+			this.id[count] = id;
+			this.type[count] = type;
+			this.age[count] = age;
+			this.x[count] = x;
+			this.z[count] = z;
+			updateSize(count);
+			count++;
+		}
+
+		/**
+		 * Appends all of the other plants, in order
+		 */
+		void addAll(Plants other) {
+			ensureCapacity(count + other.count);
+			System.arraycopy(other.id, 0, id, count, other.count);
+			System.arraycopy(other.type, 0, type, count, other.count);
+			System.arraycopy(other.age, 0, age, count, other.count);
+			System.arraycopy(other.x, 0, x, count, other.count);
+			System.arraycopy(other.z, 0, z, count, other.count);
+			System.arraycopy(other.canopyXZRadius, 0, canopyXZRadius, count, other.count);
+			System.arraycopy(other.canopyYRadius, 0, canopyYRadius, count, other.count);
+			System.arraycopy(other.canopyCentreY, 0, canopyCentreY, count, other.count);
+			System.arraycopy(other.trunkRadius, 0, trunkRadius, count, other.count);
+			count += other.count;
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity <= id.length) {
+				return;
+			}
+			capacity = Math.max(capacity, id.length * 2);
+			id = Arrays.copyOf(id, capacity);
+			type = Arrays.copyOf(type, capacity);
+			age = Arrays.copyOf(age, capacity);
+			x = Arrays.copyOf(x, capacity);
+			z = Arrays.copyOf(z, capacity);
+			canopyXZRadius = Arrays.copyOf(canopyXZRadius, capacity);
+			canopyYRadius = Arrays.copyOf(canopyYRadius, capacity);
+			canopyCentreY = Arrays.copyOf(canopyCentreY, capacity);
+			trunkRadius = Arrays.copyOf(trunkRadius, capacity);
+		}
+
+		/**
+		 * Removes the plants marked in removed, keeping the others in order
+		 */
+		void remove(boolean[] removed) {
+			int kept = 0;
+			for (int i = 0; i < count; i++) {
+				if (removed[i]) {
+					continue;
+				}
+				if (kept != i) {
+					id[kept] = id[i];
+					type[kept] = type[i];
+					age[kept] = age[i];
+					x[kept] = x[i];
+					z[kept] = z[i];
+					canopyXZRadius[kept] = canopyXZRadius[i];
+					canopyYRadius[kept] = canopyYRadius[i];
+					canopyCentreY[kept] = canopyCentreY[i];
+					trunkRadius[kept] = trunkRadius[i];
 				}
+				kept++;
 			}
-			return seeds;
+			count = kept;
+		}
+
+		/**
+		 * Recalculates the sizes of plant i from its age
+		 */
+		void updateSize(int i) {
+			Species s = species.get(type[i]);
+			canopyXZRadius[i] = s.interpolate(age[i], s.minCanopyXZRadius, s.maxCanopyXZRadius);
+			canopyYRadius[i] = s.interpolate(age[i], s.minCanopyYRadius, s.maxCanopyYRadius);
+			canopyCentreY[i] = s.interpolate(age[i], s.minCanopyCentreY, s.maxCanopyCentreY);
+			trunkRadius[i] = s.interpolate(age[i], s.minTrunkRadius, s.maxTrunkRadius);
+		}
+
+		float getTrunkCentreY(int i) {
+			return (canopyCentreY[i] + canopyYRadius[i]) / 2;
 		}
 	}
 
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package generation;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Uniform grid of indexed points on a square of the terrain, for finding the points near a position without testing
+ * every point. Every point within the cell size of a position is in one of the nine cells around it, so the cell size
+ * should be at least the largest distance at which two points interact. Points outside the square are kept in the
+ * cells at its edges.
+ */
+class SpatialGrid {
+	// Limits the memory of the grid when the cell size is very small, in which case the cells are made larger
+	private static final int MAX_CELLS_ACROSS = 1024;
+
+	private final float minimum;
+	private final float cellSize;
+	private final int cellsAcross;
+	private final int[][] cells;
+	private final int[] cellCounts;
+
+	/**
+	 * @param width    Width of the square, which is centred on the origin
+	 * @param cellSize The smallest width of a cell
+	 */
+	SpatialGrid(float width, float cellSize) {
+		this.minimum = -width / 2;
+		this.cellsAcross = (int) Math.max(1, Math.min(MAX_CELLS_ACROSS, Math.floor(width / cellSize)));
+		this.cellSize = width / cellsAcross;
+		this.cells = new int[cellsAcross * cellsAcross][];
+		this.cellCounts = new int[cellsAcross * cellsAcross];
+	}
+
+	void add(int index, float x, float z) {
+		int cell = getCell(getColumn(x), getColumn(z));
+		if (cells[cell] == null) {
+			cells[cell] = new int[4];
+		} else if (cellCounts[cell] == cells[cell].length) {
+			cells[cell] = Arrays.copyOf(cells[cell], cellCounts[cell] * 2);
+		}
+		cells[cell][cellCounts[cell]++] = index;
+	}
+
+	/**
+	 * Whether the predicate is true for any index in the cells around the position, which are tested in no particular
+	 * order
+	 */
+	boolean anyNear(float positionX, float positionZ, IntPredicate predicate) {
+		int x = getColumn(positionX);
+		int z = getColumn(positionZ);
+		for (int i = Math.max(x - 1, 0); i <= Math.min(x + 1, cellsAcross - 1); i++) {
+			for (int j = Math.max(z - 1, 0); j <= Math.min(z + 1, cellsAcross - 1); j++) {
+				int cell = getCell(i, j);
+				for (int k = 0; k < cellCounts[cell]; k++) {
+					if (predicate.test(cells[cell][k])) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The indices in the cells around the position, in ascending order
+	 */
+	int[] getNear(float positionX, float positionZ) {
+		int x = getColumn(positionX);
+		int z = getColumn(positionZ);
+		int count = 0;
+		int[] near = new int[16];
+		for (int i = Math.max(x - 1, 0); i <= Math.min(x + 1, cellsAcross - 1); i++) {
+			for (int j = Math.max(z - 1, 0); j <= Math.min(z + 1, cellsAcross - 1); j++) {
+				int cell = getCell(i, j);
+				if (count + cellCounts[cell] > near.length) {
+					near = Arrays.copyOf(near, Math.max(near.length * 2, count + cellCounts[cell]));
+				}
+				if (cellCounts[cell] > 0) {
+					System.arraycopy(cells[cell], 0, near, count, cellCounts[cell]);
+				}
+				count += cellCounts[cell];
+			}
+		}
+		near = Arrays.copyOf(near, count);
+		Arrays.sort(near);
+		return near;
+	}
+
+	private int getColumn(float coordinate) {
+		return Math.max(0, Math.min(cellsAcross - 1, (int) Math.floor((coordinate - minimum) / cellSize)));
+	}
+
+	private int getCell(int x, int z) {
+		return x * cellsAcross + z;
+	}
+}
@@ -21,16 +21,14 @@
 
 package generation;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
-import java.util.stream.IntStream;
 
 import static utils.MathsUtils.lerp;
 
 import modeldata.meshdata.Mesh;
+import modeldata.meshdata.MeshBuilder;
 import modeldata.meshdata.Texture2D;
-import modeldata.meshdata.Vertex;
 import modeldata.meshdata.VertexAttribute;
 import org.joml.Vector2f;
 import org.joml.Vector3f;
@@ -97,7 +95,13 @@ public class TerrainGenerator {
 
 		float textureTilesPerGroundTile = width / textureWidth;
 
-		List<Vertex> vertices = new ArrayList<>();
+		int numVertices = verticesPerSide * verticesPerSide;
+		MeshBuilder builder = new MeshBuilder(
+				List.of(VertexAttribute.POSITION, VertexAttribute.NORMAL, VertexAttribute.TANGENT, VertexAttribute.TEXTURE),
+				numVertices,
+				(verticesPerSide - 1) * (verticesPerSide - 1) * 6);
+		Vector3f norm = new Vector3f();
+		Vector3f tang = new Vector3f();
 
 		// Generate heightmap which is 1 vertex outside of the tile
 		float[][] heights = getHeightmap(centre, width * (1 + (float) 2 / verticesPerSide), verticesPerSide + 2);
@@ -116,38 +120,32 @@ public class TerrainGenerator {
 				float l = heights[hx - 1][hy];
 				float r = heights[hx + 1][hy];
 				// First order (linear) approximation to gradient vector (normal)
-				Vector3f norm = new Vector3f(
+				norm.set(
 						(r - l) / (2 * gridSize),
 						-1,
 						(u - d) / (2 * gridSize)).normalize().negate();
-				Vector3f tang = new Vector3f(2 * gridSize, r - l, 0).normalize();
+				tang.set(2 * gridSize, r - l, 0).normalize();
 
 				float texX = (xi * textureTilesPerGroundTile) / verticesPerSide;
 				float texY = (yi * textureTilesPerGroundTile) / verticesPerSide;
 
-				Vector3f pos = new Vector3f(round(x), round(h), round(y));
+				builder.vertex()
+						.position(round(x), round(h), round(y))
+						.normal(norm)
+						.tangent(tang)
+						.texCoord(texX, texY);
+			}
+		}
 
-				vertices.add(new Vertex(
-						pos,
-						norm,
-						tang,
-						new Vector2f(texX, texY)
-				));
+		for (int i = 0; i < numVertices - verticesPerSide; i++) {
+			// Skip the right hand edge of the tile
+			if ((i + 1) % verticesPerSide != 0) {
+				builder.triangle(i, i + 1, i + verticesPerSide)
+						.triangle(i + 1, i + verticesPerSide, i + verticesPerSide + 1);
 			}
 		}
 
-		int numVertices = vertices.size();
-		int[] indices = IntStream.range(0, (numVertices - verticesPerSide)).boxed().flatMapToInt(
-				i -> {
-					if ((i + 1) % verticesPerSide == 0) {
-						// If at right hand edge of tile
-						return IntStream.empty();
-					}
-					return IntStream.of(i, i + 1, i + verticesPerSide, i + 1, i + verticesPerSide, i + verticesPerSide + 1);
-				}
-		).toArray();
-
-		Mesh mesh = new Mesh(vertices, indices, List.of(VertexAttribute.POSITION, VertexAttribute.NORMAL, VertexAttribute.TANGENT, VertexAttribute.TEXTURE));
+		Mesh mesh = new Mesh(builder.build());
 		mesh.addTexture("diffuseTexture", texture);
 		mesh.setSegColour(Colour.ground);
 		return mesh;
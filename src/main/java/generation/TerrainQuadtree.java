@@ -36,6 +36,7 @@ import org.joml.Vector2f;
 import org.joml.Vector3f;
 import params.ParameterLoader;
 import params.Parameters;
+import params.RandomStreams;
 import rendering.LevelOfDetail;
 import sceneobjects.CrossedBillboard;
 import sceneobjects.ExternalModels;
@@ -62,6 +63,8 @@ public class TerrainQuadtree {
 	private final Texture2D texture;
 	private Vector2f seedPoint = new Vector2f(0, 0);
 	private int nodeCount = 0;
+	// Ratio of the projected height of an object on screen to its height over its distance, which is 1/tan(fovy/2)
+	private float projectionScale = 1 / (float) Math.tan(Math.toRadians(45) / 2);
 
 	public TerrainQuadtree(Vector2f centre, float width, int maxDepth, int verticesPerTile, Texture2D texture) {
 		this.maxDepth = maxDepth;
@@ -83,10 +86,21 @@ public class TerrainQuadtree {
 		this.seedPoint = seedPoint;
 	}
 
+	/**
+	 * Sets the perspective projection of the camera, from which the size of objects on screen is found
+	 */
+	public void setProjection(Matrix4f projection) {
+		this.projectionScale = projection.m11();
+	}
+
 	public float getHeight(float x, float z) {
 		return terrainGenerator.getHeight(x, z);
 	}
 
+	/**
+	 * @param userPosition The position of the camera, or null when rendering from another view such as the light's,
+	 *                     in which case the levels of detail are chosen for the seed point
+	 */
 	public void render(Matrix4f MVP, Vector3f userPosition, boolean renderForShadows) {
 
 		if (parameters.output.collisions.enabled && !renderForShadows) {
@@ -94,9 +108,12 @@ public class TerrainQuadtree {
 				System.out.println("COLLISION: OUT OF FOREST");
 			}
 		}
+		Vector3f viewPoint = userPosition != null
+				? userPosition
+				: new Vector3f(seedPoint.x, getHeight(seedPoint.x, seedPoint.y), seedPoint.y);
 		List<Quad> tiles = quad.getVisibleQuads(MVP);
 		for (Quad tile : tiles) {
-			tile.render(renderForShadows, userPosition);
+			tile.render(renderForShadows, viewPoint);
 		}
 	}
 
@@ -104,6 +121,16 @@ public class TerrainQuadtree {
 		render(MVP, userPosition, false);
 	}
 
+	/**
+	 * The level of detail of an object from the size it is projected to on screen
+	 *
+	 * @param radius   Radius of a sphere which contains the object
+	 * @param distance Distance of the object from the camera
+	 */
+	private LevelOfDetail getLevelOfDetail(float radius, float distance) {
+		return LevelOfDetail.forScreenSize(radius * projectionScale / distance);
+	}
+
 	public void placeTree(Tree.Reference tree) {
 		Vector2f position = new Vector2f(tree.getPosition().x, tree.getPosition().z);
 		Optional<LeafQuad> containingLeaf = quad.getLeafQuads().stream()
@@ -202,24 +229,17 @@ public class TerrainQuadtree {
 			return children.stream().flatMap(q -> q.getMeshes().stream()).collect(Collectors.toList());
 		}
 
-		public void render(boolean renderForShadows, Vector3f userPosition) {
+		public void render(boolean renderForShadows, Vector3f viewPoint) {
 			for (Mesh mesh : getMeshes()) {
 				mesh.render(renderForShadows);
 			}
 
-			LevelOfDetail levelOfDetail;
-			if (depth >= (maxDepth - 1)) {
-				levelOfDetail = LevelOfDetail.HIGH;
-			} else {
-				levelOfDetail = LevelOfDetail.LOW;
-			}
-
 			if (parameters.sceneObjects.display) {
 				for (LeafQuad.SceneObjects objects : getSceneObjects()) {
-					objects.render(levelOfDetail, renderForShadows);
+					objects.render(viewPoint, renderForShadows);
 					if (parameters.output.collisions.enabled && !renderForShadows) {
-						if (this.containsPoint(new Vector2f(userPosition.x, userPosition.z))) {
-							objects.checkCollisions(userPosition);
+						if (this.containsPoint(new Vector2f(viewPoint.x, viewPoint.z))) {
+							objects.checkCollisions(viewPoint);
 						}
 					}
 				}
@@ -267,8 +287,7 @@ public class TerrainQuadtree {
 			return List.of(this);
 		}
 
-		private int getNumber(int total) {
-			Random r = ParameterLoader.getParameters().random.generator;
+		private int getNumber(int total, Random r) {
 			float val = (float) total / numberOfMaxDepthTiles;
 			// If fewer than 1 should be present in this quad generate 1 with probability (total/numberOfMaxDepthTiles)
 			if (val < 1) {
@@ -290,37 +309,48 @@ public class TerrainQuadtree {
 
 			public SceneObjects() {
 				trees = new ArrayList<>();
+				// Numbers of objects are chosen from the stream of this quad, so quads can be populated in any order
+				Random r = ParameterLoader.getParameters().random.streams.get(RandomStreams.Subsystem.TERRAIN_QUADTREE,
+						RandomStreams.key(centre.x), RandomStreams.key(centre.y));
 
-				leaves = new FallenLeaves(1, getNumber(NUM_OF_INSTANCED_LEAVES), centre, width, TerrainQuadtree.this);
-				twigs = new Twigs(parameters.sceneObjects.twigs.typesPerQuad, getNumber(NUM_OF_INSTANCED_TWIGS), centre, width, TerrainQuadtree.this);
+				leaves = new FallenLeaves(1, getNumber(NUM_OF_INSTANCED_LEAVES, r), centre, width, TerrainQuadtree.this);
+				twigs = new Twigs(parameters.sceneObjects.twigs.typesPerQuad, getNumber(NUM_OF_INSTANCED_TWIGS, r), centre, width, TerrainQuadtree.this);
 
 				externalModels = new ArrayList<>();
 				int numExternalModels = parameters.sceneObjects.externalModels.size();
 				for (int i = 0; i < numExternalModels; i++) {
 					int numInstances = (int) (GROUND_WIDTH * GROUND_WIDTH * DEFAULT_ROCK_DENSITY * parameters.sceneObjects.externalModels.get(i).density / numExternalModels);
-					externalModels.add(new ExternalModels(1, getNumber(numInstances), centre, width, TerrainQuadtree.this, i));
+					externalModels.add(new ExternalModels(1, getNumber(numInstances, r), centre, width, TerrainQuadtree.this, i));
 				}
 
 				billboards = new ArrayList<>();
 				int numBillboardTypes = parameters.sceneObjects.crossedBillboards.size();
 				for (int i = 0; i < numBillboardTypes; i++) {
 					int numInstances = (int) (GROUND_WIDTH * GROUND_WIDTH * DEFAULT_GRASS_DENSITY * parameters.sceneObjects.crossedBillboards.get(i).density / numBillboardTypes);
-					billboards.add(new CrossedBillboard(1, getNumber(numInstances), centre, width, TerrainQuadtree.this, i));
+					billboards.add(new CrossedBillboard(1, getNumber(numInstances, r), centre, width, TerrainQuadtree.this, i));
 				}
 			}
 
-			private void render(LevelOfDetail levelOfDetail, boolean renderForShadows) {
+			/**
+			 * Renders each tree, and each group of instanced objects, with the level of detail of its size on screen.
+			 * Instanced objects are spread over the quad, so their size is taken at the nearest point of the quad.
+			 */
+			private void render(Vector3f viewPoint, boolean renderForShadows) {
 				for (Tree.Reference tree : trees) {
-					tree.render(levelOfDetail, renderForShadows);
+					tree.render(getLevelOfDetail(tree.getBoundingRadius(), viewPoint.distance(tree.getPosition())),
+							renderForShadows);
 				}
-				twigs.render(levelOfDetail, renderForShadows);
+				float distance = new Vector2f(
+						Math.max(Math.abs(viewPoint.x - centre.x) - width / 2, 0),
+						Math.max(Math.abs(viewPoint.z - centre.y) - width / 2, 0)).length();
+				twigs.render(getLevelOfDetail(twigs.getBoundingRadius(), distance), renderForShadows);
 				for (ExternalModels model : externalModels) {
-					model.render(levelOfDetail, renderForShadows);
+					model.render(getLevelOfDetail(model.getBoundingRadius(), distance), renderForShadows);
 				}
 				for (CrossedBillboard billboard : billboards) {
-					billboard.render(levelOfDetail, renderForShadows);
+					billboard.render(getLevelOfDetail(billboard.getBoundingRadius(), distance), renderForShadows);
 				}
-				leaves.render(levelOfDetail, renderForShadows);
+				leaves.render(getLevelOfDetail(leaves.getBoundingRadius(), distance), renderForShadows);
 			}
 
 			public void addTree(Tree.Reference tree) {
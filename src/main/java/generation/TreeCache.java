@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package generation;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import modeldata.meshdata.MeshData;
+import org.joml.Vector3f;
+import params.ParameterLoader;
+import params.Parameters;
+import rendering.LevelOfDetail;
+import sceneobjects.Tree;
+
+/**
+ * Cache of generated trees on disk, so that a tree with the same parameters, number of iterations, pool index and
+ * random stream is only generated once. Each tree is stored in a file named by a hash of these, which is mapped when
+ * it is loaded so that its mesh data is uploaded straight from the file.
+ */
+public class TreeCache {
+	// "FGTC" in the byte order the file was written in, so files from a machine with another byte order are ignored
+	private static final int MAGIC = 0x46475443;
+	// Increment when the format or the generation of trees changes, so that existing files are no longer used
+	private static final int VERSION = 5;
+
+	private static final Parameters parameters = ParameterLoader.getParameters();
+
+	private final Path directory;
+	private final ObjectMapper mapper = new ObjectMapper().configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
+	public TreeCache(String directory) {
+		this.directory = Paths.get(directory);
+	}
+
+	/**
+	 * Hash of everything which determines the generated tree
+	 *
+	 * @param seed Seed of the random stream of the tree
+	 */
+	public String getKey(Parameters.SceneObjects.Tree params, int iterations, int poolIndex, long seed) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(params.getClass().getName().getBytes(StandardCharsets.UTF_8));
+			digest.update(mapper.writeValueAsBytes(params));
+			// The decimated levels of detail depend on the length of the chain and the ratio of triangles kept
+			digest.update(ByteBuffer.allocate(4 * Integer.BYTES + Float.BYTES + Long.BYTES)
+					.putInt(VERSION)
+					.putInt(LevelOfDetail.COUNT)
+					.putFloat(parameters.quadtree.lodTriangleRatio)
+					.putInt(iterations)
+					.putInt(poolIndex)
+					.putLong(seed)
+					.array());
+			return String.format("%064x", new BigInteger(1, digest.digest()));
+		} catch (NoSuchAlgorithmException | JsonProcessingException e) {
+			throw new RuntimeException("Unable to hash tree parameters", e);
+		}
+	}
+
+	/**
+	 * The tree with the key, or empty if it is not in the cache
+	 */
+	public Optional<Tree.Geometry> load(String key) {
+		Path path = directory.resolve(key);
+		if (!Files.exists(path)) {
+			return Optional.empty();
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			ByteBuffer buffer = mapped.order(ByteOrder.nativeOrder());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				return Optional.empty();
+			}
+			int typeIndex = buffer.getInt();
+			int numIterations = buffer.getInt();
+			Tree.Mask mask = new Tree.Mask();
+			mask.setCanopyXZRadius(buffer.getFloat());
+			mask.setCanopyYRadius(buffer.getFloat());
+			mask.setTrunkRadius(buffer.getFloat());
+			mask.setCanopyCentre(new Vector3f(buffer.getFloat(), buffer.getFloat(), buffer.getFloat()));
+			MeshData branches = MeshData.read(buffer);
+			int numberOfDecimated = buffer.getInt();
+			List<MeshData> decimatedBranches = new ArrayList<>(numberOfDecimated);
+			for (int i = 0; i < numberOfDecimated; i++) {
+				decimatedBranches.add(MeshData.read(buffer));
+			}
+			return Optional.of(new Tree.Geometry(
+					typeIndex,
+					numIterations,
+					branches,
+					decimatedBranches,
+					MeshData.read(buffer),
+					readFloats(buffer),
+					MeshData.read(buffer),
+					MeshData.read(buffer),
+					readFloats(buffer),
+					readFloats(buffer),
+					mask,
+					0,
+					0));
+		} catch (IOException | RuntimeException e) {
+			System.out.println("Unable to load cached tree " + key + ": " + e.getMessage());
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * Stores the tree, which is written to a temporary file and then moved so that a partly written tree is never
+	 * loaded
+	 */
+	public void save(String key, Tree.Geometry geometry) {
+		List<MeshData> meshes = List.of(geometry.getBranches(), geometry.getLeafModel(), geometry.getBoard(),
+				geometry.getLowLODLeafModel());
+		float[] segments = geometry.getSegments();
+		// Magic, version, type index, iterations, the mask, the number of decimated branches and the length of each
+		// array
+		int size = 14 * Integer.BYTES
+				+ meshes.stream().mapToInt(MeshData::getSerializedSize).sum()
+				+ geometry.getDecimatedBranches().stream().mapToInt(MeshData::getSerializedSize).sum()
+				+ (geometry.getLeaves().length + geometry.getLowLODLeaves().length) * Float.BYTES
+				+ (segments == null ? 0 : segments.length * Float.BYTES);
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(geometry.getTypeIndex());
+		buffer.putInt(geometry.getNumIterations());
+		Tree.Mask mask = geometry.getMask();
+		buffer.putFloat(mask.getCanopyXZRadius());
+		buffer.putFloat(mask.getCanopyYRadius());
+		buffer.putFloat(mask.getTrunkRadius());
+		buffer.putFloat(mask.getCanopyCentre().x);
+		buffer.putFloat(mask.getCanopyCentre().y);
+		buffer.putFloat(mask.getCanopyCentre().z);
+		geometry.getBranches().write(buffer);
+		buffer.putInt(geometry.getDecimatedBranches().size());
+		for (MeshData decimated : geometry.getDecimatedBranches()) {
+			decimated.write(buffer);
+		}
+		geometry.getLeafModel().write(buffer);
+		writeFloats(buffer, geometry.getLeaves());
+		geometry.getBoard().write(buffer);
+		geometry.getLowLODLeafModel().write(buffer);
+		writeFloats(buffer, geometry.getLowLODLeaves());
+		writeFloats(buffer, segments);
+		buffer.flip();
+
+		try {
+			Files.createDirectories(directory);
+			Path temporary = Files.createTempFile(directory, key, ".tmp");
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+			Files.move(temporary, directory.resolve(key), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.out.println("Unable to cache tree " + key + ": " + e.getMessage());
+		}
+	}
+
+	// A length of -1 is a null array
+	private static float[] readFloats(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		float[] floats = new float[length];
+		buffer.asFloatBuffer().get(floats);
+		buffer.position(buffer.position() + floats.length * Float.BYTES);
+		return floats;
+	}
+
+	private static void writeFloats(ByteBuffer buffer, float[] floats) {
+		if (floats == null) {
+			buffer.putInt(-1);
+			return;
+		}
+		buffer.putInt(floats.length);
+		buffer.asFloatBuffer().put(floats);
+		buffer.position(buffer.position() + floats.length * Float.BYTES);
+	}
+}
@@ -23,13 +23,14 @@ package generation;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
-import java.util.function.Function;
+import java.util.function.DoubleSupplier;
+import java.util.function.DoubleUnaryOperator;
 
 import static lsystems.modules.DefinedModules.LB;
 import static lsystems.modules.DefinedModules.RB;
 
+import lsystems.DerivationRandom;
 import lsystems.LSystem;
 import lsystems.Production;
 import lsystems.ProductionBuilder;
@@ -50,8 +51,8 @@ public final class TreeLSystems {
 
 	private static final Parameters parameters = ParameterLoader.getParameters();
 
-	private static float getParamBetween(float min, float max) {
-		Random r = parameters.random.generator;
+	private static float getParamBetween(Random random, float min, float max) {
+		Random r = DerivationRandom.currentOr(random);
 		if (min == max) {
 			return min;
 		}
@@ -61,8 +62,8 @@ public final class TreeLSystems {
 		return r.nextFloat() * (max - min) + min;
 	}
 
-	private static float getFloatParam(Parameters.SceneObjects.Tree params, String name) {
-		Random r = parameters.random.generator;
+	private static float getFloatParam(Random random, Parameters.SceneObjects.Tree params, String name) {
+		Random r = DerivationRandom.currentOr(random);
 		float min = params.lSystemParamsLower.get(name).floatValue();
 		float max = params.lSystemParamsUpper.get(name).floatValue();
 		if (min == max) {
@@ -74,8 +75,8 @@ public final class TreeLSystems {
 		return r.nextFloat() * (max - min) + min;
 	}
 
-	private static int getIntParam(Parameters.SceneObjects.Tree params, String name) {
-		Random r = parameters.random.generator;
+	private static int getIntParam(Random random, Parameters.SceneObjects.Tree params, String name) {
+		Random r = DerivationRandom.currentOr(random);
 		int min = params.lSystemParamsLower.get(name).intValue();
 		int max = params.lSystemParamsUpper.get(name).intValue();
 		if (min == max) {
@@ -87,15 +88,23 @@ public final class TreeLSystems {
 		return r.nextInt(max - min) + min;
 	}
 
-	public static LSystem branching(int typeIndex) {
+	// Module with a single value, sampled each time the production is applied
+	private static Module sampledModule(char name, DoubleSupplier value) {
+		return ParametricExpressionModule.compiled(name, List.of(), 1, (args, out) -> out[0] = (float) value.getAsDouble());
+	}
+
+	/**
+	 * Builds the grammar of a branching tree, sampling its parameters from random, which also seeds its derivation
+	 */
+	public static LSystem branching(int typeIndex, Random random) {
 		Parameters.SceneObjects.Tree params = parameters.sceneObjects.trees.get(typeIndex);
 		List<TreeTypes.BranchingTree.Branching> branchings =
 				((TreeTypes.BranchingTree) params).branchings;
 
-		float e = getFloatParam(params, "e");
-		float lB = getFloatParam(params, "lB");
-		float wB = getFloatParam(params, "wB");
-		int nT = getIntParam(params, "nT");
+		float e = getFloatParam(random, params, "e");
+		float lB = getFloatParam(random, params, "lB");
+		float wB = getFloatParam(random, params, "wB");
+		int nT = getIntParam(random, params, "nT");
 		boolean widenBase = params.widenBase;
 
 		CharModule A = new CharModule('A');
@@ -104,8 +113,8 @@ public final class TreeLSystems {
 				new ParametricValueModule('T', List.of(0f, -1f, 0f, e))
 		));
 		if (widenBase) {
-			float tP = getFloatParam(params, "tP");
-			float tF = getFloatParam(params, "tF");
+			float tP = getFloatParam(random, params, "tP");
+			float tF = getFloatParam(random, params, "tF");
 			axiom.add(new ParametricValueModule('!', wB * (1 + tF)));
 			for (int i = 1; i <= nT; i++) {
 				axiom.add(new ParametricValueModule('!', wB * (1 + (float) Math.pow((float) (nT - i) / nT, tP) * tF)));
@@ -120,36 +129,26 @@ public final class TreeLSystems {
 		List<Production> productions = new ArrayList<>();
 		for (TreeTypes.BranchingTree.Branching entry : branchings) {
 			List<Module> startModules = new ArrayList<>(List.of(
-					new ParametricExpressionModule('!', List.of(), vars -> List.of(
-							getFloatParam(params, "rw"))),
-					new ParametricExpressionModule('/', List.of(), vars -> List.of(
-							(float) Math.toRadians(getFloatParam(params, "a2")))),
-					new ParametricExpressionModule('F', List.of(), vars -> List.of(
-							getFloatParam(params, "l1"))))
+					sampledModule('!', () -> getFloatParam(random, params, "rw")),
+					sampledModule('/', () -> Math.toRadians(getFloatParam(random, params, "a2"))),
+					sampledModule('F', () -> getFloatParam(random, params, "l1")))
 			);
 
 			List<Module> startModulesSide = List.of(
-					new ParametricExpressionModule('!', List.of(),
-							vars -> List.of(getFloatParam(params, "rw"))),
-					new ParametricExpressionModule('/', List.of(), vars -> List.of(
-							(float) Math.toRadians(getFloatParam(params, "a2")))),
-					new ParametricExpressionModule('F', List.of(), vars -> List.of(
-							getFloatParam(params, "l2") * getFloatParam(params, "l1"))),
+					sampledModule('!', () -> getFloatParam(random, params, "rw")),
+					sampledModule('/', () -> Math.toRadians(getFloatParam(random, params, "a2"))),
+					sampledModule('F', () -> getFloatParam(random, params, "l2") * getFloatParam(random, params, "l1")),
 					LB,
-					new ParametricExpressionModule('&', List.of(), vars -> List.of(
-							(float) Math.toRadians(getFloatParam(params, "aS")))),
+					sampledModule('&', () -> Math.toRadians(getFloatParam(random, params, "aS"))),
 					A,
 					RB,
-					new ParametricExpressionModule('F', List.of(), vars -> List.of(
-							getFloatParam(params, "l3") * getFloatParam(params, "l1")))
+					sampledModule('F', () -> getFloatParam(random, params, "l3") * getFloatParam(random, params, "l1"))
 			);
 
 			List<Module> midModules = List.of(
 					LB,
-					new ParametricExpressionModule('&', List.of(), vars -> List.of(
-							(float) Math.toRadians(getFloatParam(params, "a0")))),
-					new ParametricExpressionModule('F', List.of(), vars -> List.of(
-							getFloatParam(params, "l1"))),
+					sampledModule('&', () -> Math.toRadians(getFloatParam(random, params, "a0"))),
+					sampledModule('F', () -> getFloatParam(random, params, "l1")),
 					A,
 					RB);
 
@@ -158,17 +157,14 @@ public final class TreeLSystems {
 				throw new RuntimeException("Unmatched number of minimum and maximum branching angles in: " + entry.minAngles + " and " + entry.maxAngles);
 			}
 			for (int i = 0; i < entry.minAngles.size(); i++) {
-				int finalI = i;
+				float minAngle = entry.minAngles.get(i);
+				float maxAngle = entry.maxAngles.get(i);
 				branchingModules.addAll(List.of(
-						new ParametricExpressionModule('F', List.of(), vars -> List.of(
-								getFloatParam(params, "bO"))),
-						new ParametricExpressionModule('/', List.of(), vars -> List.of(
-								(float) Math.toRadians(getParamBetween(entry.minAngles.get(finalI), entry.maxAngles.get(finalI))))),
+						sampledModule('F', () -> getFloatParam(random, params, "bO")),
+						sampledModule('/', () -> Math.toRadians(getParamBetween(random, minAngle, maxAngle))),
 						LB,
-						new ParametricExpressionModule('&', List.of(), vars -> List.of(
-								(float) Math.toRadians(getFloatParam(params, "a1")))),
-						new ParametricExpressionModule('F', List.of(), vars -> List.of(
-								getFloatParam(params, "l1"))),
+						sampledModule('&', () -> Math.toRadians(getFloatParam(random, params, "a1"))),
+						sampledModule('F', () -> getFloatParam(random, params, "l1")),
 						A,
 						RB
 				));
@@ -186,38 +182,42 @@ public final class TreeLSystems {
 			A2Out.addAll(midModules);
 			A2Out.addAll(branchingModules);
 
-			float pS = getFloatParam(params, "pS");
+			float pS = getFloatParam(random, params, "pS");
 			productions.add(new ProductionBuilder(List.of(A), A1Out).withProbability(entry.prob * (1 - pS)).build());
 			productions.add(new ProductionBuilder(List.of(A), A2Out).withProbability(entry.prob * pS).build());
 		}
 
 		ParametricParameterModule FIn = new ParametricParameterModule('F', List.of("l"));
-		Module FOut = new ParametricExpressionModule('F', List.of("l"), vars -> List.of(
-				vars.get("l") * getFloatParam(params, "rl")));
+		Module FOut = ParametricExpressionModule.compiled('F', List.of("l"), 1, (args, out) ->
+				out[0] = args[0] * getFloatParam(random, params, "rl"));
 		productions.add(new ProductionBuilder(List.of(FIn), List.of(FOut)).build());
 
 		ParametricParameterModule ExIn = new ParametricParameterModule('!', List.of("w"));
-		Module ExOut = new ParametricExpressionModule('!', List.of("w"), vars -> List.of(
-				vars.get("w") * getFloatParam(params, "rw")));
+		Module ExOut = ParametricExpressionModule.compiled('!', List.of("w"), 1, (args, out) ->
+				out[0] = args[0] * getFloatParam(random, params, "rw"));
 		productions.add(new ProductionBuilder(List.of(ExIn), List.of(ExOut)).build());
 
 		return new LSystem(
 				axiom,
 				List.of(),
-				productions
+				productions,
+				random.nextLong()
 		);
 	}
 
-	public static LSystem monopodial(int typeIndex) {
+	/**
+	 * Builds the grammar of a monopodial tree, sampling its parameters from random, which also seeds its derivation
+	 */
+	public static LSystem monopodial(int typeIndex, Random random) {
 		TreeTypes.MonopodialTree params = (TreeTypes.MonopodialTree) parameters.sceneObjects.trees.get(typeIndex);
 
-		float e = getFloatParam(params, "e");
-		float lB = getFloatParam(params, "lB");
-		float l2 = getFloatParam(params, "l2");
-		float lr2 = getFloatParam(params, "lr2");
-		float wB = getFloatParam(params, "wB");
-		int nB = getIntParam(params, "nB");
-		int nT = getIntParam(params, "nT");
+		float e = getFloatParam(random, params, "e");
+		float lB = getFloatParam(random, params, "lB");
+		float l2 = getFloatParam(random, params, "l2");
+		float lr2 = getFloatParam(random, params, "lr2");
+		float wB = getFloatParam(random, params, "wB");
+		int nB = getIntParam(random, params, "nB");
+		int nT = getIntParam(random, params, "nT");
 		int minI = params.minIterations;
 		boolean heightVaryingAngles = params.heightVaryingAngles;
 		boolean pineStyleBranches = params.pineStyleBranches;
@@ -227,8 +227,8 @@ public final class TreeLSystems {
 				new ParametricValueModule('T', List.of(0f, -1f, 0f, e))
 		));
 		if (widenBase) {
-			float tP = getFloatParam(params, "tP");
-			float tF = getFloatParam(params, "tF");
+			float tP = getFloatParam(random, params, "tP");
+			float tF = getFloatParam(random, params, "tF");
 			axiom.add(new ParametricValueModule('!', wB * (1 + tF)));
 			for (int i = 1; i <= nT; i++) {
 				axiom.add(new ParametricValueModule('!', wB * (1 + (float) Math.pow((float) (nT - i) / nT, tP) * tF)));
@@ -246,30 +246,31 @@ public final class TreeLSystems {
 		List<Module> AOut = new ArrayList<>();
 		for (int i = 0; i < nB; i++) {
 
-			float lS = getFloatParam(params, "lS");
-			float lSm = getFloatParam(params, "lSm");
-			float wS = getFloatParam(params, "wS");
-			float aB = getFloatParam(params, "aB");
-			float aS = getFloatParam(params, "aS");
-			float aS5 = getFloatParam(params, "aS5");
-			float tH = getFloatParam(params, "tH");
-			float l1 = getFloatParam(params, "l1");
-			float vr = getFloatParam(params, "vr");
-			float lr = getFloatParam(params, "lr");
-			float aMin = getFloatParam(params, "aMin");
-			float aMax = getFloatParam(params, "aMax");
+			float lS = getFloatParam(random, params, "lS");
+			float lSm = getFloatParam(random, params, "lSm");
+			float wS = getFloatParam(random, params, "wS");
+			float aB = getFloatParam(random, params, "aB");
+			float aS = getFloatParam(random, params, "aS");
+			float aS5 = getFloatParam(random, params, "aS5");
+			float tH = getFloatParam(random, params, "tH");
+			float l1 = getFloatParam(random, params, "l1");
+			float vr = getFloatParam(random, params, "vr");
+			float lr = getFloatParam(random, params, "lr");
+			float aMin = getFloatParam(random, params, "aMin");
+			float aMax = getFloatParam(random, params, "aMax");
 
 			int finalI = i;
-			Function<Map<String, Float>, Float> heightFraction = vars -> {
-				float w0 = vars.get("w"); // Width of current segment
+			// Fraction of height of current position (0 = top of tree) from the width of the current segment
+			DoubleUnaryOperator heightFraction = w -> {
+				float w0 = (float) w; // Width of current segment
 				if (w0 == wB) {
 					return 1f;
 				}
-				float w1 = vars.get("w") + wB / minI; // Width of lower segment
-				return MathsUtils.lerp(w0 / wB, w1 / wB, (float) finalI / nB);  // Fraction of height of current position (0 = top of tree)
+				float w1 = w0 + wB / minI; // Width of lower segment
+				return MathsUtils.lerp(w0 / wB, w1 / wB, (float) finalI / nB);
 			};
-			Function<Map<String, Float>, Float> branchLen = vars -> {
-				float pos = heightFraction.apply(vars);
+			DoubleUnaryOperator branchLen = w -> {
+				float pos = (float) heightFraction.applyAsDouble(w);
 				if (pos == 0 && tH == 0) {
 					return 1f;
 				}
@@ -278,123 +279,127 @@ public final class TreeLSystems {
 			AOut.addAll(List.of(
 					new ParametricValueModule('/', (float) Math.toRadians(aS)), // Rotates around trunk
 					LB,
-					new ParametricExpressionModule('&', List.of("w"), vars -> List.of((float) Math.toRadians(
+					ParametricExpressionModule.compiled('&', List.of("w"), 1, (args, out) -> out[0] = (float) Math.toRadians(
 							heightVaryingAngles
-									? (aMin + (aMax - aMin) * heightFraction.apply(vars))
-									: aB))),
-					new ParametricExpressionModule('!', List.of("w"), vars -> List.of(vars.get("w") * vr * branchLen.apply(vars))),
-					new ParametricExpressionModule('F', List.of("w"), vars -> List.of(vars.get("w") * lr)), // Move the base of the side branches away from the trunk centre
+									? (aMin + (aMax - aMin) * (float) heightFraction.applyAsDouble(args[0]))
+									: aB)),
+					ParametricExpressionModule.compiled('!', List.of("w"), 1, (args, out) ->
+							out[0] = args[0] * vr * (float) branchLen.applyAsDouble(args[0])),
+					ParametricExpressionModule.compiled('F', List.of("w"), 1, (args, out) -> out[0] = args[0] * lr), // Move the base of the side branches away from the trunk centre
 					new ParametricValueModule('/', (float) Math.toRadians(aS5)),
-					new ParametricExpressionModule('B', List.of("w"), vars -> List.of(
-							vars.get("w") * wS * branchLen.apply(vars),
-							lS * branchLen.apply(vars))),
+					ParametricExpressionModule.compiled('B', List.of("w"), 2, (args, out) -> {
+						float len = (float) branchLen.applyAsDouble(args[0]);
+						out[0] = args[0] * wS * len;
+						out[1] = lS * len;
+					}),
 					RB,
-					new ParametricExpressionModule('!', List.of("w"), vars -> List.of(vars.get("w") - finalI * (wB / minI) / (nB))), // Taper trunk
+					ParametricExpressionModule.compiled('!', List.of("w"), 1, (args, out) ->
+							out[0] = args[0] - finalI * (wB / minI) / (nB)), // Taper trunk
 					new ParametricValueModule('F', l1)
 			));
 		}
-		AOut.add(new ParametricExpressionModule('F', List.of("l"), vars -> List.of(vars.get("l"))));
-		AOut.add(new ParametricExpressionModule('A', List.of("w", "l"), vars -> List.of(
-				Math.max(vars.get("w") - wB / minI, 0),
-				vars.get("l") * lr2)));
+		AOut.add(ParametricExpressionModule.compiled('F', List.of("l"), 1, (args, out) -> out[0] = args[0]));
+		AOut.add(ParametricExpressionModule.compiled('A', List.of("w", "l"), 2, (args, out) -> {
+			out[0] = Math.max(args[0] - wB / minI, 0);
+			out[1] = args[1] * lr2;
+		}));
 
 		// Side branches
 		List<Production> branchProductions = pineStyleBranches
-				? getPineSideBranches(params)
-				: getAlternatingSideBranches(params);
+				? getPineSideBranches(params, random)
+				: getAlternatingSideBranches(params, random);
 
 		List<Production> productions = new ArrayList<>();
 		productions.add(new ProductionBuilder(List.of(AIn), AOut).build());
 		productions.addAll(branchProductions);
 
-		return new LSystem(axiom, List.of(), productions);
+		return new LSystem(axiom, List.of(), productions, random.nextLong());
 	}
 
-	private static List<Production> getAlternatingSideBranches(TreeTypes.MonopodialTree params) {
+	private static List<Production> getAlternatingSideBranches(TreeTypes.MonopodialTree params, Random random) {
 
-		int nB2 = getIntParam(params, "nB2");
+		int nB2 = getIntParam(random, params, "nB2");
 
 		ParametricParameterModule BIn = new ParametricParameterModule('B', List.of("w", "l"));
 		List<Module> BOut = new ArrayList<>();
 		for (int i = 0; i < nB2; i++) {
 
-			float wS2 = getFloatParam(params, "wS2");
-			float aS2 = getFloatParam(params, "aS2");
-			float aS3 = getFloatParam(params, "aS3");
-			float aS4 = getFloatParam(params, "aS4");
-			float lS2 = getFloatParam(params, "lS2");
-			float lS3 = getFloatParam(params, "lS3");
-			float lS4 = getFloatParam(params, "lS4");
-			float aU = getFloatParam(params, "aU");
+			float wS2 = getFloatParam(random, params, "wS2");
+			float aS2 = getFloatParam(random, params, "aS2");
+			float aS3 = getFloatParam(random, params, "aS3");
+			float aS4 = getFloatParam(random, params, "aS4");
+			float lS2 = getFloatParam(random, params, "lS2");
+			float lS3 = getFloatParam(random, params, "lS3");
+			float lS4 = getFloatParam(random, params, "lS4");
+			float aU = getFloatParam(random, params, "aU");
 
 			int finalI = i;
-			Function<Map<String, Float>, Float> wI = vars -> vars.get("w") - vars.get("w") * finalI / nB2;
 			BOut.addAll(List.of(
-					new ParametricExpressionModule('!', List.of("w"), vars -> List.of(wI.apply(vars))),
-					new ParametricExpressionModule('F', List.of("l"), vars -> List.of(vars.get("l") * lS2)),
+					ParametricExpressionModule.compiled('!', List.of("w"), 1, (args, out) ->
+							out[0] = args[0] - args[0] * finalI / nB2),
+					ParametricExpressionModule.compiled('F', List.of("l"), 1, (args, out) -> out[0] = args[0] * lS2),
 					LB,
 					new ParametricValueModule('/', (float) Math.toRadians(aS2) * finalI),
 					new ParametricValueModule('&', (float) Math.toRadians(aS3)),
-					new ParametricExpressionModule('!', List.of("w"), vars -> List.of(wS2 * wI.apply(vars))),
-					new ParametricExpressionModule('F', List.of("l"), vars -> List.of(
-							(float) Math.sqrt(nB2 - finalI) * vars.get("l") * lS3,
-							(float) (int) ((Math.sqrt(nB2 - finalI) + 2) * 4 * getFloatParam(params, "dL") * vars.get("l")),
-							0f,
-							(float) Math.toRadians(140),
-							(float) Math.toRadians(40))),
+					ParametricExpressionModule.compiled('!', List.of("w"), 1, (args, out) ->
+							out[0] = wS2 * (args[0] - args[0] * finalI / nB2)),
+					ParametricExpressionModule.compiled('F', List.of("l"), 5, (args, out) -> {
+						out[0] = (float) Math.sqrt(nB2 - finalI) * args[0] * lS3;
+						out[1] = (float) (int) ((Math.sqrt(nB2 - finalI) + 2) * 4 * getFloatParam(random, params, "dL") * args[0]);
+						out[2] = 0f;
+						out[3] = (float) Math.toRadians(140);
+						out[4] = (float) Math.toRadians(40);
+					}),
 					new ParametricValueModule('&', (float) Math.toRadians(aS4)),
-					new ParametricExpressionModule('F', List.of("l"), vars -> List.of(
-							(float) Math.sqrt(nB2 - finalI) * vars.get("l") * lS4,
-							(float) (int) ((Math.sqrt(nB2 - finalI) + 2) * 4 * getFloatParam(params, "dL") * vars.get("l")),
-							0f,
-							(float) Math.toRadians(140),
-							(float) Math.toRadians(40))),
+					ParametricExpressionModule.compiled('F', List.of("l"), 5, (args, out) -> {
+						out[0] = (float) Math.sqrt(nB2 - finalI) * args[0] * lS4;
+						out[1] = (float) (int) ((Math.sqrt(nB2 - finalI) + 2) * 4 * getFloatParam(random, params, "dL") * args[0]);
+						out[2] = 0f;
+						out[3] = (float) Math.toRadians(140);
+						out[4] = (float) Math.toRadians(40);
+					}),
 					new CharModule('%'),
 					RB,
 					new ParametricValueModule('&', (float) Math.toRadians(-aU)) // Causes slight curve downwards
 			));
 		}
-		BOut.add(new ParametricExpressionModule('F', List.of("l"), vars -> List.of(vars.get("l") / 2f)));
+		BOut.add(ParametricExpressionModule.compiled('F', List.of("l"), 1, (args, out) -> out[0] = args[0] / 2f));
 		return List.of(new ProductionBuilder(List.of(BIn), BOut).build());
 	}
 
-	private static List<Production> getPineSideBranches(TreeTypes.MonopodialTree params) {
+	private static Module pineSideBranch(TreeTypes.MonopodialTree params, Random random) {
+		return ParametricExpressionModule.compiled('B', List.of("w", "l"), 2, (args, out) -> {
+			out[0] = args[0] * getFloatParam(random, params, "wS2");
+			out[1] = args[1] * 0.7f;
+		});
+	}
+
+	private static List<Production> getPineSideBranches(TreeTypes.MonopodialTree params, Random random) {
 
 		ParametricParameterModule BIn = new ParametricParameterModule('B', List.of("w", "l"));
 		List<Module> startModules = List.of(
-				new ParametricExpressionModule('/', List.of(), vars -> List.of(
-						(float) Math.toRadians(getFloatParam(params, "aS2")))),
-				new ParametricExpressionModule('!', List.of("w"), vars -> List.of(vars.get("w"))),
-				new ParametricExpressionModule('&', List.of(), vars -> List.of(
-						(float) Math.toRadians(-getFloatParam(params, "aU")))),
-				new ParametricExpressionModule('F', List.of("l"), vars -> List.of(
-						vars.get("l"),
-						300 * getFloatParam(params, "dL") * vars.get("l"),
-						0f,
-						(float) Math.toRadians(140),
-						(float) Math.toRadians(40)))
+				sampledModule('/', () -> Math.toRadians(getFloatParam(random, params, "aS2"))),
+				ParametricExpressionModule.compiled('!', List.of("w"), 1, (args, out) -> out[0] = args[0]),
+				sampledModule('&', () -> Math.toRadians(-getFloatParam(random, params, "aU"))),
+				ParametricExpressionModule.compiled('F', List.of("l"), 5, (args, out) -> {
+					out[0] = args[0];
+					out[1] = 300 * getFloatParam(random, params, "dL") * args[0];
+					out[2] = 0f;
+					out[3] = (float) Math.toRadians(140);
+					out[4] = (float) Math.toRadians(40);
+				})
 		);
 		List<Module> sideModules = List.of(
 				LB,
-				new ParametricExpressionModule('+', List.of(), vars -> List.of(
-						(float) Math.toRadians(getFloatParam(params, "aS3")))),
-				new ParametricExpressionModule('B', List.of("w"), vars -> List.of(
-						vars.get("w") * getFloatParam(params, "wS2"),
-						vars.get("l") * 0.7f)),
+				sampledModule('+', () -> Math.toRadians(getFloatParam(random, params, "aS3"))),
+				pineSideBranch(params, random),
 				RB,
 				LB,
-				new ParametricExpressionModule('+', List.of(), vars -> List.of(
-						(float) Math.toRadians(getFloatParam(params, "aS4")))),
-				new ParametricExpressionModule('B', List.of("w"), vars -> List.of(
-						vars.get("w") * getFloatParam(params, "wS2"),
-						vars.get("l") * 0.7f)),
+				sampledModule('+', () -> Math.toRadians(getFloatParam(random, params, "aS4"))),
+				pineSideBranch(params, random),
 				RB
 		);
-		List<Module> endModules = List.of(
-				new ParametricExpressionModule('B', List.of("w"), vars -> List.of(
-						vars.get("w") * getFloatParam(params, "wS2"),
-						vars.get("l") * 0.7f))
-		);
+		List<Module> endModules = List.of(pineSideBranch(params, random));
 
 		// Side branching
 		List<Module> B1Out = new ArrayList<>();
@@ -409,15 +414,15 @@ public final class TreeLSystems {
 
 		return List.of(
 				new ProductionBuilder(List.of(BIn), B1Out)
-						.withCondition(vars -> vars.get("l") >= 0.6f).build(),
+						.withCondition(List.of("l"), args -> args[0] >= 0.6f).build(),
 				new ProductionBuilder(List.of(BIn), B1Out)
-						.withCondition(vars -> vars.get("l") >= 0.3f && vars.get("l") < 0.6f)
+						.withCondition(List.of("l"), args -> args[0] >= 0.3f && args[0] < 0.6f)
 						.withProbability(0.6f).build(),
 				new ProductionBuilder(List.of(BIn), B2Out)
-						.withCondition(vars -> vars.get("l") >= 0.3f && vars.get("l") < 0.6f)
+						.withCondition(List.of("l"), args -> args[0] >= 0.3f && args[0] < 0.6f)
 						.withProbability(0.4f).build(),
 				new ProductionBuilder(List.of(BIn), B2Out)
-						.withCondition(vars -> vars.get("l") < 0.3f).build()
+						.withCondition(List.of("l"), args -> args[0] < 0.3f).build()
 		);
 	}
 
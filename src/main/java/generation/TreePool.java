@@ -24,11 +24,16 @@ package generation;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import lombok.AllArgsConstructor;
 import org.joml.Matrix4f;
 import params.ParameterLoader;
 import params.Parameters;
+import params.RandomStreams;
 import rendering.LevelOfDetail;
 import sceneobjects.Tree;
 
@@ -36,18 +41,39 @@ public class TreePool {
 	private static final Parameters parameters = ParameterLoader.getParameters();
 	private static TreePool instance;
 
+	// Generates the geometry of trees concurrently, which is then uploaded on the render thread
+	private final ForkJoinPool pool = new ForkJoinPool();
+	// Null if trees are not cached
+	private final TreeCache cache = parameters.sceneObjects.treeCacheDirectory.isEmpty()
+			? null : new TreeCache(parameters.sceneObjects.treeCacheDirectory);
+	// Null for trees which have been requested but not uploaded
 	private final List<List<Tree>> treesByType = new ArrayList<>();
+	private final List<List<Integer>> iterationsByType = new ArrayList<>();
+	// Trees which have been requested, in the order they are uploaded
+	private final List<PendingTree> pending = new ArrayList<>();
 	private final List<Tree.Mask> minMasks = new ArrayList<>();
 	private final List<Tree.Mask> maxMasks = new ArrayList<>();
+	// Nanoseconds spent building the meshes of generated trees and smoothing their normals, summed over all threads
+	private long meshTime = 0;
+	private long smoothingTime = 0;
 
 	private TreePool() {
 		System.out.println("Calculating tree masks");
 		int numTreeTypes = parameters.sceneObjects.trees.size();
+		List<Future<Tree.Geometry>> minMaskTrees = new ArrayList<>();
+		List<Future<Tree.Geometry>> maxMaskTrees = new ArrayList<>();
 		for (int type = 0; type < numTreeTypes; type++) {
 			Parameters.SceneObjects.Tree params = parameters.sceneObjects.trees.get(type);
 			treesByType.add(new ArrayList<>());
-			minMasks.add((new Tree(type, params.minIterations)).getMask());
-			maxMasks.add((new Tree(type, params.maxIterations - 1)).getMask());
+			iterationsByType.add(new ArrayList<>());
+			// Pool indices -1 and -2 are used for the streams of the trees of the masks
+			minMaskTrees.add(generate(type, params.minIterations, -1));
+			maxMaskTrees.add(generate(type, params.maxIterations - 1, -2));
+		}
+		// Only the masks of these trees are needed, so they are never uploaded
+		for (int type = 0; type < numTreeTypes; type++) {
+			minMasks.add(addTimings(await(minMaskTrees.get(type))).getMask());
+			maxMasks.add(addTimings(await(maxMaskTrees.get(type))).getMask());
 		}
 	}
 
@@ -87,7 +113,42 @@ public class TreePool {
 //		return new Tree.Reference(type, index, new Vector3f(), model);
 //	}
 
+	private static Random getTreeRandom(int type, int poolIndex) {
+		return parameters.random.streams.get(RandomStreams.Subsystem.TREE, type, poolIndex);
+	}
+
+	private Future<Tree.Geometry> generate(int type, int iterations, int poolIndex) {
+		Random random = getTreeRandom(type, poolIndex);
+		if (cache == null) {
+			return pool.submit(() -> Tree.generate(type, iterations, random));
+		}
+		String key = cache.getKey(parameters.sceneObjects.trees.get(type), iterations, poolIndex,
+				parameters.random.streams.getSeed(RandomStreams.Subsystem.TREE, type, poolIndex));
+		return pool.submit(() -> cache.load(key).orElseGet(() -> {
+			Tree.Geometry geometry = Tree.generate(type, iterations, random);
+			cache.save(key, geometry);
+			return geometry;
+		}));
+	}
+
+	private static Tree.Geometry await(Future<Tree.Geometry> geometry) {
+		try {
+			return geometry.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted during tree generation", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
 	public Tree getTree(int type, int index) {
+		if (!pending.isEmpty()) {
+			finishGeneration();
+		}
 		return treesByType.get(type).get(index);
 	}
 
@@ -110,23 +171,55 @@ public class TreePool {
 	}
 
 	private List<Integer> getIndicesByTypeAndIterations(int type, int iterations) {
-		int maxI = treesByType.get(type).size();
+		List<Integer> iterationsOfType = iterationsByType.get(type);
 
-		return IntStream.range(0, maxI)
-				.filter(i -> treesByType.get(type).get(i).getNumIterations() == iterations)
+		return IntStream.range(0, iterationsOfType.size())
+				.filter(i -> iterationsOfType.get(i) == iterations)
 				.boxed()
 				.collect(Collectors.toList());
 	}
 
-	public int getTreeIndexWithIterations(int type, int iterations) {
+	/**
+	 * Returns the index of a tree of the type with the number of iterations, generating a new tree if there are fewer
+	 * than numPerIterationSize, otherwise choosing one using random
+	 */
+	public int getTreeIndexWithIterations(int type, int iterations, Random random) {
+		int index = requestTreeIndexWithIterations(type, iterations, random);
+		finishGeneration();
+		return index;
+	}
+
+	/**
+	 * As {@link #getTreeIndexWithIterations(int, int, Random)}, but a new tree is generated concurrently with those
+	 * requested after it, and is uploaded by {@link #finishGeneration()}
+	 */
+	public int requestTreeIndexWithIterations(int type, int iterations, Random random) {
 		Parameters.SceneObjects.Tree params = parameters.sceneObjects.trees.get(type);
 		List<Integer> treesOfIterationSize = getIndicesByTypeAndIterations(type, iterations);
 		if (treesOfIterationSize.size() < params.numPerIterationSize) {
-			treesByType.get(type).add(new Tree(type, iterations));
-			return treesByType.get(type).size() - 1;
+			int poolIndex = iterationsByType.get(type).size();
+			iterationsByType.get(type).add(iterations);
+			treesByType.get(type).add(null);
+			pending.add(new PendingTree(type, poolIndex, generate(type, iterations, poolIndex)));
+			return poolIndex;
+		}
+		return treesOfIterationSize.get(random.nextInt(treesOfIterationSize.size()));
+	}
+
+	/**
+	 * Uploads each requested tree once its geometry has been generated, so must be called on the render thread
+	 */
+	public void finishGeneration() {
+		for (PendingTree tree : pending) {
+			treesByType.get(tree.type).set(tree.poolIndex, new Tree(addTimings(await(tree.geometry))));
 		}
-		Random r = parameters.random.generator;
-		return treesOfIterationSize.get(r.nextInt(treesOfIterationSize.size()));
+		pending.clear();
+	}
+
+	private Tree.Geometry addTimings(Tree.Geometry geometry) {
+		meshTime += geometry.getMeshTime();
+		smoothingTime += geometry.getSmoothingTime();
+		return geometry;
 	}
 
 	public void printGenerationStatistics() {
@@ -136,5 +229,14 @@ public class TreePool {
 			String name = parameters.sceneObjects.trees.get(type).name;
 			System.out.println(numModels + " tree model(s) generated for tree: " + name);
 		}
+		System.out.printf("Tree meshes built in %.1f ms, of which %.1f ms smoothing normals%n",
+				meshTime / 1e6, smoothingTime / 1e6);
+	}
+
+	@AllArgsConstructor
+	private static class PendingTree {
+		private final int type;
+		private final int poolIndex;
+		private final Future<Tree.Geometry> geometry;
 	}
 }
@@ -23,37 +23,38 @@ package generation;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
-import java.util.Stack;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import lombok.AllArgsConstructor;
-import lombok.NoArgsConstructor;
+import lombok.Getter;
 import lombok.Setter;
 import lsystems.modules.Module;
 import lsystems.modules.ParametricExpressionModule;
-import lsystems.modules.ParametricValueModule;
+import lsystems.modules.ValuedModule;
 import modeldata.meshdata.Mesh;
-import modeldata.meshdata.Vertex;
+import modeldata.meshdata.MeshBuilder;
+import modeldata.meshdata.MeshData;
 import modeldata.meshdata.VertexAttribute;
-import org.apache.commons.lang3.ArrayUtils;
 import org.joml.AxisAngle4f;
 import org.joml.Matrix4f;
 import org.joml.Quaternionf;
-import org.joml.Vector2f;
 import org.joml.Vector3f;
 import org.joml.Vector4f;
 import params.ParameterLoader;
 import utils.MathsUtils;
-import utils.MeshUtils;
 import utils.VectorUtils;
 
 public class TurtleInterpreter {
 
-	private final Stack<Turtle> states = new Stack<>();
+	// Ideally there should be some way of mapping the texture across n (or 1/nth of) segments not stretching/squashing it to fit one?
+	private static final float TEX_X_SCALE = 2;
+	private static final float TEX_Y_SCALE = 2;
+
+	// Saved turtles, which are reused rather than copied for every branch
+	private final List<Turtle> states = new ArrayList<>();
+	private int depth = 0;
 	private final int numEdges;
 	@Setter
 	private float rotationAngle;
@@ -64,17 +65,51 @@ public class TurtleInterpreter {
 	private boolean firstScale = true;
 	private Vector4f tropism = null;
 	@Setter
-	private List<Mesh> subModels = new ArrayList<>();
+	private List<MeshData> subModels = new ArrayList<>();
 	private List<ModelReference> injectedModels = new ArrayList<>();
-
-	private Turtle turtle = new Turtle();
-	// List of lists so that discontinuities can be added to mesh
-	private List<List<Vector3f>> vertices;
+	// Stream for the placement of leaves, which should belong to the object being interpreted
+	@Setter
+	private Random random = ParameterLoader.getParameters().random.generator;
+
+	private final Turtle turtle;
+	// The skeleton of the branches, from which meshes with any number of edges are built. List of lists so that
+	// discontinuities can be added to mesh
+	private List<CrossSectionList> crossSections;
+	// Number of distinct cross-sections, which vertices of the same cross-section share for smooth shading
+	private int numPoints;
+	// Total nanoseconds spent building meshes, and the part of that spent smoothing their normals and tangents
+	@Getter
+	private long meshTime = 0;
+	@Getter
+	private long smoothingTime = 0;
+
+	// Scratch objects, so that interpreting a module does not allocate
+	private final Matrix4f model = new Matrix4f();
+	private final Matrix4f tropismModel = new Matrix4f();
+	private final Quaternionf rotation = new Quaternionf();
+	private final Quaternionf tropismRotation = new Quaternionf();
+	private final Quaternionf tropismTarget = new Quaternionf();
+	private final Quaternionf leafRotation = new Quaternionf();
+	private final Quaternionf stemRotation = new Quaternionf();
+	private final AxisAngle4f axisAngle = new AxisAngle4f();
+	private final Vector3f axis = new Vector3f();
+	private final Vector3f vector = new Vector3f();
+	private final Vector3f tropismVector = new Vector3f();
+	private final Vector3f pitchAxis = new Vector3f();
+	private final Vector3f stemAxis = new Vector3f();
+	private final Vector3f stemPosition = new Vector3f();
+	private final Vector3f stemHeading = new Vector3f();
+	private final Vector3f stemUp = new Vector3f();
+	private final Vector3f leafPosition = new Vector3f();
+	private final Vector3f leafHeading = new Vector3f();
+	private final Vector3f leafUp = new Vector3f();
+	private final CrossSection cross = new CrossSection();
 
 	public TurtleInterpreter(int numEdges) {
 		this.numEdges = numEdges;
 		this.stepSize = 1f;
 		this.rotationAngle = (float) Math.PI / 2;
+		this.turtle = new Turtle();
 	}
 
 	public TurtleInterpreter() {
@@ -82,62 +117,60 @@ public class TurtleInterpreter {
 	}
 
 	private void init() {
-		turtle.position = new Vector3f(0, 0, 0);
-		turtle.heading = new Vector3f(0, 1, 0);
-		turtle.up = new Vector3f(0, 0, 1);
-		this.vertices = new ArrayList<>();
-		vertices.add(new ArrayList<>());
-		turtle.prevCross = new ArrayList<>(getUnitCross());
-		// Sets prevCross elements to be different objects to unitCross()
-		updateCrossSection((new Matrix4f()).identity());
-	}
-
-	private List<Vector3f> getUnitCross() {
-		List<Vector3f> vertices = new ArrayList<>();
-		vertices.add(new Vector3f(0, 0, 0)); // Centre
-		for (int i = 0; i < numEdges; i++) {
-			double theta = 2 * Math.PI * i / numEdges;
-			vertices.add(new Vector3f((float) Math.sin(theta) / 2, 0, (float) Math.cos(theta) / 2));
-		}
-		return vertices;
+		turtle.position.set(0, 0, 0);
+		turtle.heading.set(0, 1, 0);
+		turtle.up.set(0, 0, 1);
+		this.crossSections = new ArrayList<>();
+		crossSections.add(new CrossSectionList());
+		this.numPoints = 0;
+		turtle.prevCross.setUnit();
+		turtle.prevCrossPoint = -1;
+		adjustForTropisms();
 	}
 
-	private void updateCrossSection(Matrix4f model) {
-		updateCrossSection(model, true);
+	private void rotateCrossSection(Quaternionf rotation) {
+		turtle.prevCross.rotateAround(rotation, turtle.position);
+		turtle.prevCrossPoint = -1;
 	}
 
-	private void updateCrossSection(Matrix4f model, boolean adjustForTropism) {
-		turtle.prevCross = turtle.prevCross.stream()
-				.map(Vector3f::new)
-				.map(model::transformPosition)
-				.collect(Collectors.toList());
-		if (adjustForTropism) {
-			adjustForTropisms();
-		}
-	}
-
-	private void addCrossSectionVertices(List<Vector3f> crossSection) {
+	private void addCrossSection(CrossSection crossSection) {
 		turtle.prevRadius = turtle.radius;
-		this.vertices.get(turtle.vertexListIndex).addAll(crossSection);
+		CrossSectionList list = this.crossSections.get(turtle.vertexListIndex);
+		if (turtle.radius == 0 || crossSection != turtle.prevCross) {
+			// A cross-section of zero radius is a single point, like a closed face
+			list.add(crossSection, numPoints++);
+		} else {
+			// A cross-section which has not moved since it was last added shares its points
+			if (turtle.prevCrossPoint < 0) {
+				turtle.prevCrossPoint = numPoints++;
+			}
+			list.add(crossSection, turtle.prevCrossPoint);
+		}
 	}
 
 	private void startNewVerticesSubList() {
-		this.vertices.add(new ArrayList<>());
-		this.turtle.vertexListIndex = this.vertices.size() - 1;
-		addCrossSectionVertices(turtle.prevCross);
+		this.crossSections.add(new CrossSectionList());
+		this.turtle.vertexListIndex = this.crossSections.size() - 1;
+		addCrossSection(turtle.prevCross);
 	}
 
 	private void moveForwards(float distance) {
 		if (distance == 0f) {
 			return;
 		}
-		Matrix4f model = (new Matrix4f()).translation(VectorUtils.multiply(distance, VectorUtils.normalize(turtle.heading)));
-		turtle.position = model.transformPosition(turtle.position);
-		updateCrossSection(model);
+		Vector3f translation = vector.set(turtle.heading).normalize().mul(distance);
+		turtle.position.add(translation);
+		turtle.prevCross.centre.add(translation);
+		turtle.prevCrossPoint = -1;
+		adjustForTropisms();
 
-		addCrossSectionVertices(turtle.prevCross);
+		addCrossSection(turtle.prevCross);
 	}
 
+	/**
+	 * Places each leaf by composing its rotations with the frame of the stem at the leaf, rather than moving the
+	 * turtle out to the leaf and back
+	 */
 	private void moveForwardsWithLeaves(float distance, int numLeaves, int index, float radialAngle, float liftAngle) {
 
 		liftAngle = -liftAngle;
@@ -153,91 +186,48 @@ public class TurtleInterpreter {
 		}
 
 		float step = distance / (numLeaves + 1);
-		Turtle leafTurtle = turtle.copy();
-		Vector3f pitchAxis = VectorUtils.cross(leafTurtle.up, leafTurtle.heading).normalize();
-		Vector3f stemAxis = VectorUtils.normalize(leafTurtle.heading);
-		Vector3f stepVector = VectorUtils.multiply(step, stemAxis);
-		Vector3f centre = new Vector3f(leafTurtle.prevCross.get(0));
+		pitchAxis.set(turtle.up).cross(turtle.heading).normalize();
+		stemAxis.set(turtle.heading).normalize();
+		stemPosition.set(turtle.position);
 
 		// Pitch up by liftAngle
-		Quaternionf rotation = new Quaternionf(new AxisAngle4f(liftAngle, pitchAxis));
-		Matrix4f model = (new Matrix4f()).identity().rotateAround(rotation,
-				leafTurtle.position.x,
-				leafTurtle.position.y,
-				leafTurtle.position.z);
-		leafTurtle.up = model.transformDirection(leafTurtle.up).normalize();
-		leafTurtle.heading = model.transformDirection(leafTurtle.heading).normalize();
+		leafRotation.set(axisAngle.set(liftAngle, pitchAxis));
+		leafRotation.transform(stemHeading.set(turtle.heading)).normalize();
+		leafRotation.transform(stemUp.set(turtle.up)).normalize();
 
-		Random r = ParameterLoader.getParameters().random.generator;
+		Random r = this.random;
 
 		for (int i = 0; i < numLeaves; i++) {
 			// Pitch up by offset
 			float liftOffset = (r.nextFloat() * liftAngle - liftAngle / 2) / 5;
-			rotation = new Quaternionf(new AxisAngle4f(liftOffset, pitchAxis));
-			model = (new Matrix4f()).identity().rotateAround(rotation,
-					leafTurtle.position.x,
-					leafTurtle.position.y,
-					leafTurtle.position.z);
-			leafTurtle.up = model.transformDirection(leafTurtle.up).normalize();
-			leafTurtle.heading = model.transformDirection(leafTurtle.heading).normalize();
-
-			// Move along by step
-			model = (new Matrix4f()).translation(stepVector);
-			leafTurtle.position = model.transformPosition(leafTurtle.position);
-			centre = model.transformPosition(centre);
-
-			// Move along by offset
+			leafRotation.set(axisAngle.set(liftOffset, pitchAxis));
+			leafRotation.transform(leafHeading.set(stemHeading)).normalize();
+			leafRotation.transform(leafUp.set(stemUp)).normalize();
+
+			// Move along by step, then by offset
+			stemPosition.fma(step, stemAxis);
 			float offsetStep = r.nextFloat() * step - step / 2;
-			model = (new Matrix4f()).translation(VectorUtils.multiply(offsetStep, stemAxis));
-			leafTurtle.position = model.transformPosition(leafTurtle.position);
-			centre = model.transformPosition(centre);
-
-			//  Move out by radius
-			float currentRadius = MathsUtils.lerp(leafTurtle.prevRadius, leafTurtle.radius, (float) (i + 1) / (numLeaves + 1));
-			model = (new Matrix4f()).translation(VectorUtils.multiply(currentRadius, leafTurtle.up));
-			leafTurtle.position = model.transformPosition(leafTurtle.position);
-
-			// Rotate around stem
-			rotation = new Quaternionf(new AxisAngle4f(radialAngle, stemAxis));
-			model = (new Matrix4f()).identity().rotateAround(rotation, centre.x, centre.y, centre.z);
-			leafTurtle.up = model.transformDirection(leafTurtle.up).normalize();
-			leafTurtle.heading = model.transformDirection(leafTurtle.heading).normalize();
-			leafTurtle.position = model.transformPosition(leafTurtle.position);
-
-			// Rotate by offset
+
+			// Move out by radius and rotate around stem, then by offset
+			float currentRadius = MathsUtils.lerp(turtle.prevRadius, turtle.radius, (float) (i + 1) / (numLeaves + 1));
 			float offsetAngle = r.nextFloat() * radialAngle - radialAngle / 2;
-			rotation = new Quaternionf(new AxisAngle4f(offsetAngle, stemAxis));
-			model = (new Matrix4f()).identity().rotateAround(rotation, centre.x, centre.y, centre.z);
-			leafTurtle.up = model.transformDirection(leafTurtle.up).normalize();
-			leafTurtle.heading = model.transformDirection(leafTurtle.heading).normalize();
-			leafTurtle.position = model.transformPosition(leafTurtle.position);
+			stemRotation.set(axisAngle.set(radialAngle + offsetAngle, stemAxis));
+			stemRotation.transform(leafPosition.set(leafUp).mul(currentRadius))
+					.add(stemPosition)
+					.fma(offsetStep, stemAxis);
+			stemRotation.transform(leafHeading).normalize();
+			stemRotation.transform(leafUp).normalize();
 
 			// Inject leaf model
-			injectedModels.add(new ModelReference(index, leafTurtle));
-
-			// Rotate back by offset
-			rotation = new Quaternionf(new AxisAngle4f(-offsetAngle, stemAxis));
-			model = (new Matrix4f()).identity().rotateAround(rotation, centre.x, centre.y, centre.z);
-			leafTurtle.up = model.transformDirection(leafTurtle.up).normalize();
-			leafTurtle.heading = model.transformDirection(leafTurtle.heading).normalize();
-			leafTurtle.position = model.transformPosition(leafTurtle.position);
-
-			//  Move back in by radius
-			model = (new Matrix4f()).translation(VectorUtils.multiply(-currentRadius, leafTurtle.up));
-			leafTurtle.position = model.transformPosition(leafTurtle.position);
-
-			// Move back by offset
-			model = (new Matrix4f()).translation(VectorUtils.multiply(-offsetStep, stemAxis));
-			leafTurtle.position = model.transformPosition(leafTurtle.position);
-			centre = model.transformPosition(centre);
-
-			rotation = new Quaternionf(new AxisAngle4f(-liftOffset, pitchAxis));
-			model = (new Matrix4f()).identity().rotateAround(rotation,
-					leafTurtle.position.x,
-					leafTurtle.position.y,
-					leafTurtle.position.z);
-			leafTurtle.up = model.transformDirection(leafTurtle.up).normalize();
-			leafTurtle.heading = model.transformDirection(leafTurtle.heading).normalize();
+			injectedModels.add(new ModelReference(
+					new Vector3f(leafPosition), new Vector3f(leafHeading), new Vector3f(leafUp), index));
+
+			// The next leaf is rotated around the stem from this one, without the offsets
+			stemRotation.set(axisAngle.set(radialAngle, stemAxis));
+			leafRotation.set(axisAngle.set(-liftOffset, pitchAxis)).mul(stemRotation);
+			leafRotation.mul(rotation.set(axisAngle.set(liftOffset, pitchAxis)));
+			leafRotation.transform(stemHeading).normalize();
+			leafRotation.transform(stemUp).normalize();
 		}
 		moveForwards(distance);
 	}
@@ -248,52 +238,49 @@ public class TurtleInterpreter {
 		} else if (angle < -Math.PI) {
 			angle = (float) (2 * Math.PI + angle);
 		}
-		Quaternionf rotation = new Quaternionf(new AxisAngle4f(angle, axis));
-		Matrix4f model = (new Matrix4f()).identity().rotateAround(rotation,
+		rotation.set(axisAngle.set(angle, axis));
+		Matrix4f model = this.model.identity().rotateAround(rotation,
 				turtle.position.x,
 				turtle.position.y,
 				turtle.position.z);
-		turtle.up = model.transformDirection(turtle.up).normalize();
-		turtle.heading = model.transformDirection(turtle.heading).normalize();
+		model.transformDirection(turtle.up).normalize();
+		model.transformDirection(turtle.heading).normalize();
 
 		// Prevents twisting along prism axis
 		if (!axis.equals(turtle.heading)) {
-			updateCrossSection(model);
+			rotateCrossSection(rotation);
+			adjustForTropisms();
 		}
 
 	}
 
 	private void turnToVertical() {
-		Vector3f up = new Vector3f(0, 1, 0);
-		Vector3f left = VectorUtils.cross(up, turtle.heading).normalize();
+		Vector3f left = axis.set(0, 1, 0).cross(turtle.heading).normalize();
 
-		turtle.up = VectorUtils.cross(turtle.heading, left).normalize();
+		turtle.up.set(turtle.heading).cross(left).normalize();
 //		addCrossSectionVertices(turtle.prevCross);
 	}
 
 	private void closeFace() {
-		addCrossSectionVertices(Collections.nCopies(numEdges + 1, turtle.position)
-				.stream()
-				.map(v -> new Vector3f(v.x, v.y, v.z))
-				.collect(Collectors.toList()));
+		turtle.prevRadius = turtle.radius;
+		cross.set(turtle.prevCross);
+		cross.centre.set(turtle.position);
+		cross.radius = 0;
+		this.crossSections.get(turtle.vertexListIndex).add(cross, numPoints++);
 	}
 
 
 	private void scale(float radius) {
 		float oldRadius = turtle.radius;
 		turtle.radius = radius;
-		Matrix4f model = new Matrix4f().scaleAround(
-				radius / oldRadius,
-				turtle.position.x,
-				turtle.position.y,
-				turtle.position.z);
-		updateCrossSection(model);
+		turtle.prevCross.scaleAround(radius / oldRadius, turtle.position);
+		turtle.prevCrossPoint = -1;
+		adjustForTropisms();
 
 		if (firstScale) {
-			addCrossSectionVertices(getUnitCross().stream()
-					.map(Vector3f::new)
-					.map(model::transformPosition)
-					.collect(Collectors.toList()));
+			cross.setUnit();
+			cross.scaleAround(radius / oldRadius, turtle.position);
+			addCrossSection(cross);
 			firstScale = false;
 		}
 	}
@@ -303,19 +290,19 @@ public class TurtleInterpreter {
 		if (tropism == null) {
 			return;
 		}
-		Vector3f tropismVector = new Vector3f(tropism.x, tropism.y, tropism.z);
+		Vector3f tropismVector = this.tropismVector.set(tropism.x, tropism.y, tropism.z);
 		float elasticity = tropism.w;
-		float angle = elasticity * VectorUtils.cross(turtle.heading, tropismVector).length();
-		Quaternionf rotation = new Quaternionf().identity().slerp(
-				new Quaternionf().rotateTo(turtle.heading, tropismVector), angle / turtle.heading.angle(tropismVector));
+		float angle = elasticity * vector.set(turtle.heading).cross(tropismVector).length();
+		Quaternionf rotation = tropismRotation.identity().slerp(
+				tropismTarget.identity().rotateTo(turtle.heading, tropismVector), angle / turtle.heading.angle(tropismVector));
 
-		Matrix4f model = (new Matrix4f()).identity().rotateAround(rotation,
+		Matrix4f model = tropismModel.identity().rotateAround(rotation,
 				turtle.position.x,
 				turtle.position.y,
 				turtle.position.z);
-		turtle.up = model.transformDirection(turtle.up).normalize();
-		turtle.heading = model.transformDirection(turtle.heading).normalize();
-		updateCrossSection(model, false);
+		model.transformDirection(turtle.up).normalize();
+		model.transformDirection(turtle.heading).normalize();
+		rotateCrossSection(rotation);
 	}
 
 	private void throwInvalidTypeException(Module module) throws RuntimeException {
@@ -325,17 +312,14 @@ public class TurtleInterpreter {
 	}
 
 	private float getFirstValueFromParametricModule(Module module) {
-		return getAllValuesFromParametricModule(module).get(0);
+		return getValueFromParametricModule(module, 0);
 	}
 
-	private List<Float> getAllValuesFromParametricModule(Module module) {
-		if (module instanceof ParametricValueModule) {
-			return ((ParametricValueModule) module).getValues();
-		} else {
+	private float getValueFromParametricModule(Module module, int index) {
+		if (!(module instanceof ValuedModule)) {
 			throwInvalidTypeException(module);
 		}
-		// Will never be reached as throwInvalidTypeException will throw first
-		throw new RuntimeException();
+		return ((ValuedModule) module).getValue(index);
 	}
 
 	private void parseF(Module module) {
@@ -345,16 +329,15 @@ public class TurtleInterpreter {
 				moveForwards(distance);
 			}
 			case 5 -> {
-				List<Float> args = getAllValuesFromParametricModule(module);
-				float distance = args.get(0);
-				int numLeaves = args.get(1).intValue();
+				float distance = getValueFromParametricModule(module, 0);
+				int numLeaves = (int) getValueFromParametricModule(module, 1);
 				if (numLeaves <= 0) {
 					moveForwards(distance);
 					return;
 				}
-				int index = args.get(2).intValue();
-				float radialAngle = args.get(3);
-				float liftAngle = args.get(4);
+				int index = (int) getValueFromParametricModule(module, 2);
+				float radialAngle = getValueFromParametricModule(module, 3);
+				float liftAngle = getValueFromParametricModule(module, 4);
 				if (index >= subModels.size()) {
 					throw new RuntimeException("Referenced model ID: " + index + " is not in subModels list");
 				}
@@ -375,11 +358,11 @@ public class TurtleInterpreter {
 					throw new RuntimeException("Behaviour undefined: Non-zero single parameter in T module " + module.toString());
 				}
 			}
-			case 4 -> {
-				List<Float> vals = getAllValuesFromParametricModule(module);
-				float[] floats = ArrayUtils.toPrimitive(vals.toArray(new Float[0]));
-				this.tropism = new Vector4f(floats);
-			}
+			case 4 -> this.tropism = new Vector4f(
+					getValueFromParametricModule(module, 0),
+					getValueFromParametricModule(module, 1),
+					getValueFromParametricModule(module, 2),
+					getValueFromParametricModule(module, 3));
 			default -> throw new RuntimeException("Undefined number of parameters in: " + module.toString());
 		}
 	}
@@ -414,118 +397,218 @@ public class TurtleInterpreter {
 		}
 	}
 
-	public List<List<Vector3f>> interpretInstructions(List<Module> instructions) {
+	public void interpretInstructions(Iterable<? extends Module> instructions) {
 		init();
 		for (Module module : instructions) {
-			char name = module.getName();
-			if (ignored.contains(name)) {
-				continue;
-			}
-			if (module instanceof ParametricExpressionModule) {
-				throw new RuntimeException("ParametricExpressionModule present and not ignored in instructions: " + module.toString());
-			}
-			switch (name) {
-				case 'F' -> parseF(module);
-				case 'T' -> parseT(module);
-				case '+' -> parseRotation(module, turtle.up);
-				case '-' -> turn(-this.rotationAngle, turtle.up);
-				case '&' -> parseRotation(module, VectorUtils.cross(turtle.up, turtle.heading).normalize());
-				case '/' -> parseRotation(module, turtle.heading);
-				case '$' -> turnToVertical();
-				case '%' -> closeFace();
-				case '[' -> {
-					states.push(this.turtle.copy());
-					startNewVerticesSubList();
+			interpret(module);
+		}
+	}
+
+	private void interpret(Module module) {
+		char name = module.getName();
+		if (ignored.contains(name)) {
+			return;
+		}
+		if (module instanceof ParametricExpressionModule) {
+			throw new RuntimeException("ParametricExpressionModule present and not ignored in instructions: " + module.toString());
+		}
+		switch (name) {
+			case 'F' -> parseF(module);
+			case 'T' -> parseT(module);
+			case '+' -> parseRotation(module, turtle.up);
+			case '-' -> turn(-this.rotationAngle, turtle.up);
+			case '&' -> parseRotation(module, axis.set(turtle.up).cross(turtle.heading).normalize());
+			case '/' -> parseRotation(module, turtle.heading);
+			case '$' -> turnToVertical();
+			case '%' -> closeFace();
+			case '[' -> {
+				if (depth == states.size()) {
+					states.add(new Turtle());
 				}
-				case ']' -> turtle = states.pop();
-				case '!' -> parseEx(module);
-				case '~' -> parseTilde(module);
-				default -> throw new RuntimeException("Unable to interpret module: " + module.toString() +
-						". Is it missing from TurtleInterpreter.ignored?");
+				states.get(depth++).set(this.turtle);
+				startNewVerticesSubList();
 			}
+			case ']' -> turtle.set(states.get(--depth));
+			case '!' -> parseEx(module);
+			case '~' -> parseTilde(module);
+			default -> throw new RuntimeException("Unable to interpret module: " + module.toString() +
+					". Is it missing from TurtleInterpreter.ignored?");
 		}
-		return this.vertices;
 	}
 
 	// Call after interpretInstructions
 	public Mesh getMesh() {
-		List<List<Integer>> faces = new ArrayList<>();
-
-		// Sides
-		for (int i = 1; i < numEdges + 1; i++) {
-			int j = (i % numEdges) + 1;
-			faces.add(List.of(i, j, j + numEdges + 1, i + numEdges + 1));
-		}
-
-		List<Vertex> vertexData = new ArrayList<>();
-		HashMap<Vector3f, Vector3f> normalSum = new HashMap<>();
-		HashMap<Vector3f, Vector3f> tangentSum = new HashMap<>();
-
-		for (List<Vector3f> verts : vertices) {
-			for (int i = 0; i < (verts.size() - (numEdges + 1)) / (numEdges + 1); i++) {
-				for (List<Integer> face : faces) {
-					int finalI = i;
-					List<Integer> f = face.stream().map(n -> n + (numEdges + 1) * finalI).collect(Collectors.toList());
-
-					int bottomRight = face.get(0);
+		return new Mesh(getMeshData());
+	}
 
-					// Ideally there should be some way of mapping the texture across n (or 1/nth of) segments not stretching/squashing it to fit one?
+	// Call after interpretInstructions
+	public MeshData getMeshData() {
+		return getMeshData(numEdges);
+	}
 
-					final float texXScale = 2;
-					final float texYScale = 2;
+	/**
+	 * The mesh of the branches with the number of edges around each cross-section, which is built from the skeleton of
+	 * the last interpretation so that meshes for any number of levels of detail can be built from a single one
+	 */
+	// Call after interpretInstructions
+	public MeshData getMeshData(int numEdges) {
+		long start = System.nanoTime();
+		int numSegments = crossSections.stream().mapToInt(c -> c.size() - 1).sum();
+		int numVertices = numSegments * numEdges * 4;
+		MeshBuilder builder = new MeshBuilder(
+				List.of(VertexAttribute.POSITION, VertexAttribute.NORMAL, VertexAttribute.TANGENT, VertexAttribute.TEXTURE),
+				numVertices,
+				numSegments * numEdges * 6);
+
+		// Directions of the edge vertices of the unit cross-section, as x and z
+		float[] unitEdges = new float[numEdges * 2];
+		for (int i = 0; i < numEdges; i++) {
+			double theta = 2 * Math.PI * i / numEdges;
+			unitEdges[i * 2] = (float) Math.sin(theta);
+			unitEdges[i * 2 + 1] = (float) Math.cos(theta);
+		}
+		// Sums of the normals and tangents of the faces at each point, for smooth shading. Each edge vertex of each
+		// cross-section is a point, except for cross-sections of zero radius which are a single point
+		float[] normalSums = new float[numPoints * numEdges * 3];
+		float[] tangentSums = new float[numPoints * numEdges * 3];
+		// The point of each vertex of the mesh
+		int[] vertexPoints = new int[numVertices];
+		// Edge vertices of the cross-sections at the start and end of a segment
+		float[] startEdges = new float[numEdges * 3];
+		float[] endEdges = new float[numEdges * 3];
+		int[] corners = new int[4];
+		Vector3f[] cornerPositions = {new Vector3f(), new Vector3f(), new Vector3f(), new Vector3f()};
+		Vector3f a1 = new Vector3f();
+		Vector3f a2 = new Vector3f();
+		Vector3f norm = new Vector3f();
+		Quaternionf orientation = new Quaternionf();
+
+		for (CrossSectionList list : crossSections) {
+			if (list.size() > 1) {
+				list.getEdges(0, unitEdges, endEdges, norm, orientation);
+			}
+			for (int segment = 0; segment < list.size() - 1; segment++) {
+				float[] edges = startEdges;
+				startEdges = endEdges;
+				endEdges = edges;
+				list.getEdges(segment + 1, unitEdges, endEdges, norm, orientation);
+				// Sides
+				for (int i = 0; i < numEdges; i++) {
+					int j = (i + 1) % numEdges;
+					// Corners of the face, as the index of a cross-section in the list and an edge vertex of it
+					corners[0] = i;
+					corners[1] = j;
+					corners[2] = j + numEdges;
+					corners[3] = i + numEdges;
+					for (int n = 0; n < 4; n++) {
+						float[] cornerEdges = corners[n] < numEdges ? startEdges : endEdges;
+						int edge = corners[n] % numEdges * 3;
+						cornerPositions[n].set(cornerEdges[edge], cornerEdges[edge + 1], cornerEdges[edge + 2]);
+					}
 
 					// Only works for rectangular faces
-					List<Vector2f> textureCoords = List.of(
-							new Vector2f((float) (bottomRight - 1) / numEdges * texXScale, 0),
-							new Vector2f((float) bottomRight / numEdges * texXScale, 0),
-							new Vector2f((float) bottomRight / numEdges * texXScale, texYScale),
-							new Vector2f((float) (bottomRight - 1) / numEdges * texXScale, texYScale)
-					);
-
-					// Calculate normals
-					int s = face.size();
-					for (int n = 0; n < s; n++) {
-						int i0 = f.get(n);
-						Vector3f v = verts.get(i0);
-						int i1 = f.get((n + 1) % s);
-						int i2 = f.get((n + (s - 1)) % s);
-						Vector3f a1 = VectorUtils.subtract(verts.get(i1), v).normalize();
-						Vector3f a2 = VectorUtils.subtract(verts.get(i2), v).normalize();
-						Vector3f norm = VectorUtils.cross(a2, a1).normalize().negate();
-						normalSum.putIfAbsent(v, norm);
-						normalSum.computeIfPresent(v, (key, val) -> VectorUtils.add(val, norm));
+					float texLeft = (float) i / numEdges * TEX_X_SCALE;
+					float texRight = (float) (i + 1) / numEdges * TEX_X_SCALE;
+					int vertex = builder.getNumberOfVertices();
+					for (int n = 0; n < 4; n++) {
+						Vector3f v = cornerPositions[n];
+						a1.set(cornerPositions[(n + 1) % 4]).sub(v).normalize();
+						a2.set(cornerPositions[(n + 3) % 4]).sub(v).normalize();
+						norm.set(a2).cross(a1).normalize().negate();
+						int point = list.getPoint(corners[n] < numEdges ? segment : segment + 1, corners[n] % numEdges,
+								numEdges);
+						vertexPoints[vertex + n] = point;
+						addToSum(normalSums, point, norm);
 						// Only works for rectangular faces
-						Vector3f tang = a1;
-						tangentSum.putIfAbsent(v, tang);
-						tangentSum.computeIfPresent(v, (key, val) -> VectorUtils.add(val, tang));
-						vertexData.add(new Vertex(
-								new Vector3f(v.x, v.y, v.z),
-								new Vector3f(norm.x, norm.y, norm.z),
-								new Vector3f(tang.x, tang.y, tang.z),
-								textureCoords.get(n)));
+						addToSum(tangentSums, point, a1);
+						builder.vertex()
+								.position(v)
+								.normal(norm)
+								.tangent(a1)
+								.texCoord(n == 0 || n == 3 ? texLeft : texRight, n < 2 ? 0 : TEX_Y_SCALE);
 					}
+					builder.triangle(vertex, vertex + 1, vertex + 2).triangle(vertex + 2, vertex + 3, vertex);
 				}
 			}
 		}
 
-		for (Vertex vertex : vertexData) {
-			vertex.setNormal(normalSum.get(vertex.getPosition()).normalize());
-			vertex.setTangent(tangentSum.get(vertex.getPosition()).normalize());
+		long smoothingStart = System.nanoTime();
+		normalize(normalSums);
+		normalize(tangentSums);
+		for (int i = 0; i < numVertices; i++) {
+			int point = vertexPoints[i] * 3;
+			builder.setNormal(i, norm.set(normalSums[point], normalSums[point + 1], normalSums[point + 2]));
+			builder.setTangent(i, a1.set(tangentSums[point], tangentSums[point + 1], tangentSums[point + 2]));
 		}
+		MeshData data = builder.build();
 
-		List<Integer> prismIndices = new ArrayList<>();
-		// sides
+		long end = System.nanoTime();
+		smoothingTime += end - smoothingStart;
+		meshTime += end - start;
+		return data;
+	}
+
+	/**
+	 * A cylinder of unit radius from y = 0 to y = 1, textured as the segments of {@link #getMeshData()}, which is
+	 * drawn for each record of {@link #getSegmentInstances()}
+	 */
+	public static MeshData getSegmentModel(int numEdges) {
+		MeshBuilder builder = new MeshBuilder(
+				List.of(VertexAttribute.POSITION, VertexAttribute.NORMAL, VertexAttribute.TANGENT, VertexAttribute.TEXTURE),
+				(numEdges + 1) * 2,
+				numEdges * 6);
+		// The first edge is repeated at the end, so that the texture wraps around
+		for (int i = 0; i < numEdges + 1; i++) {
+			double theta = 2 * Math.PI * i / numEdges;
+			float x = (float) Math.sin(theta);
+			float z = (float) Math.cos(theta);
+			float u = (float) i / numEdges * TEX_X_SCALE;
+			builder.vertex().position(x, 0, z).normal(x, 0, z).tangent(z, 0, -x).texCoord(u, 0);
+			builder.vertex().position(x, 1, z).normal(x, 0, z).tangent(z, 0, -x).texCoord(u, TEX_Y_SCALE);
+		}
 		for (int i = 0; i < numEdges; i++) {
-			int finalI = i;
-			prismIndices.addAll(List.of(0, 1, 2, 2, 3, 0).stream().map(n -> n + 4 * finalI).collect(Collectors.toList()));
+			int vertex = i * 2;
+			builder.triangle(vertex, vertex + 2, vertex + 3).triangle(vertex + 3, vertex + 1, vertex);
 		}
+		return builder.build();
+	}
 
-		int numSegments = (vertices.stream().mapToInt(List::size).sum() - (numEdges + 1)) / (numEdges + 1);
-		int[] indices = IntStream.range(0, numSegments).boxed().flatMapToInt(
-				i -> prismIndices.stream().mapToInt(n -> n + (4 * numEdges) * i)
-		).toArray();
+	/**
+	 * Each segment of the branches as a record of {@link Mesh#SEGMENT_RECORD_SIZE} floats, for drawing instances of
+	 * {@link #getSegmentModel(int)} rather than building the mesh of {@link #getMeshData()}. A record is the centre,
+	 * radius and orientation (x, y, z, w) of the cross-section at the start of the segment, followed by those at its
+	 * end
+	 */
+	// Call after interpretInstructions
+	public float[] getSegmentInstances() {
+		int numSegments = crossSections.stream().mapToInt(c -> c.size() - 1).sum();
+		float[] segments = new float[numSegments * Mesh.SEGMENT_RECORD_SIZE];
+		int record = 0;
+		for (CrossSectionList list : crossSections) {
+			for (int segment = 0; segment < list.size() - 1; segment++) {
+				// Consecutive cross-sections are stored as the two halves of a record
+				list.getRecords(segment, 2, segments, record);
+				record += Mesh.SEGMENT_RECORD_SIZE;
+			}
+		}
+		return segments;
+	}
 
-		return new Mesh(vertexData, indices, List.of(VertexAttribute.POSITION, VertexAttribute.NORMAL, VertexAttribute.TANGENT, VertexAttribute.TEXTURE));
+	private static void addToSum(float[] sums, int point, Vector3f value) {
+		sums[point * 3] += value.x;
+		sums[point * 3 + 1] += value.y;
+		sums[point * 3 + 2] += value.z;
+	}
+
+	private static void normalize(float[] vectors) {
+		for (int i = 0; i < vectors.length; i += 3) {
+			float length = (float) Math.sqrt(vectors[i] * vectors[i] + vectors[i + 1] * vectors[i + 1] + vectors[i + 2] * vectors[i + 2]);
+			if (length > 0) {
+				vectors[i] /= length;
+				vectors[i + 1] /= length;
+				vectors[i + 2] /= length;
+			}
+		}
 	}
 
 	// Call after interpretInstructions
@@ -551,76 +634,156 @@ public class TurtleInterpreter {
 		this.injectedModels = newRefs;
 	}
 
-	// Call after interpretInstructions
-	public List<Mesh> getCombinedSubModelMeshes() {
-
-		List<Mesh> meshes = new ArrayList<>();
-
-		for (int i = 0; i < subModels.size(); i++) {
-			int finalI = i;
-			final Mesh model = subModels.get(finalI);
-			final List<ModelReference> refs = injectedModels.stream()
-					.filter(r -> r.index == finalI)
-					.collect(Collectors.toList());
-			final List<Vertex> vertices = model.getVertices();
-			final int[] indices = model.getIndices();
-			int numVertices = vertices.size();
-
-			List<Vertex> combinedVertices = new ArrayList<>();
-			List<Integer> combinedIndices = new ArrayList<>();
-			for (int j = 0; j < refs.size(); j++) {
-				int finalJ = j;
-				ModelReference ref = refs.get(j);
-				Vector3f X = new Vector3f(1, 0, 0);
-				List<Vertex> transformedVertices = MeshUtils.transform(
-						vertices,
-						new Matrix4f()
-								.translate(ref.position)
-								.rotate(new Quaternionf()
-										.rotateTo(X, ref.heading)
-										.rotateAxis((new Vector3f(0, 1, 0).angleSigned(ref.up, X)), X)
-								));
-				combinedVertices.addAll(transformedVertices);
-				combinedIndices.addAll(Arrays.stream(indices)
-						.map(n -> n + finalJ * numVertices)
-						.boxed()
-						.collect(Collectors.toList()));
+	/**
+	 * Instances for drawing the sub model with instancing, which packs a record for each injection of it: its position,
+	 * then its orientation as a quaternion (x, y, z, w), then its scale. This is the layout expected by
+	 * {@link Mesh#setInstances(float[])}.
+	 * Call after interpretInstructions
+	 */
+	public float[] getSubModelInstances(int index) {
+		final Vector3f X = new Vector3f(1, 0, 0);
+		final Vector3f Y = new Vector3f(0, 1, 0);
+		Quaternionf rotation = new Quaternionf();
+		int count = (int) injectedModels.stream().filter(r -> r.index == index).count();
+		float[] instances = new float[count * Mesh.INSTANCE_RECORD_SIZE];
+		int i = 0;
+		for (ModelReference ref : injectedModels) {
+			if (ref.index != index) {
+				continue;
 			}
-			int[] combinedIndicesArray = ArrayUtils.toPrimitive(combinedIndices.toArray(new Integer[0]));
-			meshes.add(new Mesh(
-					combinedVertices,
-					combinedIndicesArray,
-					model.getVertexAttributes()));
+			rotation.identity()
+					.rotateTo(X, ref.heading)
+					.rotateAxis(Y.angleSigned(ref.up, X), X);
+			instances[i++] = ref.position.x;
+			instances[i++] = ref.position.y;
+			instances[i++] = ref.position.z;
+			instances[i++] = rotation.x;
+			instances[i++] = rotation.y;
+			instances[i++] = rotation.z;
+			instances[i++] = rotation.w;
+			// Sub models are scaled before they are injected
+			instances[i++] = 1;
 		}
-		return meshes;
+		return instances;
 	}
 
 	public Vector3f getTurtleHeading() {
 		return turtle.heading;
 	}
 
-	@NoArgsConstructor
-	@AllArgsConstructor
 	private static class Turtle {
-		private Vector3f position;
-		private Vector3f heading;
-		private Vector3f up;
-		private List<Vector3f> prevCross;
+		private final Vector3f position = new Vector3f();
+		private final Vector3f heading = new Vector3f();
+		private final Vector3f up = new Vector3f();
+		private final CrossSection prevCross = new CrossSection();
 		private float radius = 0.5f;
 		private float prevRadius = 0.5f;
 		private int vertexListIndex = 0;
+		// Point of the previous cross-section if it has been added and not moved since, otherwise -1
+		private int prevCrossPoint = -1;
+
+		void set(Turtle turtle) {
+			this.position.set(turtle.position);
+			this.heading.set(turtle.heading);
+			this.up.set(turtle.up);
+			this.prevCross.set(turtle.prevCross);
+			this.radius = turtle.radius;
+			this.prevRadius = turtle.prevRadius;
+			this.vertexListIndex = turtle.vertexListIndex;
+			this.prevCrossPoint = turtle.prevCrossPoint;
+		}
+	}
+
+	/**
+	 * A cross-section of a branch, whose edge vertices are those of the unit cross-section (a circle in the xz plane)
+	 * rotated by the orientation, scaled by the radius and moved to the centre
+	 */
+	private static class CrossSection {
+		private final Vector3f centre = new Vector3f();
+		private final Quaternionf orientation = new Quaternionf();
+		private float radius;
+
+		// Of unit diameter, at the origin
+		void setUnit() {
+			centre.zero();
+			orientation.identity();
+			radius = 0.5f;
+		}
+
+		void set(CrossSection crossSection) {
+			centre.set(crossSection.centre);
+			orientation.set(crossSection.orientation);
+			radius = crossSection.radius;
+		}
+
+		void rotateAround(Quaternionf rotation, Vector3f pivot) {
+			rotation.transform(centre.sub(pivot)).add(pivot);
+			rotation.mul(orientation, orientation).normalize();
+		}
+
+		void scaleAround(float scale, Vector3f pivot) {
+			centre.sub(pivot).mul(scale).add(pivot);
+			radius *= scale;
+		}
+	}
+
+	/**
+	 * Growable list of cross-sections along a branch, each stored as its centre, radius and orientation (x, y, z, w),
+	 * along with the point on the surface of each
+	 */
+	private static class CrossSectionList {
+		private static final int SIZE = Mesh.SEGMENT_RECORD_SIZE / 2;
+		private float[] records = new float[SIZE * 8];
+		private int[] points = new int[8];
+		private int size = 0;
+
+		void add(CrossSection crossSection, int point) {
+			if (size == points.length) {
+				records = Arrays.copyOf(records, records.length * 2);
+				points = Arrays.copyOf(points, points.length * 2);
+			}
+			int i = size * SIZE;
+			records[i] = crossSection.centre.x;
+			records[i + 1] = crossSection.centre.y;
+			records[i + 2] = crossSection.centre.z;
+			records[i + 3] = crossSection.radius;
+			records[i + 4] = crossSection.orientation.x;
+			records[i + 5] = crossSection.orientation.y;
+			records[i + 6] = crossSection.orientation.z;
+			records[i + 7] = crossSection.orientation.w;
+			points[size] = point;
+			size++;
+		}
+
+		int size() {
+			return size;
+		}
+
+		/**
+		 * Sets the positions of the edge vertices of a cross-section, given the directions of those of the unit
+		 * cross-section as x and z
+		 */
+		void getEdges(int index, float[] unitEdges, float[] dest, Vector3f direction, Quaternionf orientation) {
+			int i = index * SIZE;
+			float radius = records[i + 3];
+			orientation.set(records[i + 4], records[i + 5], records[i + 6], records[i + 7]);
+			for (int edge = 0; edge < unitEdges.length / 2; edge++) {
+				Vector3f scratch = orientation.transform(direction.set(unitEdges[edge * 2], 0, unitEdges[edge * 2 + 1]));
+				dest[edge * 3] = records[i] + radius * scratch.x;
+				dest[edge * 3 + 1] = records[i + 1] + radius * scratch.y;
+				dest[edge * 3 + 2] = records[i + 2] + radius * scratch.z;
+			}
+		}
+
+		/**
+		 * The point of an edge vertex of a cross-section, for a mesh with the number of edges
+		 */
+		int getPoint(int index, int edge, int numEdges) {
+			return points[index] * numEdges + (records[index * SIZE + 3] == 0 ? 0 : edge);
+		}
 
-		public Turtle copy() {
-			return new Turtle(
-					new Vector3f(this.position),
-					new Vector3f(this.heading),
-					new Vector3f(this.up),
-					this.prevCross.stream()
-							.map(Vector3f::new)
-							.collect(Collectors.toList()),
-					this.radius,
-					this.prevRadius,
-					this.vertexListIndex);
+		void getRecords(int index, int count, float[] dest, int offset) {
+			System.arraycopy(records, index * SIZE, dest, offset, count * SIZE);
 		}
 	}
 
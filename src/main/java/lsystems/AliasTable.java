@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package lsystems;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Chooses one of a group of productions with the same predecessor in proportion to their probabilities, in constant
+ * time using a single random number (Vose's alias method)
+ */
+class AliasTable {
+
+	private final List<Production> productions;
+	// Probability of choosing column i itself rather than its alias
+	private final double[] probabilities;
+	private final int[] aliases;
+
+	AliasTable(List<Production> productions) {
+		int n = productions.size();
+		this.productions = productions;
+		this.probabilities = new double[n];
+		this.aliases = new int[n];
+
+		double sum = productions.stream().mapToDouble(Production::getProbability).sum();
+		double[] scaled = new double[n];
+		Deque<Integer> small = new ArrayDeque<>();
+		Deque<Integer> large = new ArrayDeque<>();
+		for (int i = 0; i < n; i++) {
+			scaled[i] = productions.get(i).getProbability() * n / sum;
+			(scaled[i] < 1 ? small : large).push(i);
+		}
+		while (!small.isEmpty() && !large.isEmpty()) {
+			int less = small.pop();
+			int more = large.pop();
+			probabilities[less] = scaled[less];
+			aliases[less] = more;
+			scaled[more] = scaled[more] + scaled[less] - 1;
+			(scaled[more] < 1 ? small : large).push(more);
+		}
+		// Remaining columns are full, up to rounding error
+		for (Deque<Integer> remaining : List.of(small, large)) {
+			while (!remaining.isEmpty()) {
+				int i = remaining.pop();
+				probabilities[i] = 1;
+				aliases[i] = i;
+			}
+		}
+	}
+
+	int size() {
+		return productions.size();
+	}
+
+	Production sample(Random random) {
+		return productions.get(sampleIndex(random));
+	}
+
+	/**
+	 * Index in the group of the production chosen by a single draw from random
+	 */
+	int sampleIndex(Random random) {
+		double u = random.nextDouble() * probabilities.length;
+		int column = (int) u;
+		return u - column < probabilities[column] ? column : aliases[column];
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package lsystems;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import lsystems.modules.CharModule;
+import lsystems.modules.Module;
+import lsystems.modules.ParametricValueModule;
+import lsystems.modules.ValuedModule;
+
+/**
+ * L-system string stored as a symbol array with a parallel pool of parameter values, rather than as a list of module
+ * objects. Modules are only materialised when accessed through the {@link java.util.List} interface; {@link #view()}
+ * iterates over the string without creating any modules.
+ */
+public class CompactState extends AbstractList<Module> {
+
+	// Arity used to mark a CharModule, as opposed to a ParametricValueModule with no values
+	private static final short CHAR_MODULE = -1;
+
+	private char[] symbols;
+	private short[] arities;
+	private int[] offsets;
+	private float[] params;
+	private int size = 0;
+	private int paramsSize = 0;
+	private ModuleView cursor = null;
+
+	public CompactState() {
+		this(16, 16);
+	}
+
+	public CompactState(int capacity, int paramCapacity) {
+		capacity = Math.max(capacity, 1);
+		this.symbols = new char[capacity];
+		this.arities = new short[capacity];
+		this.offsets = new int[capacity];
+		this.params = new float[Math.max(paramCapacity, 1)];
+	}
+
+	public CompactState(List<? extends Module> modules) {
+		this(modules.size(), 2 * modules.size());
+		for (Module module : modules) {
+			add(module);
+		}
+	}
+
+	private void ensureCapacity(int modules, int values) {
+		if (size + modules > symbols.length) {
+			int capacity = Math.max(symbols.length * 2, size + modules);
+			symbols = Arrays.copyOf(symbols, capacity);
+			arities = Arrays.copyOf(arities, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+		}
+		if (paramsSize + values > params.length) {
+			params = Arrays.copyOf(params, Math.max(params.length * 2, paramsSize + values));
+		}
+	}
+
+	public void addChar(char symbol) {
+		ensureCapacity(1, 0);
+		symbols[size] = symbol;
+		arities[size] = CHAR_MODULE;
+		offsets[size] = paramsSize;
+		size++;
+	}
+
+	public void addParametric(char symbol, float... values) {
+		addParametric(symbol, values, 0, values.length);
+	}
+
+	public void addParametric(char symbol, float[] values, int from, int count) {
+		ensureCapacity(1, count);
+		symbols[size] = symbol;
+		arities[size] = (short) count;
+		offsets[size] = paramsSize;
+		System.arraycopy(values, from, params, paramsSize, count);
+		paramsSize += count;
+		size++;
+	}
+
+	/**
+	 * Appends module[index] of the given state to this state
+	 */
+	public void addFrom(CompactState state, int index) {
+		if (state.arities[index] == CHAR_MODULE) {
+			addChar(state.symbols[index]);
+		} else {
+			addParametric(state.symbols[index], state.params, state.offsets[index], state.arities[index]);
+		}
+	}
+
+	/**
+	 * Appends all modules of state to this state
+	 */
+	public void addAll(CompactState state) {
+		ensureCapacity(state.size, state.paramsSize);
+		System.arraycopy(state.symbols, 0, symbols, size, state.size);
+		System.arraycopy(state.arities, 0, arities, size, state.size);
+		for (int i = 0; i < state.size; i++) {
+			offsets[size + i] = state.offsets[i] + paramsSize;
+		}
+		System.arraycopy(state.params, 0, params, paramsSize, state.paramsSize);
+		size += state.size;
+		paramsSize += state.paramsSize;
+	}
+
+	@Override
+	public boolean add(Module module) {
+		if (module instanceof CharModule) {
+			addChar(module.getName());
+		} else if (module instanceof ModuleView) {
+			ModuleView view = (ModuleView) module;
+			addFrom(view.getState(), view.index);
+		} else if (module instanceof ValuedModule) {
+			int arity = module.getNumberOfParameters();
+			ensureCapacity(1, arity);
+			symbols[size] = module.getName();
+			arities[size] = (short) arity;
+			offsets[size] = paramsSize;
+			for (int i = 0; i < arity; i++) {
+				params[paramsSize++] = ((ValuedModule) module).getValue(i);
+			}
+			size++;
+		} else {
+			throw new RuntimeException("Module cannot be stored in a compact state: " + module.toString());
+		}
+		return true;
+	}
+
+	public char getSymbol(int index) {
+		return symbols[index];
+	}
+
+	public boolean isParametric(int index) {
+		return arities[index] != CHAR_MODULE;
+	}
+
+	public int getArity(int index) {
+		return Math.max(arities[index], 0);
+	}
+
+	public float getValue(int index, int valueIndex) {
+		return params[offsets[index] + valueIndex];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes all modules while keeping the allocated capacity, so the state can be reused as a buffer
+	 */
+	@Override
+	public void clear() {
+		size = 0;
+		paramsSize = 0;
+	}
+
+	public int getNumberOfValues() {
+		return paramsSize;
+	}
+
+	@Override
+	public Module get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		if (arities[index] == CHAR_MODULE) {
+			return new CharModule(symbols[index]);
+		}
+		List<Float> values = new ArrayList<>(arities[index]);
+		for (int i = 0; i < arities[index]; i++) {
+			values.add(params[offsets[index] + i]);
+		}
+		return new ParametricValueModule(symbols[index], values);
+	}
+
+	/**
+	 * Returns a copy of this state with every module named symbol replaced by replacement
+	 */
+	public CompactState substitute(char symbol, Module replacement) {
+		CompactState result = new CompactState(size, paramsSize + size);
+		for (int i = 0; i < size; i++) {
+			if (symbols[i] == symbol) {
+				result.add(replacement);
+			} else {
+				result.addFrom(this, i);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Iterates over the modules in the state using a single reused module, which is only valid until the next call to
+	 * next() and must not be retained
+	 */
+	public Iterable<ValuedModule> view() {
+		return () -> new Iterator<>() {
+			private final ModuleView module = new ModuleView();
+
+			@Override
+			public boolean hasNext() {
+				return module.index + 1 < size;
+			}
+
+			@Override
+			public ValuedModule next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				module.index++;
+				return module;
+			}
+		};
+	}
+
+	/**
+	 * Returns a single reused module positioned at index, which is only valid until the next call and must not be
+	 * retained
+	 */
+	ValuedModule viewAt(int index) {
+		if (cursor == null) {
+			cursor = new ModuleView();
+		}
+		cursor.index = index;
+		return cursor;
+	}
+
+	private class ModuleView implements ValuedModule {
+		private int index = -1;
+
+		private CompactState getState() {
+			return CompactState.this;
+		}
+
+		@Override
+		public char getName() {
+			return symbols[index];
+		}
+
+		@Override
+		public int getNumberOfParameters() {
+			return getArity(index);
+		}
+
+		@Override
+		public float getValue(int valueIndex) {
+			if (valueIndex < 0 || valueIndex >= getArity(index)) {
+				throw new IndexOutOfBoundsException("Value index: " + valueIndex + " in " + this.toString());
+			}
+			return params[offsets[index] + valueIndex];
+		}
+
+		@Override
+		public String toString() {
+			if (arities[index] == CHAR_MODULE) {
+				return Character.toString(symbols[index]);
+			}
+			return String.format("%s(%s)",
+					symbols[index],
+					IntStream.range(0, arities[index])
+							.mapToObj(i -> Float.toString(params[offsets[index] + i]))
+							.collect(Collectors.joining(",")));
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lsystems;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base of the classes generated by {@link GrammarCompiler}, which rewrite modules in the same way as the
+ * interpreted {@link LSystem} they were compiled from
+ */
+abstract class CompiledGrammar {
+
+	private final LSystem lSystem;
+	final long seed;
+
+	CompiledGrammar(LSystem lSystem, long seed) {
+		this.lSystem = lSystem;
+		this.seed = seed;
+	}
+
+	/**
+	 * Rewrites the modules of state from index from to index to, appending the results
+	 */
+	abstract void rewriteRange(CompactState state, int from, int to, int generation, CompactState result,
+							   EvaluationFrame frame);
+
+	/**
+	 * Same as {@link LSystem#rewrite}, but always consumes a single module
+	 */
+	abstract void rewrite(CompactState state, int head, int generation, int position, CompactState result,
+						  EvaluationFrame frame);
+
+	/**
+	 * Index in candidates of the stochastic choice between the candidates whose bits are set in matches, for when the
+	 * matching candidates do not form a whole alias table
+	 */
+	final int choose(Production[] candidates, int matches, CompactState state, int head) {
+		List<Production> matching = new ArrayList<>(Integer.bitCount(matches));
+		for (int i = 0; i < candidates.length; i++) {
+			if ((matches & (1 << i)) != 0) {
+				matching.add(candidates[i]);
+			}
+		}
+		Production chosen = lSystem.chooseStochasticProduction(matching, state.subList(head, head + 1));
+		for (int i = 0; i < candidates.length; i++) {
+			if (candidates[i] == chosen) {
+				return i;
+			}
+		}
+		throw new IllegalStateException("Chosen production is not a candidate: " + chosen);
+	}
+}
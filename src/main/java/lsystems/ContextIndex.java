@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package lsystems;
+
+import java.util.List;
+import lsystems.modules.CharModule;
+import lsystems.modules.Module;
+
+/**
+ * Links each module of a string to its nearest neighbours which are not ignored, and each bracket to its matching
+ * bracket, so that a context of length k is matched in O(k) rather than by filtering the whole string.
+ * Built once per derivation step of a context-sensitive L-system.
+ */
+class ContextIndex {
+
+	private final int size;
+	// Symbol and shape of each module (see getKey)
+	private final int[] keys;
+	// Index of the nearest module before i which is not ignored, or -1
+	private final int[] previous;
+	// Index of the nearest module at or after i which is not ignored, or size
+	private final int[] next;
+	// Index of the bracket matching the bracket at i, or -1
+	private final int[] matching;
+	private final boolean bracketed;
+
+	ContextIndex(List<? extends Module> state, List<Module> ignored, boolean bracketed) {
+		this.size = state.size();
+		this.keys = new int[size];
+		if (state instanceof CompactState) {
+			CompactState compact = (CompactState) state;
+			for (int i = 0; i < size; i++) {
+				keys[i] = compact.isParametric(i)
+						? getKey(compact.getSymbol(i), compact.getArity(i))
+						: compact.getSymbol(i);
+			}
+		} else {
+			for (int i = 0; i < size; i++) {
+				keys[i] = getKey(state.get(i));
+			}
+		}
+		int[] ignoredKeys = ignored.stream().mapToInt(ContextIndex::getKey).toArray();
+
+		this.previous = new int[size];
+		this.next = new int[size + 1];
+		int last = -1;
+		for (int i = 0; i < size; i++) {
+			previous[i] = last;
+			if (!isIgnored(keys[i], ignoredKeys)) {
+				last = i;
+			}
+		}
+		next[size] = size;
+		for (int i = size - 1; i >= 0; i--) {
+			next[i] = isIgnored(keys[i], ignoredKeys) ? next[i + 1] : i;
+		}
+
+		this.bracketed = bracketed;
+		this.matching = new int[bracketed ? size : 0];
+		if (bracketed) {
+			int[] open = new int[size];
+			int depth = 0;
+			for (int i = 0; i < size; i++) {
+				matching[i] = -1;
+				if (keys[i] == '[') {
+					open[depth++] = i;
+				} else if (keys[i] == ']' && depth > 0) {
+					matching[i] = open[--depth];
+					matching[matching[i]] = i;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Key identifying a module by its symbol and whether it is parametric, and if so its number of parameters, as
+	 * compared by the equals methods of the modules
+	 */
+	static int getKey(Module module) {
+		return module instanceof CharModule
+				? module.getName()
+				: getKey(module.getName(), module.getNumberOfParameters());
+	}
+
+	static int getKey(char symbol, int arity) {
+		return symbol | ((arity + 1) << 16);
+	}
+
+	private static boolean isIgnored(int key, int[] ignoredKeys) {
+		for (int ignoredKey : ignoredKeys) {
+			if (key == ignoredKey) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * True if the modules before head which are not ignored end with the context. If bracketed, the context is
+	 * matched along the path to the root of the branch: complete branches are skipped, and the bracket opening the
+	 * branch of head is passed through to its parent.
+	 */
+	boolean matchesLeft(int head, int[] context) {
+		int j = previous[head];
+		for (int c = context.length - 1; c >= 0; c--) {
+			while (bracketed && j >= 0 && keys[j] != context[c]) {
+				if (keys[j] == ']' && matching[j] >= 0) {
+					j = previous[matching[j]];
+				} else if (keys[j] == '[') {
+					j = previous[j];
+				} else {
+					break;
+				}
+			}
+			if (j < 0 || keys[j] != context[c]) {
+				return false;
+			}
+			j = previous[j];
+		}
+		return true;
+	}
+
+	/**
+	 * True if the modules from end onwards which are not ignored start with the context. If bracketed, branches are
+	 * skipped unless the context itself contains the bracket, and a closing bracket in the context matches the end
+	 * of the branch it opened, skipping the rest of that branch.
+	 */
+	boolean matchesRight(int end, int[] context) {
+		// Opening brackets of the branches entered by the context
+		int[] open = null;
+		int depth = 0;
+		int j = next[end];
+		for (int c = 0; c < context.length; c++) {
+			if (bracketed) {
+				while (j < size && keys[j] == '[' && context[c] != '[') {
+					j = matching[j] >= 0 ? next[matching[j] + 1] : size;
+				}
+				if (context[c] == ']' && depth > 0 && j < size && keys[j] != ']') {
+					j = matching[open[--depth]];
+					if (j < 0) {
+						return false;
+					}
+				} else if (context[c] == ']' && depth > 0) {
+					depth--;
+				}
+			}
+			if (j >= size || keys[j] != context[c]) {
+				return false;
+			}
+			if (bracketed && context[c] == '[') {
+				if (open == null) {
+					open = new int[context.length];
+				}
+				open[depth++] = j;
+			}
+			j = next[j + 1];
+		}
+		return true;
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package lsystems;
+
+import java.util.Random;
+import params.RandomStreams;
+
+/**
+ * Random numbers for the production being applied by the current thread. The stream is seeded from the seed of the
+ * LSystem, the generation and the position of the predecessor in the string, so the result of a derivation does not
+ * depend on the order (or thread) in which the positions are derived.
+ */
+public final class DerivationRandom {
+	private DerivationRandom() {
+	}
+
+	private static final ThreadLocal<Stream> streams = ThreadLocal.withInitial(Stream::new);
+
+	static void seed(long seed, int generation, int position) {
+		Stream stream = streams.get();
+		stream.random.setSeed(mix(mix(seed, generation), position));
+		stream.active = true;
+	}
+
+	static void clear() {
+		streams.get().active = false;
+	}
+
+	/**
+	 * The stream for the production being applied, only valid while a derivation is in progress on this thread
+	 */
+	static Random current() {
+		Stream stream = streams.get();
+		if (!stream.active) {
+			throw new IllegalStateException("No derivation in progress on thread " + Thread.currentThread().getName());
+		}
+		return stream.random;
+	}
+
+	/**
+	 * The stream for the production being applied if called during a derivation, otherwise fallback
+	 */
+	public static Random currentOr(Random fallback) {
+		Stream stream = streams.get();
+		return stream.active ? stream.random : fallback;
+	}
+
+	private static long mix(long seed, long value) {
+		return RandomStreams.mix(seed, value);
+	}
+
+	private static class Stream {
+		private final Random random = new Random();
+		private boolean active = false;
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package lsystems;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import lsystems.modules.ValuedModule;
+
+/**
+ * The n-th generation of an L-system, derived as it is iterated (see {@link LSystem#streamDerivations(int)}).
+ * Each iteration derives the generation again from the same starting state, giving the same modules every time.
+ * As with {@link CompactState#view()}, the returned modules are reused and must not be retained.
+ */
+public class DerivationStream implements Iterable<ValuedModule> {
+
+	private final LSystem lSystem;
+	private final CompactState start;
+	private final int generation;
+	private final int n;
+	private final boolean depthFirst;
+	private final Map<Character, ValuedModule> substitutions;
+
+	DerivationStream(LSystem lSystem, CompactState start, int generation, int n, boolean depthFirst) {
+		this(lSystem, start, generation, n, depthFirst, Map.of());
+	}
+
+	private DerivationStream(LSystem lSystem, CompactState start, int generation, int n, boolean depthFirst,
+							 Map<Character, ValuedModule> substitutions) {
+		this.lSystem = lSystem;
+		this.start = start;
+		this.generation = generation;
+		this.n = n;
+		this.depthFirst = depthFirst;
+		this.substitutions = substitutions;
+	}
+
+	/**
+	 * Returns a stream in which every module named symbol is replaced by replacement
+	 */
+	public DerivationStream substitute(char symbol, ValuedModule replacement) {
+		Map<Character, ValuedModule> substitutions = new HashMap<>(this.substitutions);
+		substitutions.put(symbol, replacement);
+		return new DerivationStream(lSystem, start, generation, n, depthFirst, substitutions);
+	}
+
+	@Override
+	public Iterator<ValuedModule> iterator() {
+		if (!depthFirst) {
+			// Context has to be matched against the whole generation, so it is derived in full
+			Iterator<ValuedModule> modules = lSystem.deriveFully(start, generation, n).view().iterator();
+			return new Iterator<>() {
+				@Override
+				public boolean hasNext() {
+					return modules.hasNext();
+				}
+
+				@Override
+				public ValuedModule next() {
+					return substituted(modules.next());
+				}
+			};
+		}
+		return new DepthFirstIterator();
+	}
+
+	private ValuedModule substituted(ValuedModule module) {
+		ValuedModule replacement = substitutions.isEmpty() ? null : substitutions.get(module.getName());
+		return replacement == null ? module : replacement;
+	}
+
+	/**
+	 * Rewrites one module at a time, descending to the n-th generation before moving on to the next module.
+	 * levels[i] holds the successor of the module being rewritten in generation i - 1 (the start state for i = 0),
+	 * so memory is bounded by the number of generations and the length of the successors.
+	 */
+	private class DepthFirstIterator implements Iterator<ValuedModule> {
+
+		private final CompactState[] levels = new CompactState[n + 1];
+		// Index of the next module to rewrite in each level
+		private final int[] cursors = new int[n + 1];
+		// Position of that module in the whole of its generation, which seeds its random stream
+		private final int[] positions = new int[n + 1];
+		private final EvaluationFrame frame = lSystem.createFrame();
+		private int depth = 0;
+
+		private DepthFirstIterator() {
+			levels[0] = start;
+			for (int i = 1; i <= n; i++) {
+				levels[i] = new CompactState();
+			}
+		}
+
+		/**
+		 * Expands modules until levels[n] has a module at its cursor, returning false once the start is exhausted
+		 */
+		private boolean advance() {
+			while (true) {
+				if (cursors[depth] >= levels[depth].size()) {
+					if (depth == 0) {
+						return false;
+					}
+					depth--;
+				} else if (depth == n) {
+					return true;
+				} else {
+					CompactState successor = levels[depth + 1];
+					successor.clear();
+					try {
+						lSystem.rewrite(levels[depth], cursors[depth], generation + depth, positions[depth], successor,
+								frame, null);
+					} finally {
+						DerivationRandom.clear();
+					}
+					cursors[depth]++;
+					positions[depth]++;
+					depth++;
+					cursors[depth] = 0;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return advance();
+		}
+
+		@Override
+		public ValuedModule next() {
+			if (!advance()) {
+				throw new NoSuchElementException();
+			}
+			return substituted(levels[n].viewAt(cursors[n]++));
+		}
+	}
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package lsystems;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import lsystems.modules.CharModule;
+import lsystems.modules.Module;
+import lsystems.modules.ParametricExpressionModule;
+import lsystems.modules.ParametricParameterModule;
+
+/**
+ * Compiles grammars whose productions are all context-free with single module predecessors into a class specialised
+ * to the grammar: productions are dispatched by a switch on the symbol and arity of each module, and their
+ * predecessor checks, argument loads and successors are unrolled, so nothing is looked up or allocated per module.
+ * Conditions and expressions are still called through their lambdas, which are passed to the generated class as
+ * constants. Grammars with the same structure share a class, so a grammar which is rebuilt with different parameters
+ * or seeds is only compiled once.
+ * The source is compiled in-process with the system Java compiler, which is only available when running on a JDK.
+ */
+final class GrammarCompiler {
+	private GrammarCompiler() {
+	}
+
+	private static final String CLASS_NAME = "GeneratedGrammar";
+	// Bits of the set of matching candidates, one per candidate
+	private static final int MAX_CANDIDATES = 31;
+
+	private static final AtomicInteger classCount = new AtomicInteger();
+	// Constructors of the generated classes by their source (with a placeholder class name)
+	private static final Map<String, MethodHandle> constructors = new ConcurrentHashMap<>();
+
+	/**
+	 * True if the grammar can be compiled on this runtime
+	 */
+	static boolean canCompile(List<Production> productions, Map<Integer, List<Production>> productionIndex) {
+		return ToolProvider.getSystemJavaCompiler() != null
+				&& productions.stream().allMatch(p -> p.getPredLength() == 1 && !p.isContextSensitive())
+				&& productionIndex.values().stream().allMatch(candidates -> candidates.size() <= MAX_CANDIDATES);
+	}
+
+	/**
+	 * Compiles the grammar of lSystem, given its productions grouped by index key and its alias tables
+	 */
+	static CompiledGrammar compile(LSystem lSystem, long seed, Map<Integer, List<Production>> productionIndex,
+								   Map<Production, AliasTable> stochasticGroups) {
+		Source source = new Source();
+		source.generate(productionIndex, stochasticGroups);
+		String template = source.toString();
+		MethodHandle constructor = constructors.computeIfAbsent(template, GrammarCompiler::define);
+		try {
+			return (CompiledGrammar) constructor.invoke(lSystem, seed, source.constants.toArray());
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new RuntimeException("Unable to instantiate compiled grammar", e);
+		}
+	}
+
+	private static MethodHandle define(String template) {
+		String className = CLASS_NAME + classCount.getAndIncrement();
+		String code = template.replace(CLASS_NAME, className);
+		byte[] bytes = compileSource(className, code);
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			Class<?> generated = lookup.defineClass(bytes);
+			return lookup.findConstructor(generated,
+					MethodType.methodType(void.class, LSystem.class, long.class, Object[].class));
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException("Unable to load compiled grammar " + className, e);
+		}
+	}
+
+	private static byte[] compileSource(String className, String code) {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null) {
+			throw new RuntimeException("No Java compiler available to compile grammars: run on a JDK");
+		}
+		JavaFileObject sourceFile = new SimpleJavaFileObject(
+				URI.create("string:///lsystems/" + className + ".java"), JavaFileObject.Kind.SOURCE) {
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+				return code;
+			}
+		};
+		ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+		StandardJavaFileManager standardManager = compiler.getStandardFileManager(null, null, null);
+		ForwardingJavaFileManager<StandardJavaFileManager> fileManager = new ForwardingJavaFileManager<>(standardManager) {
+			@Override
+			public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind,
+													   FileObject sibling) {
+				return new SimpleJavaFileObject(URI.create("bytes:///" + name.replace('.', '/') + kind.extension), kind) {
+					@Override
+					public OutputStream openOutputStream() {
+						return classFile;
+					}
+				};
+			}
+		};
+		StringWriter errors = new StringWriter();
+		boolean success = compiler.getTask(errors, fileManager, null,
+				List.of("-proc:none", "-g:none", "-classpath", System.getProperty("java.class.path")),
+				null, List.of(sourceFile)).call();
+		if (!success) {
+			throw new RuntimeException("Unable to compile grammar:\n" + errors + "\n" + code);
+		}
+		return classFile.toByteArray();
+	}
+
+	/**
+	 * Source of a generated class. Everything which is not part of the structure of the grammar is a constant, which
+	 * is held in a field and passed to the constructor.
+	 */
+	private static class Source {
+		private final StringBuilder fields = new StringBuilder();
+		private final StringBuilder constructor = new StringBuilder();
+		private final StringBuilder methods = new StringBuilder();
+		private final StringBuilder cases = new StringBuilder();
+		private final List<Object> constants = new ArrayList<>();
+		private final Map<Object, String> constantNames = new IdentityHashMap<>();
+		private final Map<Production, Integer> productionNumbers = new IdentityHashMap<>();
+
+		private String constant(Object value, String type) {
+			return constantNames.computeIfAbsent(value, v -> {
+				String name = "k" + constants.size();
+				fields.append(String.format("\tprivate final %s %s;%n", type, name));
+				constructor.append(String.format("\t\t%s = (%s) constants[%d];%n", name, type, constants.size()));
+				constants.add(v);
+				return name;
+			});
+		}
+
+		private void generate(Map<Integer, List<Production>> productionIndex,
+							  Map<Production, AliasTable> stochasticGroups) {
+			for (Map.Entry<Integer, List<Production>> group : productionIndex.entrySet()) {
+				List<Production> candidates = group.getValue();
+				cases.append(String.format("\t\t\tcase %d: {%n", group.getKey()));
+				cases.append("\t\t\t\tDerivationRandom.seed(seed, generation, position);\n");
+				if (candidates.size() == 1) {
+					int p = production(candidates.get(0));
+					cases.append(String.format("\t\t\t\tif (match%d(state, head, frame)) {%n", p));
+					cases.append(String.format("\t\t\t\t\tapply%d(state, head, result, frame);%n", p));
+					cases.append("\t\t\t\t\treturn;\n\t\t\t\t}\n\t\t\t\tbreak;\n\t\t\t}\n");
+					continue;
+				}
+				cases.append("\t\t\t\tint matches = 0;\n");
+				for (int i = 0; i < candidates.size(); i++) {
+					cases.append(String.format("\t\t\t\tif (match%d(state, head, frame)) {%n\t\t\t\t\tmatches |= %d;%n\t\t\t\t}%n",
+							production(candidates.get(i)), 1 << i));
+				}
+				cases.append("\t\t\t\tint chosen;\n\t\t\t\tswitch (matches) {\n");
+				cases.append("\t\t\t\t\tcase 0:\n\t\t\t\t\t\tchosen = -1;\n\t\t\t\t\t\tbreak;\n");
+				for (int i = 0; i < candidates.size(); i++) {
+					cases.append(String.format("\t\t\t\t\tcase %d:%n\t\t\t\t\t\tchosen = %d;%n\t\t\t\t\t\tbreak;%n", 1 << i, i));
+				}
+				// If every candidate matches and they form one alias table, sample the table directly
+				AliasTable table = stochasticGroups.get(candidates.get(0));
+				if (table != null && table.size() == candidates.size()
+						&& candidates.stream().allMatch(c -> stochasticGroups.get(c) == table)) {
+					cases.append(String.format("\t\t\t\t\tcase %d:%n\t\t\t\t\t\tchosen = %s.sampleIndex(DerivationRandom.current());%n\t\t\t\t\t\tbreak;%n",
+							(1 << candidates.size()) - 1, constant(table, "AliasTable")));
+				}
+				cases.append(String.format("\t\t\t\t\tdefault:%n\t\t\t\t\t\tchosen = choose(%s, matches, state, head);%n\t\t\t\t}%n",
+						constant(candidates.toArray(new Production[0]), "Production[]")));
+				cases.append("\t\t\t\tswitch (chosen) {\n");
+				for (int i = 0; i < candidates.size(); i++) {
+					cases.append(String.format("\t\t\t\t\tcase %d:%n\t\t\t\t\t\tapply%d(state, head, result, frame);%n\t\t\t\t\t\treturn;%n",
+							i, production(candidates.get(i))));
+				}
+				cases.append("\t\t\t\t}\n\t\t\t\tbreak;\n\t\t\t}\n");
+			}
+		}
+
+		/**
+		 * Generates the match and apply methods of the production if they have not been generated, returning its number
+		 */
+		private int production(Production production) {
+			Integer existing = productionNumbers.get(production);
+			if (existing != null) {
+				return existing;
+			}
+			int p = productionNumbers.size();
+			productionNumbers.put(production, p);
+
+			methods.append(String.format("%n\tprivate boolean match%d(CompactState state, int head, EvaluationFrame frame) {%n", p));
+			boolean parametric = production.getPredecessor().get(0) instanceof ParametricParameterModule;
+			methods.append(String.format("\t\tif (%sstate.isParametric(head)) {%n\t\t\treturn false;%n\t\t}%n",
+					parametric ? "!" : ""));
+			if (!production.isCompiled()) {
+				methods.append(String.format("\t\treturn %s.conditionSatisfied(state, head, frame);%n",
+						constant(production, "Production")));
+			} else if (production.getFrameCondition() != null) {
+				appendArgs(production.getConditionValueIndices());
+				methods.append(String.format("\t\treturn %s.test(frame.args);%n",
+						constant(production.getFrameCondition(), "FrameCondition")));
+			} else {
+				methods.append("\t\treturn true;\n");
+			}
+			methods.append("\t}\n");
+
+			methods.append(String.format("%n\tprivate void apply%d(CompactState state, int head, CompactState result, EvaluationFrame frame) {%n", p));
+			if (!production.isCompiled()) {
+				methods.append(String.format("\t\t%s.apply(state, head, result, frame);%n",
+						constant(production, "Production")));
+			} else {
+				List<Module> successor = production.getSuccessor();
+				for (int k = 0; k < successor.size(); k++) {
+					Module module = successor.get(k);
+					if (module instanceof CharModule) {
+						methods.append(String.format("\t\tresult.addChar((char) %d);%n", (int) module.getName()));
+					} else if (module instanceof ParametricExpressionModule) {
+						ParametricExpressionModule expression = (ParametricExpressionModule) module;
+						appendArgs(production.getSuccessorValueIndices(k));
+						methods.append(String.format("\t\t%s.evaluate(frame.args, frame.values);%n",
+								constant(expression, "ParametricExpressionModule")));
+						methods.append(String.format("\t\tresult.addParametric((char) %d, frame.values, 0, %d);%n",
+								(int) expression.getName(), expression.getArity()));
+					} else {
+						methods.append(String.format("\t\tresult.add(%s);%n", constant(module, "Module")));
+					}
+				}
+			}
+			methods.append("\t}\n");
+			return p;
+		}
+
+		private void appendArgs(int[] valueIndices) {
+			for (int i = 0; i < valueIndices.length; i++) {
+				methods.append(String.format("\t\tframe.args[%d] = state.getValue(head, %d);%n", i, valueIndices[i]));
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "package lsystems;\n\n"
+					+ "import lsystems.modules.Module;\n"
+					+ "import lsystems.modules.ParametricExpressionModule;\n\n"
+					+ "final class " + CLASS_NAME + " extends CompiledGrammar {\n"
+					+ fields
+					+ "\n\t" + CLASS_NAME + "(LSystem lSystem, long seed, Object[] constants) {\n"
+					+ "\t\tsuper(lSystem, seed);\n"
+					+ constructor
+					+ "\t}\n\n"
+					+ "\t@Override\n"
+					+ "\tvoid rewriteRange(CompactState state, int from, int to, int generation, CompactState result,\n"
+					+ "\t\t\t\t\t  EvaluationFrame frame) {\n"
+					+ "\t\tfor (int head = from; head < to; head++) {\n"
+					+ "\t\t\trewrite(state, head, generation, head, result, frame);\n"
+					+ "\t\t}\n"
+					+ "\t}\n\n"
+					+ "\t@Override\n"
+					+ "\tvoid rewrite(CompactState state, int head, int generation, int position, CompactState result,\n"
+					+ "\t\t\t\t EvaluationFrame frame) {\n"
+					+ "\t\tswitch (state.getSymbol(head) | (state.getArity(head) << 16)) {\n"
+					+ cases
+					+ "\t\t}\n"
+					+ "\t\tresult.addFrom(state, head);\n"
+					+ "\t}\n"
+					+ methods
+					+ "}\n";
+		}
+	}
+}
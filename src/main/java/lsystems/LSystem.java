@@ -22,95 +22,410 @@
 package lsystems;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.stream.Collectors;
 import lsystems.modules.AxiomaticModule;
 import lsystems.modules.Module;
-import org.apache.commons.math3.distribution.EnumeratedDistribution;
-import org.apache.commons.math3.util.Pair;
+import lsystems.modules.ParametricExpressionModule;
+import lsystems.modules.PredecessorModule;
 import params.ParameterLoader;
 
 public class LSystem {
 
+	static final int PARALLEL_CHUNK_SIZE = 4096;
+
 	private List<? extends Module> state;
 	private final List<AxiomaticModule> axiom;
 	private final List<Module> ignored;
 	private final List<Production> productions;
 	private final int longestPred;
+	private final boolean contextSensitive;
+	private boolean bracketedContext = false;
+	private final int frameSize;
+	// Productions grouped by the symbol and arity of the first module of their predecessor
+	private final Map<Integer, List<Production>> productionIndex = new HashMap<>();
+	// Alias table of the group of productions with the same predecessor as each stochastic production
+	private final Map<Production, AliasTable> stochasticGroups = new IdentityHashMap<>();
+	private boolean indexed = true;
+	// Seed for the random streams of each position in each generation (see DerivationRandom)
+	private final long seed;
+	private int generation = 0;
+	private ForkJoinPool pool = null;
+	private CompiledGrammar compiled = null;
 
 	public LSystem(List<AxiomaticModule> axiom, List<Module> ignored, List<Production> productions) {
+		this(axiom, ignored, productions, ParameterLoader.getParameters().random.generator.nextLong());
+	}
+
+	public LSystem(List<AxiomaticModule> axiom, List<Module> ignored, List<Production> productions, long seed) {
+		this.seed = seed;
 		this.axiom = axiom;
 		this.ignored = ignored;
 		this.state = this.axiom;
 		this.productions = productions;
 		this.longestPred = this.productions.stream().mapToInt(Production::getPredLength).max().orElse(1);
+		this.contextSensitive = this.productions.stream().anyMatch(Production::isContextSensitive);
+		this.frameSize = this.productions.stream().mapToInt(Production::getFrameSize).max().orElse(0);
+		for (Production production : this.productions) {
+			productionIndex.computeIfAbsent(production.getIndexKey(), k -> new ArrayList<>()).add(production);
+		}
+		buildStochasticGroups();
+	}
+
+	/**
+	 * Builds an alias table for each group of productions with the same predecessor. Productions without conditions
+	 * or contexts always match together, so the sum of their probabilities is validated here rather than per match.
+	 */
+	private void buildStochasticGroups() {
+		Map<List<PredecessorModule>, List<Production>> groups = new LinkedHashMap<>();
+		for (Production production : this.productions) {
+			groups.computeIfAbsent(production.getPredecessor(), k -> new ArrayList<>()).add(production);
+		}
+		for (List<Production> group : groups.values()) {
+			if (group.size() < 2) {
+				continue;
+			}
+			double probSum = group.stream()
+					.filter(p -> !p.hasCondition() && !p.isContextSensitive())
+					.mapToDouble(Production::getProbability)
+					.sum();
+			if (probSum - 1 > 0.000001) {
+				throw new RuntimeException(String.format(
+						"Probabilities for productions on %s do not sum to 1. Actual sum: %f",
+						group.get(0).getPredecessor(), probSum));
+			}
+			if (group.stream().mapToDouble(Production::getProbability).sum() <= 0) {
+				throw new RuntimeException("Productions on " + group.get(0).getPredecessor() + " all have probability 0");
+			}
+			AliasTable table = new AliasTable(group);
+			group.forEach(p -> stochasticGroups.put(p, table));
+		}
+	}
+
+	/**
+	 * Derives strings of at least 2 * PARALLEL_CHUNK_SIZE modules in chunks on the given pool (or sequentially if null).
+	 * The result is identical to sequential derivation for the same seed.
+	 */
+	public void setParallel(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Matches contexts along the branch structure of the string, as in The Algorithmic Beauty of Plants:
+	 * a left context is matched along the path towards the root, skipping complete branches, and a right context
+	 * skips branches unless they appear in the context. Otherwise brackets are matched like any other module.
+	 */
+	public void setBracketedContext(boolean bracketedContext) {
+		this.bracketedContext = bracketedContext;
+	}
+
+	/**
+	 * Compiles the grammar into a generated class (see {@link GrammarCompiler}), which is then used to derive compact
+	 * states and streams. Returns false and keeps interpreting the grammar if it has context sensitive or multi-module
+	 * productions, or if no Java compiler is available at runtime.
+	 */
+	public boolean compile() {
+		if (this.compiled == null && GrammarCompiler.canCompile(this.productions, this.productionIndex)) {
+			this.compiled = GrammarCompiler.compile(this, this.seed, this.productionIndex, this.stochasticGroups);
+		}
+		return this.compiled != null;
+	}
+
+	private ContextIndex getContextIndex(List<? extends Module> state) {
+		return this.contextSensitive ? new ContextIndex(state, this.ignored, this.bracketedContext) : null;
 	}
 
-	private List<Production> getAllWhichMatch(List<Module> prev, List<Module> pred, List<Module> remaining) {
-		return this.productions
-				.stream()
-				.filter(p -> p.predecessorSatisfied(pred))
-				.filter(p -> p.conditionSatisfied(pred))
-				.filter(p -> p.contextSatisfied(prev, remaining, ignored))
-				.collect(Collectors.toList());
+	static int getIndexKey(Module module) {
+		return module.getName() | (module.getNumberOfParameters() << 16);
+	}
+
+	/**
+	 * Enables or disables the production index, so the indexed derivation can be compared with a linear scan
+	 * over all productions
+	 */
+	void setIndexed(boolean indexed) {
+		this.indexed = indexed;
+	}
+
+	private List<Production> getCandidates(Module first) {
+		// Expressions only match on their name as their output arity is unknown
+		if (!indexed || first instanceof ParametricExpressionModule) {
+			return this.productions;
+		}
+		return productionIndex.getOrDefault(getIndexKey(first), List.of());
+	}
+
+	private List<Production> getAllWhichMatch(List<Production> candidates, List<Module> pred, EvaluationFrame frame,
+											  ContextIndex context, int head) {
+		List<Production> matches = new ArrayList<>(1);
+		for (Production p : candidates) {
+			if (p.getPredLength() == pred.size()
+					&& p.predecessorSatisfied(pred)
+					&& p.conditionSatisfied(pred, frame)
+					&& (!p.isContextSensitive() || p.contextSatisfied(context, head, pred.size()))) {
+				matches.add(p);
+			}
+		}
+		return matches;
 	}
 
 	public String performDerivationStep() {
-		int head = 0;
-		List<Module> result = new ArrayList<>();
-		while (head < this.state.size()) {
-			// Maximal length matching
-			for (int len = this.longestPred; len > 0; len--) {
-				List<Module> state = this.getState();
-				List<Module> previous = state.subList(0, head);
-				List<Module> current = state.subList(head, head + len);
-				List<Module> remaining = state.subList(head + len, state.size());
-				List<Production> matches = getAllWhichMatch(previous, current, remaining);
-				Production production = null;
-				if (matches.size() == 1) {
-					production = matches.get(0);
-				} else if (matches.size() > 1) {
-					production = chooseStochasticProduction(matches, current);
+		derive();
+		return this.getStateSting();
+	}
+
+	private void derive() {
+		int size = this.state.size();
+		boolean parallel = this.pool != null && size >= 2 * PARALLEL_CHUNK_SIZE && this.longestPred == 1;
+		// Built once for the whole string, as contexts can cross chunk boundaries
+		ContextIndex context = getContextIndex(this.state);
+		if (this.state instanceof CompactState) {
+			CompactState state = (CompactState) this.state;
+			this.state = parallel
+					? deriveInParallel(size, (from, to) -> deriveRange(state, from, to, this.generation, context),
+							CompactState::addAll)
+					: deriveRange(state, 0, size, this.generation, context);
+		} else {
+			List<Module> state = this.getState();
+			this.state = parallel
+					? deriveInParallel(size, (from, to) -> deriveRange(state, from, to, context), List::addAll)
+					: deriveRange(state, 0, size, context);
+		}
+		this.generation++;
+	}
+
+	/**
+	 * Derives the state in chunks on the pool and concatenates the results. Chunks can only be derived independently
+	 * if every predecessor is a single module, as a chunk boundary could otherwise split a match.
+	 */
+	private <T> T deriveInParallel(int size, BiFunction<Integer, Integer, T> deriveChunk, BiConsumer<T, T> concat) {
+		int numChunks = Math.max(
+				Math.min(size / PARALLEL_CHUNK_SIZE, this.pool.getParallelism() * 4),
+				2);
+		List<Callable<T>> chunks = new ArrayList<>();
+		for (int i = 0; i < numChunks; i++) {
+			int from = (int) ((long) size * i / numChunks);
+			int to = (int) ((long) size * (i + 1) / numChunks);
+			chunks.add(() -> deriveChunk.apply(from, to));
+		}
+		T result = null;
+		for (Future<T> chunk : this.pool.invokeAll(chunks)) {
+			try {
+				if (result == null) {
+					result = chunk.get();
+				} else {
+					concat.accept(result, chunk.get());
 				}
-				if (matches.size() > 0) {
-					result.addAll(production.apply(current));
-					head += len;
-					break;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted during parallel derivation", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
 				}
-				if (len == 1) {
-					result.add(this.state.get(head));
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		return result;
+	}
+
+	private List<Module> deriveRange(List<Module> state, int from, int to, ContextIndex context) {
+		int head = from;
+		List<Module> result = new ArrayList<>(to - from);
+		EvaluationFrame frame = new EvaluationFrame(this.frameSize);
+		try {
+			while (head < to) {
+				List<Production> candidates = getCandidates(state.get(head));
+				int matchedLength = 0;
+				if (!candidates.isEmpty()) {
+					DerivationRandom.seed(this.seed, this.generation, head);
+				}
+				// Maximal length matching
+				for (int len = Math.min(this.longestPred, state.size() - head); len > 0 && !candidates.isEmpty(); len--) {
+					List<Module> current = state.subList(head, head + len);
+					List<Production> matches = getAllWhichMatch(candidates, current, frame, context, head);
+					if (matches.size() > 0) {
+						Production production = matches.size() == 1
+								? matches.get(0)
+								: chooseStochasticProduction(matches, current);
+						production.apply(current, result, frame);
+						matchedLength = len;
+						break;
+					}
+				}
+				if (matchedLength == 0) {
+					result.add(state.get(head));
 					head++;
+				} else {
+					head += matchedLength;
 				}
 			}
+		} finally {
+			DerivationRandom.clear();
 		}
-		this.state = result;
-		return this.getStateSting();
+		return result;
+	}
+
+	private List<Production> getAllWhichMatch(List<Production> candidates, CompactState state, int head, int len,
+											  EvaluationFrame frame, ContextIndex context) {
+		List<Production> matches = new ArrayList<>(1);
+		for (Production p : candidates) {
+			if (p.getPredLength() == len
+					&& p.predecessorSatisfied(state, head)
+					&& p.conditionSatisfied(state, head, frame)
+					&& (!p.isContextSensitive() || p.contextSatisfied(context, head, len))) {
+				matches.add(p);
+			}
+		}
+		return matches;
+	}
+
+	private CompactState deriveRange(CompactState state, int from, int to, int generation, ContextIndex context) {
+		int head = from;
+		CompactState result = new CompactState(
+				(to - from) * 2,
+				(int) ((long) state.getNumberOfValues() * 2 * (to - from) / Math.max(state.size(), 1)));
+		EvaluationFrame frame = new EvaluationFrame(this.frameSize);
+		try {
+			if (this.compiled != null) {
+				this.compiled.rewriteRange(state, from, to, generation, result, frame);
+				return result;
+			}
+			while (head < to) {
+				head += rewrite(state, head, generation, head, result, frame, context);
+			}
+		} finally {
+			DerivationRandom.clear();
+		}
+		return result;
+	}
+
+	/**
+	 * Rewrites the modules of state starting at head with the longest matching production, or copies the module at
+	 * head if there is none, appending the result. The random stream is seeded from the generation and the position
+	 * of head in the whole string, which differs from head when state is only part of the string.
+	 * Returns the number of modules consumed. The context index may be null if no production is context-sensitive.
+	 */
+	int rewrite(CompactState state, int head, int generation, int position, CompactState result,
+				EvaluationFrame frame, ContextIndex context) {
+		if (this.compiled != null) {
+			this.compiled.rewrite(state, head, generation, position, result, frame);
+			return 1;
+		}
+		List<Production> candidates = indexed
+				? productionIndex.getOrDefault(getIndexKey(state, head), List.of())
+				: this.productions;
+		if (!candidates.isEmpty()) {
+			DerivationRandom.seed(this.seed, generation, position);
+		}
+		// Maximal length matching
+		for (int len = Math.min(this.longestPred, state.size() - head); len > 0 && !candidates.isEmpty(); len--) {
+			List<Production> matches = getAllWhichMatch(candidates, state, head, len, frame, context);
+			if (matches.size() > 0) {
+				Production production = matches.size() == 1
+						? matches.get(0)
+						: chooseStochasticProduction(matches, state.subList(head, head + len));
+				production.apply(state, head, result, frame);
+				return len;
+			}
+		}
+		result.addFrom(state, head);
+		return 1;
+	}
+
+	private static int getIndexKey(CompactState state, int index) {
+		return state.getSymbol(index) | (state.getArity(index) << 16);
 	}
 
 	public List<Module> performDerivations(int n) {
 		for (int i = 0; i < n; i++) {
-			performDerivationStep();
+			derive();
 		}
 		return getState();
 	}
 
-	private Production chooseStochasticProduction(List<Production> matches, List<Module> pred) {
-		if (matches.stream().anyMatch(p -> p.getProbability() == null)) {
-			throw new RuntimeException(String.format(
-					"Ambiguous productions (without probabilities) for predecessor %s in string %s",
-					pred.toString(), getStateSting()));
+	/**
+	 * Performs n derivation steps storing the state as a {@link CompactState}, to reduce the memory used by long strings
+	 */
+	public CompactState performCompactDerivations(int n) {
+		if (!(this.state instanceof CompactState)) {
+			this.state = new CompactState(this.state);
+		}
+		performDerivations(n);
+		return (CompactState) this.state;
+	}
+
+	/**
+	 * Returns the n-th generation from the current state as a lazily derived stream, without changing the state.
+	 * If every production is context-free with a single module predecessor, the stream expands each module
+	 * depth-first so that only one successor per generation is held in memory; otherwise the generations are derived
+	 * in full when the stream is iterated. The modules are identical to those of {@link #performDerivations(int)}.
+	 */
+	public DerivationStream streamDerivations(int n) {
+		boolean depthFirst = this.longestPred == 1 && !this.contextSensitive;
+		CompactState start = new CompactState();
+		if (this.state instanceof CompactState) {
+			start.addAll((CompactState) this.state);
+		} else {
+			this.state.forEach(start::add);
+		}
+		return new DerivationStream(this, start, this.generation, n, depthFirst);
+	}
+
+	/**
+	 * Derives n generations of start, which is at the given generation, without changing the state
+	 */
+	CompactState deriveFully(CompactState start, int generation, int n) {
+		CompactState state = start;
+		for (int i = 0; i < n; i++) {
+			state = deriveRange(state, 0, state.size(), generation + i, getContextIndex(state));
 		}
-		Float probSum = matches.stream().map(Production::getProbability).reduce(0f, Float::sum);
-		if (probSum - 1 > 0.000001) {
+		return state;
+	}
+
+	EvaluationFrame createFrame() {
+		return new EvaluationFrame(this.frameSize);
+	}
+
+	/**
+	 * Chooses one of the matching productions, which all have the same predecessor, in proportion to their
+	 * probabilities using the random stream of the current position
+	 */
+	Production chooseStochasticProduction(List<Production> matches, List<Module> pred) {
+		Random random = DerivationRandom.current();
+		AliasTable table = this.stochasticGroups.get(matches.get(0));
+		if (table != null && table.size() == matches.size()) {
+			return table.sample(random);
+		}
+		// Only some of the group match due to their conditions or contexts
+		float probSum = 0;
+		for (Production match : matches) {
+			probSum += match.getProbability();
+		}
+		if (probSum - 1 > 0.000001 || probSum <= 0) {
 			throw new RuntimeException(String.format(
 					"Probabilities for productions on %s in string %s do not sum to 1. Actual sum: %f",
 					pred.toString(), getStateSting(), probSum));
 		}
-		EnumeratedDistribution<Production> dist = new EnumeratedDistribution<>(
-				matches.stream().map(p -> Pair.create(p, (double) p.getProbability())).collect(Collectors.toList()));
-
-		dist.reseedRandomGenerator(ParameterLoader.getParameters().random.generator.nextLong());
-		return dist.sample();
+		double u = random.nextDouble() * probSum;
+		for (Production match : matches) {
+			u -= match.getProbability();
+			if (u < 0) {
+				return match;
+			}
+		}
+		return matches.get(matches.size() - 1);
 	}
 
 	public List<Module> getState() {
@@ -21,16 +21,17 @@
 
 package lsystems;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 import lsystems.modules.Module;
 import lsystems.modules.ParametricExpressionModule;
 import lsystems.modules.ParametricParameterModule;
 import lsystems.modules.ParametricValueModule;
 import lsystems.modules.PredecessorModule;
+import lsystems.modules.ValuedModule;
 
 public class Production {
 
@@ -38,82 +39,235 @@ public class Production {
 	private final List<PredecessorModule> predecessor;
 	private final List<PredecessorModule> rightContext;
 	private final Predicate<Map<String, Float>> condition;
+	private final FrameCondition frameCondition;
 	private final List<Module> successor;
 	private final float probability;
 
+	// Keys of the context modules (see ContextIndex)
+	private final int[] leftContextKeys;
+	private final int[] rightContextKeys;
+
+	// Predecessor module and value index of each parameter (slot) of the predecessor
+	private final int[] slotModules;
+	private final int[] slotValues;
+	// Slots of the parameters of the frame condition and of each compiled successor expression
+	private final int[] conditionSlots;
+	private final int[][] successorSlots;
+	// True if the condition and all successor expressions can be evaluated without maps
+	private final boolean compiled;
+	private final int frameSize;
+
+	public Production(List<PredecessorModule> leftContext,
+					  List<PredecessorModule> predecessor,
+					  List<PredecessorModule> rightContext,
+					  Predicate<Map<String, Float>> condition,
+					  List<Module> successor,
+					  Float probability) {
+		this(leftContext, predecessor, rightContext, condition, null, null, successor, probability);
+	}
+
 	public Production(List<PredecessorModule> leftContext,
 					  List<PredecessorModule> predecessor,
 					  List<PredecessorModule> rightContext,
 					  Predicate<Map<String, Float>> condition,
+					  List<String> frameConditionParams,
+					  FrameCondition frameCondition,
 					  List<Module> successor,
 					  Float probability) {
 		this.leftContext = leftContext;
 		this.predecessor = predecessor;
 		this.rightContext = rightContext;
 		this.condition = condition;
+		this.frameCondition = frameCondition;
 		this.successor = successor;
 		this.probability = probability;
+		this.leftContextKeys = leftContext == null ? null : leftContext.stream().mapToInt(ContextIndex::getKey).toArray();
+		this.rightContextKeys = rightContext == null ? null : rightContext.stream().mapToInt(ContextIndex::getKey).toArray();
+
+		// Resolve parameter names to slots in the predecessor
+		Map<String, Integer> slots = new HashMap<>();
+		List<int[]> slotPositions = new ArrayList<>();
+		for (int i = 0; i < predecessor.size(); i++) {
+			if (!(predecessor.get(i) instanceof ParametricParameterModule)) {
+				continue;
+			}
+			List<String> vars = ((ParametricParameterModule) predecessor.get(i)).getParams();
+			for (int j = 0; j < vars.size(); j++) {
+				if (slots.putIfAbsent(vars.get(j), slots.size()) != null) {
+					throw new RuntimeException(String.format("Conflicting param %s in modules: %s", vars.get(j), predecessor));
+				}
+				slotPositions.add(new int[] {i, j});
+			}
+		}
+		this.slotModules = slotPositions.stream().mapToInt(p -> p[0]).toArray();
+		this.slotValues = slotPositions.stream().mapToInt(p -> p[1]).toArray();
+		this.conditionSlots = frameCondition == null ? null : resolveSlots(frameConditionParams, slots);
+		this.successorSlots = new int[successor.size()][];
+		int size = conditionSlots == null ? 0 : conditionSlots.length;
+		boolean allCompiled = condition == null;
+		for (int k = 0; k < successor.size(); k++) {
+			if (!(successor.get(k) instanceof ParametricExpressionModule)) {
+				continue;
+			}
+			ParametricExpressionModule expression = (ParametricExpressionModule) successor.get(k);
+			if (expression.isCompiled()) {
+				successorSlots[k] = resolveSlots(expression.getParams(), slots);
+				size = Math.max(size, Math.max(successorSlots[k].length, expression.getArity()));
+			} else {
+				allCompiled = false;
+			}
+		}
+		this.compiled = allCompiled;
+		this.frameSize = size;
+	}
+
+	private int[] resolveSlots(List<String> params, Map<String, Integer> slots) {
+		int[] resolved = new int[params.size()];
+		for (int i = 0; i < resolved.length; i++) {
+			Integer slot = slots.get(params.get(i));
+			if (slot == null) {
+				throw new RuntimeException(String.format("Parameter %s is not a parameter of predecessor %s",
+						params.get(i), predecessor));
+			}
+			resolved[i] = slot;
+		}
+		return resolved;
+	}
+
+	int getFrameSize() {
+		return frameSize;
 	}
 
 	int getPredLength() {
 		return predecessor.size();
 	}
 
+	int getIndexKey() {
+		return LSystem.getIndexKey(predecessor.get(0));
+	}
+
 	public boolean predecessorSatisfied(List<Module> pred) {
 		return predecessor.equals(pred);
 	}
 
-	public boolean conditionSatisfied(List<Module> pred) {
+	/**
+	 * True if the modules of state starting at head are equal to the predecessor
+	 */
+	public boolean predecessorSatisfied(CompactState state, int head) {
+		if (head + predecessor.size() > state.size()) {
+			return false;
+		}
+		for (int i = 0; i < predecessor.size(); i++) {
+			PredecessorModule module = predecessor.get(i);
+			if (module.getName() != state.getSymbol(head + i)) {
+				return false;
+			}
+			if (module instanceof ParametricParameterModule) {
+				if (!state.isParametric(head + i) || module.getNumberOfParameters() != state.getArity(head + i)) {
+					return false;
+				}
+			} else if (state.isParametric(head + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	boolean conditionSatisfied(List<Module> pred, EvaluationFrame frame) {
+		if (this.frameCondition != null) {
+			loadSlots(pred, conditionSlots, frame.args);
+			if (!frameCondition.test(frame.args)) {
+				return false;
+			}
+		}
 		if (this.condition == null) {
 			return true;
 		}
 		return condition.test(getParamsFromModules(pred));
 	}
 
-	public boolean contextSatisfied(List<Module> prev, List<Module> remaining, List<Module> ignored) {
-		return leftContextSatisfied(prev, ignored) && rightContextSatisfied(remaining, ignored);
-	}
-
-//	private boolean sideContextSatisfied(List<Module> actual, List<PredecessorModule> expected, List<Module> ignored) {
-//		int contextLength = expected.size();
-//		List<Module> actualContext = actual
-//				.stream()
-//				.filter(m -> !ignored.contains(m))
-//				.collect(Collectors.toList());
-//		actualContext = actualContext.subList(actualContext.size() - contextLength, actualContext.size());
-//		return expected.equals(actualContext);
-//	}
-
-	private boolean leftContextSatisfied(List<Module> prev, List<Module> ignored) {
-		if (leftContext == null) {
+	boolean conditionSatisfied(CompactState state, int head, EvaluationFrame frame) {
+		if (this.frameCondition != null) {
+			loadSlots(state, head, conditionSlots, frame.args);
+			if (!frameCondition.test(frame.args)) {
+				return false;
+			}
+		}
+		if (this.condition == null) {
 			return true;
 		}
-		if (prev.size() == 0) {
-			return false;
+		return condition.test(getParamsFromState(state, head));
+	}
+
+	private void loadSlots(CompactState state, int head, int[] slots, float[] args) {
+		for (int i = 0; i < slots.length; i++) {
+			int slot = slots[i];
+			args[i] = state.getValue(head + slotModules[slot], slotValues[slot]);
 		}
-		int contextLength = leftContext.size();
-		List<Module> actualContext = prev
-				.stream()
-				.filter(m -> !ignored.contains(m))
-				.collect(Collectors.toList());
-		actualContext = actualContext.subList(actualContext.size() - contextLength, actualContext.size());
-		return leftContext.equals(actualContext);
 	}
 
-	private boolean rightContextSatisfied(List<Module> remaining, List<Module> ignored) {
-		if (rightContext == null) {
-			return true;
+	private void loadSlots(List<Module> pred, int[] slots, float[] args) {
+		for (int i = 0; i < slots.length; i++) {
+			int slot = slots[i];
+			args[i] = ((ValuedModule) pred.get(slotModules[slot])).getValue(slotValues[slot]);
 		}
-		if (remaining.size() == 0) {
-			return false;
+	}
+
+	/**
+	 * True if the successor expressions (and the condition, if any) can be evaluated from slots without maps
+	 */
+	boolean isCompiled() {
+		return compiled;
+	}
+
+	FrameCondition getFrameCondition() {
+		return frameCondition;
+	}
+
+	/**
+	 * Index in its module of the predecessor value loaded into each argument of the frame condition
+	 */
+	int[] getConditionValueIndices() {
+		return getValueIndices(conditionSlots);
+	}
+
+	/**
+	 * Index in its module of the predecessor value loaded into each argument of the k-th successor expression
+	 */
+	int[] getSuccessorValueIndices(int k) {
+		return getValueIndices(successorSlots[k]);
+	}
+
+	private int[] getValueIndices(int[] slots) {
+		int[] indices = new int[slots.length];
+		for (int i = 0; i < slots.length; i++) {
+			indices[i] = slotValues[slots[i]];
 		}
-		int contextLength = rightContext.size();
-		List<Module> actualContext = remaining
-				.stream()
-				.filter(m -> !ignored.contains(m))
-				.collect(Collectors.toList());
-		actualContext = actualContext.subList(0, contextLength);
-		return rightContext.equals(actualContext);
+		return indices;
+	}
+
+	List<PredecessorModule> getPredecessor() {
+		return predecessor;
+	}
+
+	boolean hasCondition() {
+		return condition != null || frameCondition != null;
+	}
+
+	List<Module> getSuccessor() {
+		return successor;
+	}
+
+	boolean isContextSensitive() {
+		return leftContext != null || rightContext != null;
+	}
+
+	/**
+	 * True if the context of the predecessor matched at head with the given length is satisfied
+	 */
+	boolean contextSatisfied(ContextIndex context, int head, int length) {
+		return (leftContextKeys == null || context.matchesLeft(head, leftContextKeys))
+				&& (rightContextKeys == null || context.matchesRight(head + length, rightContextKeys));
 	}
 
 	// Given the modules in "currentPred" match this production, what are the values of the params?
@@ -147,18 +301,87 @@ public class Production {
 		return params;
 	}
 
-	public List<Module> apply(List<Module> currentPred) {
-		Map<String, Float> params = getParamsFromModules(currentPred);
-		if (params == null || params.size() == 0 && currentPred.stream().anyMatch(m -> m instanceof ParametricValueModule)) {
-			return successor; // Non-parametric
+	// Given the modules of state starting at head match this production, what are the values of the params?
+	private Map<String, Float> getParamsFromState(CompactState state, int head) {
+		Map<String, Float> params = new HashMap<>();
+		for (int i = 0; i < this.predecessor.size(); i++) {
+			if (!(this.predecessor.get(i) instanceof ParametricParameterModule)) {
+				continue;
+			}
+			List<String> vars = ((ParametricParameterModule) this.predecessor.get(i)).getParams();
+			for (int j = 0; j < vars.size(); j++) {
+				if (params.put(vars.get(j), state.getValue(head + i, j)) != null) {
+					throw new RuntimeException(
+							String.format("Conflicting values for param %s in modules: %s with values %s",
+									vars.get(j), this.predecessor, state.subList(head, head + predecessor.size())));
+				}
+			}
 		}
-		return successor.stream().map(m -> {
-			if (m instanceof ParametricExpressionModule) {
-				return ((ParametricExpressionModule) m).evaluate(params);
+		return params;
+	}
+
+	/**
+	 * Appends the successor for the modules of state starting at head to result
+	 */
+	void apply(CompactState state, int head, CompactState result, EvaluationFrame frame) {
+		if (!compiled) {
+			Map<String, Float> params = getParamsFromState(state, head);
+			for (Module module : successor) {
+				if (module instanceof ParametricExpressionModule) {
+					result.add(((ParametricExpressionModule) module).evaluate(params));
+				} else {
+					result.add(module);
+				}
 			}
-			return m;
-		}).collect(Collectors.toList());
+			return;
+		}
+		for (int k = 0; k < successor.size(); k++) {
+			Module module = successor.get(k);
+			if (module instanceof ParametricExpressionModule) {
+				ParametricExpressionModule expression = (ParametricExpressionModule) module;
+				loadSlots(state, head, successorSlots[k], frame.args);
+				expression.evaluate(frame.args, frame.values);
+				result.addParametric(expression.getName(), frame.values, 0, expression.getArity());
+			} else {
+				result.add(module);
+			}
+		}
+	}
 
+	/**
+	 * Appends the successor for the modules of currentPred to result
+	 */
+	void apply(List<Module> currentPred, List<Module> result, EvaluationFrame frame) {
+		if (!compiled) {
+			Map<String, Float> params = getParamsFromModules(currentPred);
+			if (params.size() == 0 && currentPred.stream().anyMatch(m -> m instanceof ParametricValueModule)) {
+				result.addAll(successor); // Non-parametric
+				return;
+			}
+			for (Module module : successor) {
+				if (module instanceof ParametricExpressionModule) {
+					result.add(((ParametricExpressionModule) module).evaluate(params));
+				} else {
+					result.add(module);
+				}
+			}
+			return;
+		}
+		for (int k = 0; k < successor.size(); k++) {
+			Module module = successor.get(k);
+			if (module instanceof ParametricExpressionModule) {
+				ParametricExpressionModule expression = (ParametricExpressionModule) module;
+				loadSlots(currentPred, successorSlots[k], frame.args);
+				expression.evaluate(frame.args, frame.values);
+				List<Float> values = new ArrayList<>(expression.getArity());
+				for (int i = 0; i < expression.getArity(); i++) {
+					values.add(frame.values[i]);
+				}
+				result.add(new ParametricValueModule(expression.getName(), values));
+			} else {
+				result.add(module);
+			}
+		}
 	}
 
 	public Float getProbability() {
@@ -34,6 +34,8 @@ public class ProductionBuilder {
 	private List<PredecessorModule> rightContext;
 	private final List<Module> successor;
 	private Predicate<Map<String, Float>> condition;
+	private List<String> frameConditionParams;
+	private FrameCondition frameCondition;
 	private float probability = 1.0f;
 
 	public ProductionBuilder(List<PredecessorModule> predecessor, List<Module> successor) {
@@ -56,12 +58,22 @@ public class ProductionBuilder {
 		return this;
 	}
 
+	/**
+	 * Condition evaluated over the values of the named predecessor parameters, in the order they are named
+	 */
+	public ProductionBuilder withCondition(List<String> params, FrameCondition condition) {
+		this.frameConditionParams = params;
+		this.frameCondition = condition;
+		return this;
+	}
+
 	public ProductionBuilder withProbability(Float probability) {
 		this.probability = probability;
 		return this;
 	}
 
 	public Production build() {
-		return new Production(leftContext, predecessor, rightContext, condition, successor, probability);
+		return new Production(leftContext, predecessor, rightContext, condition,
+				frameConditionParams, frameCondition, successor, probability);
 	}
 }
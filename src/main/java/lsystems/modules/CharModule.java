@@ -53,6 +53,11 @@ public class CharModule implements PredecessorModule, AxiomaticModule {
 		return Objects.equals(value, that.value);
 	}
 
+	@Override
+	public int hashCode() {
+		return Objects.hash(value);
+	}
+
 	@Override
 	public String toString() {
 		return Character.toString(value);
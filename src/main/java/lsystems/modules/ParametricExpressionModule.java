@@ -21,6 +21,7 @@
 
 package lsystems.modules;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -30,10 +31,38 @@ import java.util.stream.Collectors;
 public class ParametricExpressionModule extends ParametricParameterModule {
 
 	private Function<Map<String, Float>, List<Float>> expression;
+	private final FrameExpression compiledExpression;
+	private final int arity;
 
 	public ParametricExpressionModule(char name, List<String> params, Function<Map<String, Float>, List<Float>> expression) {
 		super(name, params);
 		this.expression = expression;
+		this.compiledExpression = null;
+		this.arity = -1;
+	}
+
+	private ParametricExpressionModule(char name, List<String> params, int arity, FrameExpression expression) {
+		super(name, params);
+		this.compiledExpression = expression;
+		this.arity = arity;
+	}
+
+	/**
+	 * Expression which writes arity output values from the values of params, without allocating maps or boxed values
+	 */
+	public static ParametricExpressionModule compiled(char name, List<String> params, int arity, FrameExpression expression) {
+		return new ParametricExpressionModule(name, params, arity, expression);
+	}
+
+	public boolean isCompiled() {
+		return compiledExpression != null;
+	}
+
+	/**
+	 * Number of values output by a compiled expression
+	 */
+	public int getArity() {
+		return arity;
 	}
 
 	@Override
@@ -52,11 +81,28 @@ public class ParametricExpressionModule extends ParametricParameterModule {
 				params.stream().map(Objects::toString).collect(Collectors.joining(",")));
 	}
 
+	public void evaluate(float[] args, float[] out) {
+		compiledExpression.evaluate(args, out);
+	}
+
 	public ParametricValueModule evaluate(Map<String, Float> params) {
 		if (!this.params.stream().allMatch(params::containsKey)) {
 			throw new RuntimeException("Parameter value not provided for (at least) one of: " + this.params.toString() +
 					" in " + this.toString());
 		}
+		if (isCompiled()) {
+			float[] args = new float[this.params.size()];
+			for (int i = 0; i < args.length; i++) {
+				args[i] = params.get(this.params.get(i));
+			}
+			float[] out = new float[arity];
+			compiledExpression.evaluate(args, out);
+			List<Float> values = new ArrayList<>(arity);
+			for (float value : out) {
+				values.add(value);
+			}
+			return new ParametricValueModule(name, values);
+		}
 		return new ParametricValueModule(name, expression.apply(params));
 	}
 }
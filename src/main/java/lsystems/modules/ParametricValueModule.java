@@ -25,7 +25,7 @@ import java.util.List;
 import java.util.Objects;
 import java.util.stream.Collectors;
 
-public class ParametricValueModule extends ParametricModule implements AxiomaticModule {
+public class ParametricValueModule extends ParametricModule implements AxiomaticModule, ValuedModule {
 
 	private final List<Float> values;
 
@@ -46,6 +46,11 @@ public class ParametricValueModule extends ParametricModule implements Axiomatic
 		return values;
 	}
 
+	@Override
+	public float getValue(int index) {
+		return values.get(index);
+	}
+
 	@Override
 	public int getNumberOfParameters() {
 		return values.size();
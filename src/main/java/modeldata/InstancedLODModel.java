@@ -21,6 +21,7 @@
 
 package modeldata;
 
+import java.util.List;
 import java.util.Map;
 import java.util.function.Supplier;
 import modeldata.meshdata.Mesh;
@@ -33,9 +34,12 @@ public class InstancedLODModel {
 
 	private final int numberOfInstances;
 	private final Map<LevelOfDetail, Model> models;
+	// The model drawn for each level of the chain
+	private final List<Model> chain;
 
 	public InstancedLODModel(Map<LevelOfDetail, Model> models, int numberOfInstances) {
 		this.models = models;
+		this.chain = LevelOfDetail.fill(models);
 		this.numberOfInstances = numberOfInstances;
 		for (Model m : models.values()) {
 			m.setIsInstanced(true);
@@ -70,15 +74,7 @@ public class InstancedLODModel {
 		if (numberOfInstances == 0) {
 			return;
 		}
-		Model lodModel = models.get(levelOfDetail);
-		if (lodModel == null) {
-			switch (levelOfDetail) {
-				case HIGH -> lodModel = models.get(LevelOfDetail.LOW);
-				case LOW -> lodModel = models.get(LevelOfDetail.HIGH);
-				default -> throw new RuntimeException("Unhandled LOD: " + levelOfDetail);
-			}
-		}
-		for (Mesh mesh : lodModel.getMeshes()) {
+		for (Mesh mesh : chain.get(levelOfDetail.getIndex()).getMeshes()) {
 			mesh.render(numberOfInstances, renderForShadows);
 		}
 	}
@@ -21,6 +21,7 @@
 
 package modeldata;
 
+import java.util.List;
 import java.util.Map;
 import modeldata.meshdata.Mesh;
 import org.joml.Matrix4f;
@@ -29,9 +30,12 @@ import rendering.LevelOfDetail;
 public class LODModel {
 
 	private final Map<LevelOfDetail, Model> models;
+	// The model drawn for each level of the chain
+	private final List<Model> chain;
 
 	public LODModel(Map<LevelOfDetail, Model> models) {
 		this.models = models;
+		this.chain = LevelOfDetail.fill(models);
 	}
 
 	public void setModelMatrix(Matrix4f modelMat) {
@@ -41,15 +45,7 @@ public class LODModel {
 	}
 
 	public void render(LevelOfDetail levelOfDetail, boolean renderForShadows) {
-		Model lodModel = models.get(levelOfDetail);
-		if (lodModel == null) {
-			switch (levelOfDetail) {
-				case HIGH -> lodModel = models.get(LevelOfDetail.LOW);
-				case LOW -> lodModel = models.get(LevelOfDetail.HIGH);
-				default -> throw new RuntimeException("Unhandled LOD: " + levelOfDetail);
-			}
-		}
-		for (Mesh mesh : lodModel.getMeshes()) {
+		for (Mesh mesh : chain.get(levelOfDetail.getIndex()).getMeshes()) {
 			mesh.render(renderForShadows);
 		}
 	}
@@ -23,11 +23,12 @@ package modeldata;
 
 import java.io.File;
 import java.nio.IntBuffer;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 import static org.lwjgl.assimp.Assimp.aiGetMaterialTexture;
 import static org.lwjgl.assimp.Assimp.aiImportFile;
@@ -37,6 +38,7 @@ import static org.lwjgl.assimp.Assimp.aiProcess_FlipUVs;
 import static org.lwjgl.assimp.Assimp.aiProcess_GenSmoothNormals;
 import static org.lwjgl.assimp.Assimp.aiProcess_JoinIdenticalVertices;
 import static org.lwjgl.assimp.Assimp.aiProcess_Triangulate;
+import static org.lwjgl.assimp.Assimp.aiReleaseImport;
 import static org.lwjgl.assimp.Assimp.aiTextureType_DIFFUSE;
 import static org.lwjgl.assimp.Assimp.aiTextureType_HEIGHT;
 import static org.lwjgl.assimp.Assimp.aiTextureType_NORMALS;
@@ -47,12 +49,13 @@ import static rendering.ShaderPrograms.textureShader;
 
 import lombok.Getter;
 import modeldata.meshdata.Mesh;
+import modeldata.meshdata.MeshBuilder;
+import modeldata.meshdata.MeshData;
+import modeldata.meshdata.MeshFile;
 import modeldata.meshdata.Texture;
 import modeldata.meshdata.Texture2D;
-import modeldata.meshdata.Vertex;
 import modeldata.meshdata.VertexAttribute;
 import org.joml.Matrix4f;
-import org.joml.Vector2f;
 import org.joml.Vector3f;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.assimp.AIFace;
@@ -63,7 +66,9 @@ import org.lwjgl.assimp.AIString;
 import org.lwjgl.assimp.AIVector3D;
 import params.ParameterLoader;
 import params.Parameters;
+import rendering.LevelOfDetail;
 import rendering.ShaderProgram;
+import utils.MeshUtils;
 
 public class LoadedModel implements Model {
 
@@ -75,83 +80,64 @@ public class LoadedModel implements Model {
 	private float maskRadius;
 	@Getter
 	private float maskHeight;
+	// The meshes of each level of detail, decimated from the meshes of the model when they are first needed
+	private Map<LevelOfDetail, List<Mesh>> levelsOfDetail = null;
+
+	public static final int DEFAULT_FLAGS = aiProcess_JoinIdenticalVertices
+			| aiProcess_CalcTangentSpace
+			| aiProcess_GenSmoothNormals
+			| aiProcess_Triangulate
+			| aiProcess_FixInfacingNormals
+			| aiProcess_FlipUVs;
 
 	public LoadedModel(final String resourcePath, final String texturesDir) {
-		this(resourcePath,
-				texturesDir,
-				aiProcess_JoinIdenticalVertices
-						| aiProcess_CalcTangentSpace
-						| aiProcess_GenSmoothNormals
-						| aiProcess_Triangulate
-						| aiProcess_FixInfacingNormals
-						| aiProcess_FlipUVs
-		);
+		this(resourcePath, texturesDir, DEFAULT_FLAGS);
 	}
 
+	/**
+	 * @param resourcePath A model imported with Assimp, or a {@link MeshFile} if it has its extension (in which case
+	 *                     the flags are not used)
+	 */
 	public LoadedModel(final String resourcePath, final String texturesDir, final int flags) {
 		this.texturesDir = texturesDir;
 
 		String absPath = new File(parameters.resourcesRoot + resourcePath).getAbsolutePath();
-		AIScene scene = aiImportFile(absPath, flags);
-		if (scene == null || scene.mRootNode() == null) {
-			throw new RuntimeException("Error loading model: " + absPath);
+		List<MeshFile.Entry> entries = absPath.endsWith(MeshFile.EXTENSION)
+				? MeshFile.read(Paths.get(absPath))
+				: importMeshes(absPath, flags);
+		List<Mesh> meshes = new ArrayList<>();
+		for (MeshFile.Entry entry : entries) {
+			setMask(entry.getData());
+			meshes.add(createMesh(entry));
 		}
-
-		List<Map<String, Texture>> textures = loadTextures(scene);
-		List<Mesh> meshes = loadMeshes(scene, textures);
 		model = new SingleModel(meshes);
 	}
 
-	private static List<Vertex> listsToVertexArray(
-			final List<Vector3f> positions,
-			final List<Vector3f> normals,
-			final List<Vector3f> tangents,
-			final List<Vector2f> textureCoordinates) {
-
-		if (positions.size() != normals.size() ||
-				tangents.size() != 0 && positions.size() != tangents.size() ||
-				textureCoordinates.size() != 0 && positions.size() != textureCoordinates.size()) {
-			throw new RuntimeException("Unequal object data");
-		}
-
-		List<Vertex> vertices = new ArrayList<>();
-		for (int i = 0; i < positions.size(); i++) {
-			if (tangents.size() != 0 && textureCoordinates.size() != 0) {
-				vertices.add(new Vertex(positions.get(i), normals.get(i), tangents.get(i), textureCoordinates.get(i)));
-			} else if (textureCoordinates.size() != 0) {
-				vertices.add(new Vertex(positions.get(i), normals.get(i), textureCoordinates.get(i)));
-			} else {
-				vertices.add(new Vertex(positions.get(i), normals.get(i)));
-			}
+	/**
+	 * Imports the meshes of a model with Assimp, which does not need an OpenGL context
+	 */
+	public static List<MeshFile.Entry> importMeshes(final String absPath, final int flags) {
+		AIScene scene = aiImportFile(absPath, flags);
+		if (scene == null || scene.mRootNode() == null) {
+			throw new RuntimeException("Error loading model: " + absPath);
 		}
 
-		return vertices;
-	}
-
-	private static List<VertexAttribute> getAttributes(
-			final List<Vector3f> positions,
-			final List<Vector3f> normals,
-			final List<Vector3f> tangents,
-			final List<Vector2f> textureCoordinates) {
-		List<VertexAttribute> attributes = new ArrayList<>();
-		if (positions.size() > 0) {
-			attributes.add(VertexAttribute.POSITION);
-		}
-		if (normals.size() > 0) {
-			attributes.add(VertexAttribute.NORMAL);
-		}
-		if (tangents.size() > 0) {
-			attributes.add(VertexAttribute.TANGENT);
-		}
-		if (textureCoordinates.size() > 0) {
-			attributes.add(VertexAttribute.TEXTURE);
+		List<String[]> textures = loadTextures(scene);
+		List<MeshFile.Entry> entries = new ArrayList<>();
+		final int noOfMeshes = scene.mNumMeshes();
+		PointerBuffer aiMeshes = scene.mMeshes();
+		for (int i = 0; i < noOfMeshes; i++) {
+			AIMesh aiMesh = AIMesh.create(aiMeshes.get(i));
+			int materialIndex = aiMesh.mMaterialIndex();
+			String[] meshTextures = materialIndex >= 0 ? textures.get(materialIndex) : new String[]{"", ""};
+			entries.add(new MeshFile.Entry(processMesh(aiMesh), meshTextures[0], meshTextures[1]));
 		}
-		return attributes;
+		aiReleaseImport(scene);
+		return entries;
 	}
 
-
-	private List<Map<String, Texture>> loadTextures(final AIScene scene) {
-		List<Map<String, Texture>> textures = new ArrayList<>();
+	private static List<String[]> loadTextures(final AIScene scene) {
+		List<String[]> textures = new ArrayList<>();
 		int noOfMaterials = scene.mNumMaterials();
 		PointerBuffer aiMaterials = scene.mMaterials();
 		for (int i = 0; i < noOfMaterials; i++) {
@@ -161,180 +147,157 @@ public class LoadedModel implements Model {
 		return textures;
 	}
 
-	// Currently only loads 1st texture of each mesh
-	private Map<String, Texture> processMaterial(final AIMaterial material) {
-
+	// Currently only loads 1st texture of each mesh. Returns the paths of the diffuse and normal textures, which are
+	// empty if the material does not have them
+	private static String[] processMaterial(final AIMaterial material) {
 		AIString texturePathPointer = AIString.calloc();
 		aiGetMaterialTexture(material, aiTextureType_DIFFUSE, 0, texturePathPointer,
 				(IntBuffer) null, null, null, null, null, null);
-		String texturePath = texturePathPointer.dataString();
-		Texture diffuseTexture = null;
-		if (texturePath != null && texturePath.length() > 0) {
-			if (loadedTextures.containsKey(texturePath)) {
-				diffuseTexture = loadedTextures.get(texturePath);
-			} else {
-				diffuseTexture = new Texture2D(texturesDir + "/" + texturePath, new Vector3f(), 6,
-						GL_SRGB_ALPHA, GL_REPEAT);
-				loadedTextures.put(texturePath, diffuseTexture);
-			}
-		}
+		String diffusePath = texturePathPointer.dataString();
 
 		aiGetMaterialTexture(material, aiTextureType_NORMALS, 0, texturePathPointer,
 				(IntBuffer) null, null, null, null, null, null);
-		texturePath = texturePathPointer.dataString();
-		Texture normalTexture = null;
-		if (texturePath == null || texturePath.length() == 0) {
+		String normalPath = texturePathPointer.dataString();
+		if (normalPath == null || normalPath.length() == 0) {
 			// Try aiTextureType_HEIGHT
 			aiGetMaterialTexture(material, aiTextureType_HEIGHT, 0, texturePathPointer,
 					(IntBuffer) null, null, null, null, null, null);
-			texturePath = texturePathPointer.dataString();
-		}
-		if (texturePath != null && texturePath.length() > 0) {
-			if (loadedTextures.containsKey(texturePath)) {
-				normalTexture = loadedTextures.get(texturePath);
-			} else {
-				normalTexture = new Texture2D(texturesDir + "/" + texturePath, new Vector3f(), 7,
-						GL_RGBA, GL_REPEAT);
-				loadedTextures.put(texturePath, diffuseTexture);
-			}
-		}
-
-		Map<String, Texture> materialTextures = new HashMap<>();
-		if (diffuseTexture != null) {
-			materialTextures.put("diffuseTexture", diffuseTexture);
-		}
-		if (normalTexture != null) {
-			materialTextures.put("normalTexture", normalTexture);
+			normalPath = texturePathPointer.dataString();
 		}
+		texturePathPointer.free();
 
-		return materialTextures;
+		return new String[]{
+				diffusePath == null ? "" : diffusePath,
+				normalPath == null ? "" : normalPath
+		};
 	}
 
-
-	private List<Mesh> loadMeshes(final AIScene scene, List<Map<String, Texture>> textures) {
-		List<Mesh> meshes = new ArrayList<>();
-		final int noOfMeshes = scene.mNumMeshes();
-		PointerBuffer aiMeshes = scene.mMeshes();
-		for (int i = 0; i < noOfMeshes; i++) {
-			AIMesh aiMesh = AIMesh.create(aiMeshes.get(i));
-			meshes.add(processMesh(aiMesh, textures));
+	private Mesh createMesh(MeshFile.Entry entry) {
+		Mesh mesh = new Mesh(entry.getData());
+		if (entry.getDiffuseTexture().length() > 0) {
+			mesh.addTexture("diffuseTexture", loadedTextures.computeIfAbsent(entry.getDiffuseTexture(),
+					path -> new Texture2D(texturesDir + "/" + path, new Vector3f(), 6, GL_SRGB_ALPHA, GL_REPEAT)));
+		}
+		if (entry.getNormalTexture().length() > 0) {
+			mesh.addTexture("normalTexture", loadedTextures.computeIfAbsent(entry.getNormalTexture(),
+					path -> new Texture2D(texturesDir + "/" + path, new Vector3f(), 7, GL_RGBA, GL_REPEAT)));
 		}
-		return meshes;
+		mesh.setShaderProgram(textureShader);
+		return mesh;
 	}
 
-	private Mesh processMesh(final AIMesh mesh, List<Map<String, Texture>> textures) {
-		List<Vector3f> positions = processPositions(mesh);
-		List<Vector3f> normals = processNormals(mesh);
-		List<Vector3f> tangents = processTangents(mesh);
-		List<Vector2f> textureCoordinates = processTexCoords(mesh);
-		List<Vertex> vertices = listsToVertexArray(positions, normals, tangents, textureCoordinates);
-
-		setMask(positions);
+	private static MeshData processMesh(final AIMesh mesh) {
+		AIVector3D.Buffer aiVertices = mesh.mVertices();
+		AIVector3D.Buffer aiNormals = mesh.mNormals();
+		AIVector3D.Buffer aiTangents = mesh.mTangents();
+		AIVector3D.Buffer aiTexCoords = mesh.mTextureCoords(0);
+		int numVertices = aiVertices.remaining();
+		boolean hasTangents = aiTangents != null && aiTangents.remaining() > 0;
+		boolean hasTexCoords = aiTexCoords != null && aiTexCoords.remaining() > 0;
 
-		List<Integer> indices = processIndices(mesh);
-		int[] indexData = new int[indices.size()];
-		for (int i = 0; i < indices.size(); i++) {
-			indexData[i] = indices.get(i);
+		if (aiNormals == null && numVertices > 0 || aiNormals != null && aiNormals.remaining() != numVertices ||
+				hasTangents && aiTangents.remaining() != numVertices ||
+				hasTexCoords && aiTexCoords.remaining() != numVertices) {
+			throw new RuntimeException("Unequal object data");
 		}
 
-		List<VertexAttribute> attributes = getAttributes(positions, normals, tangents, textureCoordinates);
-
-		Mesh meshData = new Mesh(vertices, indexData, attributes);
-		int materialIndex = mesh.mMaterialIndex();
-		if (materialIndex >= 0) {
-			Map<String, Texture> meshTextures = textures.get(materialIndex);
-			for (Map.Entry<String, Texture> texture : meshTextures.entrySet()) {
-				meshData.addTexture(texture.getKey(), texture.getValue());
+		List<VertexAttribute> attributes = getAttributes(numVertices, hasTangents, hasTexCoords);
+		MeshBuilder builder = new MeshBuilder(attributes, numVertices, mesh.mNumFaces() * 3);
+		for (int i = 0; i < numVertices; i++) {
+			AIVector3D position = aiVertices.get(i);
+			AIVector3D normal = aiNormals.get(i);
+			builder.vertex()
+					.position(position.x(), position.y(), position.z())
+					.normal(-normal.x(), -normal.y(), -normal.z());
+			if (hasTangents) {
+				AIVector3D tangent = aiTangents.get(i);
+				builder.tangent(tangent.x(), tangent.y(), tangent.z());
 			}
-		}
-		meshData.setShaderProgram(textureShader);
-		return meshData;
-
-	}
-
-	private void setMask(List<Vector3f> positions) {
-		float maxRadius = 0;
-		for (Vector3f position : positions) {
-			float len = (new Vector2f(position.x, position.z)).length();
-			if (len > maxRadius) {
-				maxRadius = len;
+			if (hasTexCoords) {
+				AIVector3D texCoord = aiTexCoords.get(i);
+				builder.texCoord(texCoord.x(), texCoord.y());
 			}
 		}
-		maskRadius = maxRadius;
-		Vector3f topPoint = positions.stream().max(Comparator.comparingDouble(p -> p.y)).orElse(new Vector3f());
-		Vector3f bottomPoint = positions.stream().min(Comparator.comparingDouble(p -> p.y)).orElse(new Vector3f());
-		maskHeight = Math.abs(topPoint.y - bottomPoint.y);
+		processIndices(mesh, builder);
+		return builder.build();
 	}
 
-	private List<Vector3f> processPositions(final AIMesh mesh) {
-		List<Vector3f> positions = new ArrayList<>();
-		AIVector3D.Buffer aiVertices = mesh.mVertices();
-		while (aiVertices.remaining() > 0) {
-			positions.add(aiVectorToJoml(aiVertices.get()));
-		}
-		return positions;
-	}
-
-	private List<Vector3f> processNormals(final AIMesh mesh) {
-		List<Vector3f> normals = new ArrayList<>();
-		AIVector3D.Buffer aiNormals = mesh.mNormals();
-		if (aiNormals == null) {
-			return normals;
-		}
-		while (aiNormals.remaining() > 0) {
-			normals.add(aiVectorToJoml(aiNormals.get()).negate());
+	private static List<VertexAttribute> getAttributes(int numVertices, boolean hasTangents, boolean hasTexCoords) {
+		List<VertexAttribute> attributes = new ArrayList<>();
+		if (numVertices > 0) {
+			attributes.add(VertexAttribute.POSITION);
+			attributes.add(VertexAttribute.NORMAL);
 		}
-		return normals;
-	}
-
-	private List<Vector3f> processTangents(final AIMesh mesh) {
-		List<Vector3f> tangents = new ArrayList<>();
-		AIVector3D.Buffer aiTangents = mesh.mTangents();
-		if (aiTangents == null) {
-			return tangents;
+		if (hasTangents) {
+			attributes.add(VertexAttribute.TANGENT);
 		}
-		while (aiTangents.remaining() > 0) {
-			tangents.add(aiVectorToJoml(aiTangents.get()));
+		if (hasTexCoords) {
+			attributes.add(VertexAttribute.TEXTURE);
 		}
-		return tangents;
+		return attributes;
 	}
 
-
-	private List<Vector2f> processTexCoords(final AIMesh mesh) {
-		List<Vector2f> textureCoordinates = new ArrayList<>();
-		if (mesh.mTextureCoords(0) == null) {
-			return textureCoordinates;
-		}
-		AIVector3D.Buffer aiTexCoords = mesh.mTextureCoords(0);
-		while (aiTexCoords.remaining() > 0) {
-			AIVector3D texCoord = aiTexCoords.get();
-			textureCoordinates.add(new Vector2f(texCoord.x(), texCoord.y()));
+	private void setMask(MeshData data) {
+		float maxRadius = 0;
+		float top = 0;
+		float bottom = 0;
+		Vector3f position = new Vector3f();
+		for (int i = 0; i < data.getNumberOfVertices(); i++) {
+			data.getPosition(i, position);
+			float len = (float) Math.sqrt(position.x * position.x + position.z * position.z);
+			if (len > maxRadius) {
+				maxRadius = len;
+			}
+			top = i == 0 ? position.y : Math.max(top, position.y);
+			bottom = i == 0 ? position.y : Math.min(bottom, position.y);
 		}
-		return textureCoordinates;
+		maskRadius = maxRadius;
+		maskHeight = Math.abs(top - bottom);
 	}
 
-	private List<Integer> processIndices(final AIMesh mesh) {
-		List<Integer> indices = new ArrayList<>();
+	private static void processIndices(final AIMesh mesh, MeshBuilder builder) {
 		int noOfFaces = mesh.mNumFaces();
 		AIFace.Buffer aiFaces = mesh.mFaces();
 		for (int i = 0; i < noOfFaces; i++) {
 			AIFace aiFace = aiFaces.get(i);
 			IntBuffer buffer = aiFace.mIndices();
 			while (buffer.remaining() > 0) {
-				indices.add(buffer.get());
+				builder.index(buffer.get());
 			}
 		}
-		return indices;
-	}
-
-	private Vector3f aiVectorToJoml(AIVector3D vector3D) {
-		return new Vector3f(vector3D.x(), vector3D.y(), vector3D.z());
 	}
 
 	public void render() {
 		model.render();
 	}
 
+	/**
+	 * The meshes of the model as the highest level of detail, followed by as many levels as they can be decimated to
+	 */
+	public Map<LevelOfDetail, List<Mesh>> getLevelsOfDetail() {
+		if (levelsOfDetail != null) {
+			return levelsOfDetail;
+		}
+		levelsOfDetail = new HashMap<>();
+		levelsOfDetail.put(LevelOfDetail.HIGH, getMeshes());
+		List<List<MeshData>> chains = getMeshes().stream()
+				.map(mesh -> MeshUtils.decimate(mesh.getData(), parameters.quadtree.lodTriangleRatio,
+						LevelOfDetail.COUNT - 1))
+				.collect(Collectors.toList());
+		int levels = chains.stream().mapToInt(List::size).max().orElse(0);
+		for (int level = 1; level <= levels; level++) {
+			List<Mesh> meshes = new ArrayList<>();
+			for (int i = 0; i < chains.size(); i++) {
+				// A mesh which cannot be decimated as far as the others stays at its last level
+				List<MeshData> chain = chains.get(i);
+				Mesh mesh = getMeshes().get(i);
+				meshes.add(chain.isEmpty() ? mesh : new Mesh(mesh, chain.get(Math.min(level, chain.size()) - 1)));
+			}
+			levelsOfDetail.put(LevelOfDetail.get(level), meshes);
+		}
+		return levelsOfDetail;
+	}
+
 	public void addTextures(String uniform, List<? extends Texture> textures) {
 		model.addTextures(uniform, textures);
 	}
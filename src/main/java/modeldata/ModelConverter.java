@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package modeldata;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import modeldata.meshdata.MeshFile;
+import params.ParameterLoader;
+import params.Parameters;
+
+/**
+ * Converts the external models in the parameters to {@link MeshFile}s, which are written next to them and load much
+ * faster. Set the model paths in the parameters to the converted files to use them.
+ * Run with: mvn compile exec:java -Dexec.mainClass=modeldata.ModelConverter [-Dexec.args=parameters.yaml]
+ */
+public class ModelConverter {
+
+	public static void main(String[] args) throws IOException {
+		Parameters parameters = args.length > 0
+				? ParameterLoader.loadParameters(args[0])
+				: ParameterLoader.getParameters();
+		for (Parameters.SceneObjects.ExternalModel model : parameters.sceneObjects.externalModels) {
+			if (model.modelPath.endsWith(MeshFile.EXTENSION)) {
+				continue;
+			}
+			String absPath = new File(parameters.resourcesRoot + model.modelPath).getAbsolutePath();
+			String convertedPath = getConvertedPath(absPath);
+			MeshFile.write(Paths.get(convertedPath), LoadedModel.importMeshes(absPath, LoadedModel.DEFAULT_FLAGS));
+			System.out.println("Converted " + model.modelPath + " to " + getConvertedPath(model.modelPath));
+		}
+	}
+
+	public static String getConvertedPath(String path) {
+		int extension = path.lastIndexOf('.');
+		return (extension > path.lastIndexOf('/') ? path.substring(0, extension) : path) + MeshFile.EXTENSION;
+	}
+}
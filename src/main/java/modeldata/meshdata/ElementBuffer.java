@@ -29,8 +29,6 @@ import static org.lwjgl.opengl.GL15.glGenBuffers;
 import static org.lwjgl.opengl.GL15C.GL_ELEMENT_ARRAY_BUFFER;
 import static org.lwjgl.opengl.GL15C.glBufferData;
 
-import org.lwjgl.system.MemoryUtil;
-
 /**
  * Represents and Element Buffer Object (EBO)
  * An EBO stores the indices to draw from a VBO
@@ -41,16 +39,15 @@ public class ElementBuffer {
 	private final IntBuffer buffer;
 	private final int handle;
 
-	public ElementBuffer(final int numberOfIndices) {
-		this.numberOfIndices = numberOfIndices;
-		this.buffer = MemoryUtil.memAllocInt(numberOfIndices);
+	/**
+	 * An EBO for the indices of the mesh, which are uploaded without copying
+	 */
+	public ElementBuffer(final MeshData data) {
+		this.numberOfIndices = data.getNumberOfIndices();
+		this.buffer = data.getIndexBuffer();
 		this.handle = glGenBuffers();
 	}
 
-	public void setIndexData(final int[] indexData) {
-		buffer.put(indexData).flip();
-	}
-
 	public void bind() {
 		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, handle);
 		glBufferData(GL_ELEMENT_ARRAY_BUFFER, buffer, GL_STATIC_DRAW);
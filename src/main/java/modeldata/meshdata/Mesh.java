@@ -21,19 +21,17 @@
 
 package modeldata.meshdata;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import static rendering.ShaderPrograms.shadowsShader;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.experimental.Accessors;
-import org.apache.commons.lang3.ArrayUtils;
 import org.joml.Matrix4f;
-import org.joml.Vector2f;
 import org.joml.Vector3f;
 import params.Parameters;
 import rendering.ShaderProgram;
@@ -44,12 +42,18 @@ public class Mesh {
 
 	protected Map<String, Texture> textures = new HashMap<>();
 	protected VertexArray vertexArray;
-	private List<Vertex> vertices;
-	private int[] indices;
+	@Setter(AccessLevel.NONE)
+	private MeshData data;
 	private List<VertexAttribute> vertexAttributes;
 	private Matrix4f model = new Matrix4f().identity();
 	private Parameters.ColourFilter colourFilter;
 	private boolean isInstanced;
+	// Whether each instance is a branch segment rather than a model matrix
+	@Setter(AccessLevel.NONE)
+	private boolean isSegmentInstanced;
+	// Whether each instance is a record of a position, orientation and scale rather than a model matrix
+	@Setter(AccessLevel.NONE)
+	private boolean isRecordInstanced;
 	private boolean isLeaf;
 	@Accessors(fluent = true)
 	private boolean hasNormalMap;
@@ -81,9 +85,28 @@ public class Mesh {
 				boolean hasSpecularMap,
 				boolean hasHalfLifeBasisMap,
 				boolean isLeaf) {
-		this.vertices = vertices;
-		this.indices = indices;
-		this.vertexAttributes = vertexAttributes;
+		this(MeshBuilder.fromVertices(vertices, indices, vertexAttributes), isInstanced, hasNormalMap,
+				hasTranslucencyMap, hasSpecularMap, hasHalfLifeBasisMap, isLeaf);
+	}
+
+	// Number of floats in each instance record passed to setInstances
+	public static final int INSTANCE_RECORD_SIZE = 8;
+	// Number of floats in each segment record passed to setSegmentInstances
+	public static final int SEGMENT_RECORD_SIZE = 16;
+
+	public Mesh(MeshData data) {
+		this(data, false, false, false, false, false, false);
+	}
+
+	public Mesh(MeshData data,
+				boolean isInstanced,
+				boolean hasNormalMap,
+				boolean hasTranslucencyMap,
+				boolean hasSpecularMap,
+				boolean hasHalfLifeBasisMap,
+				boolean isLeaf) {
+		this.data = data;
+		this.vertexAttributes = data.getAttributes();
 		this.isInstanced = isInstanced;
 		this.hasNormalMap = hasNormalMap;
 		this.hasTranslucencyMap = hasTranslucencyMap;
@@ -94,22 +117,27 @@ public class Mesh {
 		this.vertexArray = createVAO();
 	}
 
+	// Copies share the mesh data, which is never modified
 	public Mesh(Mesh mesh) {
-		this(mesh, mesh.vertices);
+		this(mesh, mesh.data, mesh.isInstanced);
 	}
 
 	public Mesh(Mesh mesh, boolean isInstanced) {
-		this(mesh, mesh.vertices, isInstanced);
+		this(mesh, mesh.data, isInstanced);
 	}
 
 	public Mesh(Mesh mesh, List<Vertex> transformedVertices) {
-		this(mesh, transformedVertices, mesh.isInstanced);
+		this(mesh, MeshBuilder.fromVertices(transformedVertices, mesh.getIndices(), mesh.vertexAttributes),
+				mesh.isInstanced);
 	}
 
-	public Mesh(Mesh mesh, List<Vertex> transformedVertices, boolean isInstanced) {
-		this.vertices = transformedVertices;
-		this.indices = mesh.indices.clone();
-		this.vertexAttributes = new ArrayList<>(mesh.vertexAttributes);
+	public Mesh(Mesh mesh, MeshData data) {
+		this(mesh, data, mesh.isInstanced);
+	}
+
+	public Mesh(Mesh mesh, MeshData data, boolean isInstanced) {
+		this.data = data;
+		this.vertexAttributes = data.getAttributes();
 		this.textures = new HashMap<>(mesh.textures);
 		this.model = new Matrix4f(mesh.model);
 		this.shaderProgram = mesh.shaderProgram;
@@ -139,42 +167,59 @@ public class Mesh {
 	}
 
 	private VertexArray createVAO() {
-		float[] data = ArrayUtils.toPrimitive(vertices.stream().flatMap(vd -> {
-			List<Float> vertexData = new ArrayList<>();
-			for (VertexAttribute attribute : vertexAttributes) {
-				switch (attribute.getName()) {
-					case "position" -> {
-						Vector3f v = vd.getPosition();
-						vertexData.addAll(List.of(v.x, v.y, v.z));
-					}
-					case "normal" -> {
-						Vector3f n = vd.getNormal();
-						vertexData.addAll(List.of(n.x, n.y, n.z));
-					}
-					case "tangent" -> {
-						Vector3f t = vd.getTangent();
-						vertexData.addAll(List.of(t.x, t.y, t.z));
-					}
-					case "texCoord" -> {
-						Vector2f t = vd.getTexCoord();
-						vertexData.addAll(List.of(t.x, t.y));
-					}
-					default -> throw new RuntimeException("Unknown attribute: " + attribute.getName());
-				}
-			}
-			return vertexData.stream();
-		}).toArray(Float[]::new));
+		return new VertexArray(data);
+	}
+
+	/**
+	 * The vertices as objects, which are created from the mesh data on each call
+	 */
+	public List<Vertex> getVertices() {
+		return data.toVertices();
+	}
 
-		return new VertexArray(data, vertices.size(), indices, vertexAttributes);
+	public int[] getIndices() {
+		return data.getIndices();
+	}
 
+	/**
+	 * Draws the mesh once for each instance record, which is a position, an orientation quaternion (x, y, z, w) and a
+	 * scale. The records are uploaded as they are and the shaders transform by them in place of the model matrix of an
+	 * instance, after which the model matrix of the mesh is applied
+	 */
+	public void setInstances(float[] records) {
+		int numberOfInstances = records.length / INSTANCE_RECORD_SIZE;
+		VertexBuffer instanceBuffer = new VertexBuffer(numberOfInstances, VertexAttribute.INSTANCE_RECORD);
+		instanceBuffer.setVertexData(records);
+		vertexArray.bindVertexBuffer(instanceBuffer);
+		vertexArray.setInstanced(true);
+		vertexArray.setNumberOfInstances(numberOfInstances);
+		isInstanced = true;
+		isRecordInstanced = true;
+	}
+
+	/**
+	 * Draws the mesh, which should be a cylinder of unit radius from y = 0 to y = 1, once for each branch segment
+	 * record. A record is the centre, radius and orientation quaternion (x, y, z, w) of the cross-section at the start
+	 * of the segment followed by those at its end, which the shaders use in place of the model matrix of an instance
+	 */
+	public void setSegmentInstances(float[] records) {
+		int numberOfInstances = records.length / SEGMENT_RECORD_SIZE;
+		VertexBuffer instanceBuffer = new VertexBuffer(numberOfInstances, VertexAttribute.INSTANCE_MODEL);
+		instanceBuffer.setVertexData(records);
+		vertexArray.bindVertexBuffer(instanceBuffer);
+		vertexArray.setInstanced(true);
+		vertexArray.setNumberOfInstances(numberOfInstances);
+		isInstanced = true;
+		isSegmentInstanced = true;
 	}
 
 	private void bindForRender() {
 		shaderProgram.use();
-		if (!isInstanced) {
-			shaderProgram.setUniform("model", model);
-		}
+		// Instanced meshes apply it after the model matrix of each instance
+		shaderProgram.setUniform("model", model);
 		shaderProgram.setUniform("isInstanced", isInstanced);
+		shaderProgram.setUniform("isSegment", isSegmentInstanced);
+		shaderProgram.setUniform("isRecord", isRecordInstanced);
 		shaderProgram.setUniform("hasNormalMap", hasNormalMap);
 		shaderProgram.setUniform("hasTranslucencyMap", hasTranslucencyMap);
 		shaderProgram.setUniform("hasHalfLifeBasisMap", hasHalfLifeBasisMap);
@@ -226,7 +271,7 @@ public class Mesh {
 	}
 
 	public void render(int numberOfInstances) {
-		render(numberOfInstances);
+		render(numberOfInstances, false);
 	}
 
 	public void render(int numberOfInstances, boolean renderForShadows) {
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package modeldata.meshdata;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.List;
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Writes interleaved vertex data and indices straight into off-heap buffers, which grow as needed.
+ * Each call to {@link #vertex()} starts a new vertex whose attributes are then set, for example
+ * {@code builder.vertex().position(x, y, z).normal(nx, ny, nz)}. Attributes which the mesh does not have are ignored.
+ */
+public class MeshBuilder {
+
+	private final List<VertexAttribute> attributes;
+	private final int floatsPerVertex;
+	private final int positionOffset;
+	private final int normalOffset;
+	private final int tangentOffset;
+	private final int texCoordOffset;
+	private FloatBuffer vertices;
+	private IntBuffer indices;
+	private int numberOfVertices = 0;
+	private int numberOfIndices = 0;
+	// Start of the current vertex in the vertex buffer
+	private int current = -1;
+
+	public MeshBuilder(List<VertexAttribute> attributes, int vertexCapacity, int indexCapacity) {
+		this.attributes = attributes;
+		this.floatsPerVertex = MeshData.getFloatsPerVertex(attributes);
+		this.positionOffset = MeshData.getOffset(attributes, VertexAttribute.POSITION);
+		this.normalOffset = MeshData.getOffset(attributes, VertexAttribute.NORMAL);
+		this.tangentOffset = MeshData.getOffset(attributes, VertexAttribute.TANGENT);
+		this.texCoordOffset = MeshData.getOffset(attributes, VertexAttribute.TEXTURE);
+		this.vertices = MemoryUtil.memCallocFloat(Math.max(vertexCapacity, 1) * floatsPerVertex);
+		this.indices = MemoryUtil.memAllocInt(Math.max(indexCapacity, 1));
+	}
+
+	/**
+	 * Builds the data of a mesh from vertex objects
+	 */
+	public static MeshData fromVertices(List<Vertex> vertices, int[] indices, List<VertexAttribute> attributes) {
+		MeshBuilder builder = new MeshBuilder(attributes, vertices.size(), indices.length);
+		for (Vertex vertex : vertices) {
+			builder.vertex().position(vertex.getPosition());
+			if (vertex.getNormal() != null) {
+				builder.normal(vertex.getNormal());
+			}
+			if (vertex.getTangent() != null) {
+				builder.tangent(vertex.getTangent());
+			}
+			if (vertex.getTexCoord() != null) {
+				builder.texCoord(vertex.getTexCoord());
+			}
+		}
+		builder.indices(indices);
+		return builder.build();
+	}
+
+	/**
+	 * Starts a new vertex, with all attributes zero
+	 */
+	public MeshBuilder vertex() {
+		if ((numberOfVertices + 1) * floatsPerVertex > vertices.capacity()) {
+			int capacity = vertices.capacity();
+			vertices = MemoryUtil.memRealloc(vertices, capacity * 2);
+			MemoryUtil.memSet(MemoryUtil.memAddress(vertices, capacity), 0, (long) capacity * Float.BYTES);
+		}
+		current = numberOfVertices * floatsPerVertex;
+		numberOfVertices++;
+		return this;
+	}
+
+	public MeshBuilder position(float x, float y, float z) {
+		return put(current, positionOffset, x, y, z);
+	}
+
+	public MeshBuilder position(Vector3f position) {
+		return position(position.x, position.y, position.z);
+	}
+
+	public MeshBuilder normal(float x, float y, float z) {
+		return put(current, normalOffset, x, y, z);
+	}
+
+	public MeshBuilder normal(Vector3f normal) {
+		return normal(normal.x, normal.y, normal.z);
+	}
+
+	public MeshBuilder tangent(float x, float y, float z) {
+		return put(current, tangentOffset, x, y, z);
+	}
+
+	public MeshBuilder tangent(Vector3f tangent) {
+		return tangent(tangent.x, tangent.y, tangent.z);
+	}
+
+	public MeshBuilder texCoord(float u, float v) {
+		if (texCoordOffset >= 0) {
+			vertices.put(current + texCoordOffset, u).put(current + texCoordOffset + 1, v);
+		}
+		return this;
+	}
+
+	public MeshBuilder texCoord(Vector2f texCoord) {
+		return texCoord(texCoord.x, texCoord.y);
+	}
+
+	/**
+	 * Sets the normal of a vertex which has already been added
+	 */
+	public void setNormal(int vertex, Vector3f normal) {
+		put(vertex * floatsPerVertex, normalOffset, normal.x, normal.y, normal.z);
+	}
+
+	/**
+	 * Sets the tangent of a vertex which has already been added
+	 */
+	public void setTangent(int vertex, Vector3f tangent) {
+		put(vertex * floatsPerVertex, tangentOffset, tangent.x, tangent.y, tangent.z);
+	}
+
+	public Vector3f getPosition(int vertex, Vector3f dest) {
+		int i = vertex * floatsPerVertex + positionOffset;
+		return dest.set(vertices.get(i), vertices.get(i + 1), vertices.get(i + 2));
+	}
+
+	private MeshBuilder put(int vertexStart, int offset, float x, float y, float z) {
+		if (offset >= 0) {
+			int i = vertexStart + offset;
+			vertices.put(i, x).put(i + 1, y).put(i + 2, z);
+		}
+		return this;
+	}
+
+	public MeshBuilder index(int index) {
+		if (numberOfIndices == indices.capacity()) {
+			indices = MemoryUtil.memRealloc(indices, indices.capacity() * 2);
+		}
+		indices.put(numberOfIndices++, index);
+		return this;
+	}
+
+	public MeshBuilder triangle(int a, int b, int c) {
+		return index(a).index(b).index(c);
+	}
+
+	public MeshBuilder indices(int[] indices) {
+		for (int index : indices) {
+			index(index);
+		}
+		return this;
+	}
+
+	public int getNumberOfVertices() {
+		return numberOfVertices;
+	}
+
+	/**
+	 * Hands the buffers over to the mesh data, after which the builder must not be used
+	 */
+	public MeshData build() {
+		// Release the unused capacity
+		vertices = MemoryUtil.memRealloc(vertices, Math.max(numberOfVertices * floatsPerVertex, 1));
+		indices = MemoryUtil.memRealloc(indices, Math.max(numberOfIndices, 1));
+		MeshData data = new MeshData(attributes, vertices, numberOfVertices, indices, numberOfIndices);
+		vertices = null;
+		indices = null;
+		return data;
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package modeldata.meshdata;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Getter;
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Interleaved vertex data and indices of a mesh in off-heap buffers, built by a {@link MeshBuilder}.
+ * The buffers are uploaded to the GPU directly and shared by copies of the mesh, so the data must not be modified.
+ * They are freed once the data is no longer reachable.
+ */
+public class MeshData {
+	private static final Cleaner cleaner = Cleaner.create();
+
+	@Getter
+	private final List<VertexAttribute> attributes;
+	@Getter
+	private final int numberOfVertices;
+	@Getter
+	private final int numberOfIndices;
+	@Getter
+	private final int floatsPerVertex;
+	private final FloatBuffer vertices;
+	private final IntBuffer indices;
+	// Offset of each attribute in a vertex, or -1 if the mesh does not have the attribute
+	private final int positionOffset;
+	private final int normalOffset;
+	private final int tangentOffset;
+	private final int texCoordOffset;
+
+	MeshData(List<VertexAttribute> attributes, FloatBuffer vertices, int numberOfVertices, IntBuffer indices,
+			 int numberOfIndices) {
+		this(attributes, vertices, numberOfVertices, indices, numberOfIndices, true);
+	}
+
+	/**
+	 * @param owned Whether the buffers were allocated for this mesh data and should be freed with it, rather than
+	 *              belonging to something else such as a mapped file
+	 */
+	private MeshData(List<VertexAttribute> attributes, FloatBuffer vertices, int numberOfVertices, IntBuffer indices,
+					 int numberOfIndices, boolean owned) {
+		this.attributes = List.copyOf(attributes);
+		this.vertices = vertices.limit(numberOfVertices * getFloatsPerVertex(attributes));
+		this.indices = indices.limit(numberOfIndices);
+		this.numberOfVertices = numberOfVertices;
+		this.numberOfIndices = numberOfIndices;
+		this.floatsPerVertex = getFloatsPerVertex(attributes);
+		this.positionOffset = getOffset(attributes, VertexAttribute.POSITION);
+		this.normalOffset = getOffset(attributes, VertexAttribute.NORMAL);
+		this.tangentOffset = getOffset(attributes, VertexAttribute.TANGENT);
+		this.texCoordOffset = getOffset(attributes, VertexAttribute.TEXTURE);
+		if (owned) {
+			cleaner.register(this, new Free(vertices, indices));
+		}
+	}
+
+	/**
+	 * Number of bytes written by {@link #write(ByteBuffer)}
+	 */
+	public int getSerializedSize() {
+		return (3 + attributes.size() + vertices.limit() + numberOfIndices) * Integer.BYTES;
+	}
+
+	/**
+	 * Writes the attributes, the interleaved vertex data and the indices, in the byte order of dest
+	 */
+	public void write(ByteBuffer dest) {
+		dest.putInt(attributes.size());
+		for (VertexAttribute attribute : attributes) {
+			dest.putInt(attribute.getLocation());
+		}
+		dest.putInt(numberOfVertices);
+		dest.putInt(numberOfIndices);
+		dest.asFloatBuffer().put(vertices.duplicate());
+		dest.position(dest.position() + vertices.limit() * Float.BYTES);
+		dest.asIntBuffer().put(indices.duplicate());
+		dest.position(dest.position() + numberOfIndices * Integer.BYTES);
+	}
+
+	/**
+	 * Reads mesh data written by {@link #write(ByteBuffer)} without copying it, so source should be direct and in
+	 * native byte order (such as a mapped file) and must not be modified while the mesh data is in use
+	 */
+	public static MeshData read(ByteBuffer source) {
+		int numberOfAttributes = source.getInt();
+		List<VertexAttribute> attributes = new ArrayList<>(numberOfAttributes);
+		for (int i = 0; i < numberOfAttributes; i++) {
+			attributes.add(getAttribute(source.getInt()));
+		}
+		int numberOfVertices = source.getInt();
+		int numberOfIndices = source.getInt();
+		int numberOfFloats = numberOfVertices * getFloatsPerVertex(attributes);
+		FloatBuffer vertices = source.slice().order(source.order()).asFloatBuffer().limit(numberOfFloats);
+		source.position(source.position() + numberOfFloats * Float.BYTES);
+		IntBuffer indices = source.slice().order(source.order()).asIntBuffer().limit(numberOfIndices);
+		source.position(source.position() + numberOfIndices * Integer.BYTES);
+		return new MeshData(attributes, vertices, numberOfVertices, indices, numberOfIndices, false);
+	}
+
+	private static VertexAttribute getAttribute(int location) {
+		for (VertexAttribute attribute : List.of(VertexAttribute.POSITION, VertexAttribute.NORMAL,
+				VertexAttribute.TEXTURE, VertexAttribute.TANGENT)) {
+			if (attribute.getLocation() == location) {
+				return attribute;
+			}
+		}
+		throw new RuntimeException("Unknown vertex attribute location: " + location);
+	}
+
+	static int getFloatsPerVertex(List<VertexAttribute> attributes) {
+		return attributes.stream().mapToInt(VertexAttribute::getNumberOfFloatComponents).sum();
+	}
+
+	static int getOffset(List<VertexAttribute> attributes, VertexAttribute attribute) {
+		int offset = 0;
+		for (VertexAttribute a : attributes) {
+			if (a == attribute) {
+				return offset;
+			}
+			offset += a.getNumberOfFloatComponents();
+		}
+		return -1;
+	}
+
+	/**
+	 * The interleaved vertex data, from position 0 to the end of the last vertex
+	 */
+	FloatBuffer getVertexBuffer() {
+		return vertices;
+	}
+
+	/**
+	 * The indices, from position 0 to the last index
+	 */
+	IntBuffer getIndexBuffer() {
+		return indices;
+	}
+
+	public boolean hasAttribute(VertexAttribute attribute) {
+		return getOffset(attributes, attribute) >= 0;
+	}
+
+	public Vector3f getPosition(int vertex, Vector3f dest) {
+		return get(vertex, positionOffset, dest);
+	}
+
+	public Vector3f getNormal(int vertex, Vector3f dest) {
+		return get(vertex, normalOffset, dest);
+	}
+
+	public Vector3f getTangent(int vertex, Vector3f dest) {
+		return get(vertex, tangentOffset, dest);
+	}
+
+	public Vector2f getTexCoord(int vertex, Vector2f dest) {
+		int i = vertex * floatsPerVertex + texCoordOffset;
+		return dest.set(vertices.get(i), vertices.get(i + 1));
+	}
+
+	public int getIndex(int i) {
+		return indices.get(i);
+	}
+
+	public int[] getIndices() {
+		int[] array = new int[numberOfIndices];
+		indices.get(0, array);
+		return array;
+	}
+
+	private Vector3f get(int vertex, int offset, Vector3f dest) {
+		if (offset < 0) {
+			throw new RuntimeException("Mesh does not have the attribute, attributes: " + attributes);
+		}
+		int i = vertex * floatsPerVertex + offset;
+		return dest.set(vertices.get(i), vertices.get(i + 1), vertices.get(i + 2));
+	}
+
+	/**
+	 * The vertices as objects, for code which has not been converted to read the buffers
+	 */
+	public List<Vertex> toVertices() {
+		Vertex[] result = new Vertex[numberOfVertices];
+		for (int i = 0; i < numberOfVertices; i++) {
+			Vertex vertex = new Vertex(getPosition(i, new Vector3f()));
+			if (normalOffset >= 0) {
+				vertex.setNormal(getNormal(i, new Vector3f()));
+			}
+			if (tangentOffset >= 0) {
+				vertex.setTangent(getTangent(i, new Vector3f()));
+			}
+			if (texCoordOffset >= 0) {
+				vertex.setTexCoord(getTexCoord(i, new Vector2f()));
+			}
+			result[i] = vertex;
+		}
+		return List.of(result);
+	}
+
+	private static class Free implements Runnable {
+		private final FloatBuffer vertices;
+		private final IntBuffer indices;
+
+		Free(FloatBuffer vertices, IntBuffer indices) {
+			this.vertices = vertices;
+			this.indices = indices;
+		}
+
+		@Override
+		public void run() {
+			MemoryUtil.memFree(vertices);
+			MemoryUtil.memFree(indices);
+		}
+	}
+}
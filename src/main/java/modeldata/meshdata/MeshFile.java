@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package modeldata.meshdata;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Binary file of meshes, which is memory mapped when read so that the mesh data is uploaded straight from the file.
+ * A file has a header of a magic number, a version and the number of meshes, followed by the textures and
+ * {@link MeshData#write(ByteBuffer) mesh data} of each mesh, all in the native byte order.
+ */
+public class MeshFile {
+	public static final String EXTENSION = ".mesh";
+	// "FGMF" in the byte order the file was written in
+	private static final int MAGIC = 0x464D4746;
+	private static final int VERSION = 1;
+
+	@Getter
+	@AllArgsConstructor
+	public static class Entry {
+		private final MeshData data;
+		// Paths of the textures relative to the model's texture directory, or empty if the mesh has none
+		private final String diffuseTexture;
+		private final String normalTexture;
+	}
+
+	public static List<Entry> read(Path path) {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+					.order(ByteOrder.nativeOrder());
+			if (buffer.getInt() != MAGIC) {
+				throw new RuntimeException("Not a mesh file, or written with another byte order: " + path);
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new RuntimeException("Unsupported mesh file version " + version + ": " + path);
+			}
+			int numberOfMeshes = buffer.getInt();
+			List<Entry> entries = new ArrayList<>(numberOfMeshes);
+			for (int i = 0; i < numberOfMeshes; i++) {
+				String diffuseTexture = readString(buffer);
+				String normalTexture = readString(buffer);
+				entries.add(new Entry(MeshData.read(buffer), diffuseTexture, normalTexture));
+			}
+			return entries;
+		} catch (IOException e) {
+			throw new RuntimeException("Error loading mesh file: " + path, e);
+		}
+	}
+
+	/**
+	 * Writes to a temporary file which is then moved to path, so that a partly written file is never read
+	 */
+	public static void write(Path path, List<Entry> entries) throws IOException {
+		int size = 3 * Integer.BYTES;
+		for (Entry entry : entries) {
+			size += getSerializedSize(entry.diffuseTexture) + getSerializedSize(entry.normalTexture)
+					+ entry.data.getSerializedSize();
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(entries.size());
+		for (Entry entry : entries) {
+			writeString(buffer, entry.diffuseTexture);
+			writeString(buffer, entry.normalTexture);
+			entry.data.write(buffer);
+		}
+		buffer.flip();
+
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+		Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Strings are padded to a multiple of 4 bytes so that the mesh data after them is aligned
+	private static int getSerializedSize(String string) {
+		int length = string.getBytes(StandardCharsets.UTF_8).length;
+		return Integer.BYTES + (length + 3) / 4 * 4;
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		buffer.position(buffer.position() + (4 - bytes.length % 4) % 4);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(ByteBuffer buffer, String string) {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+		buffer.position(buffer.position() + (4 - bytes.length % 4) % 4);
+	}
+}
@@ -21,8 +21,6 @@
 
 package modeldata.meshdata;
 
-import java.util.List;
-
 import static org.lwjgl.opengl.GL11C.GL_TRIANGLES;
 import static org.lwjgl.opengl.GL11C.GL_UNSIGNED_INT;
 import static org.lwjgl.opengl.GL11C.glDrawElements;
@@ -43,25 +41,25 @@ public class VertexArray {
 	private final int numberOfIndices;
 	@Setter
 	private boolean isInstanced;
+	// Number of instances drawn by draw(), if the VAO is instanced
+	@Setter
+	private int numberOfInstances = 1;
 
-	public VertexArray(final float[] vertices, final int numberOfVertices, final int[] indices, final List<VertexAttribute> attributes) {
+	public VertexArray(final MeshData data) {
 
 		handle = glGenVertexArrays();
 
-		this.numberOfVertices = numberOfVertices;
-		VertexBuffer vertexBuffer = new VertexBuffer(numberOfVertices, attributes);
-		vertexBuffer.setVertexData(vertices);
-		bindVertexBuffer(vertexBuffer);
+		this.numberOfVertices = data.getNumberOfVertices();
+		bindVertexBuffer(new VertexBuffer(data));
 
 		glBindVertexArray(handle);
-		this.numberOfIndices = indices.length;
-		ElementBuffer elementBuffer = new ElementBuffer(indices.length);
-		elementBuffer.setIndexData(indices);
+		this.numberOfIndices = data.getNumberOfIndices();
+		ElementBuffer elementBuffer = new ElementBuffer(data);
 		elementBuffer.bind();
 
 		glBindVertexArray(0);
 
-		isInstanced = attributes.contains(VertexAttribute.INSTANCE_MODEL.get(0));
+		isInstanced = data.getAttributes().contains(VertexAttribute.INSTANCE_MODEL.get(0));
 	}
 
 	public void bindVertexBuffer(VertexBuffer vertexBuffer) {
@@ -75,7 +73,7 @@ public class VertexArray {
 	public void draw() {
 		glBindVertexArray(handle);
 		if (isInstanced) {
-			draw(1);
+			draw(numberOfInstances);
 		} else {
 			glDrawElements(GL_TRIANGLES, numberOfIndices, GL_UNSIGNED_INT, 0);
 		}
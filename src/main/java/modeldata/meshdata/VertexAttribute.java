@@ -44,6 +44,8 @@ public class VertexAttribute {
 			new VertexAttribute(5, "instanceModel", 4, 1),
 			new VertexAttribute(6, "instanceModel", 4, 1)
 	);
+	// The first two columns of the instance model, which hold an instance record rather than a matrix
+	public static final List<VertexAttribute> INSTANCE_RECORD = INSTANCE_MODEL.subList(0, 2);
 	public static final VertexAttribute TANGENT = new VertexAttribute(7, "tangent", 3);
 
 	public VertexAttribute(final int location, final String name, final int numberOfFloatComponents) {
@@ -49,13 +49,28 @@ public class VertexBuffer {
 	private final int stride;
 	private final int numberOfVertices;
 	private final int handle;
+	// False if the data belongs to someone else, such as the mesh data it was created from
+	private final boolean ownsData;
 
 	public VertexBuffer(final int numberOfVertices, final List<VertexAttribute> attributes) {
+		this(MemoryUtil.memAllocFloat(numberOfVertices * getFloatComponentsPerVertex(attributes)), numberOfVertices,
+				attributes, true);
+	}
+
+	/**
+	 * A VBO for the interleaved data of the mesh, which is uploaded without copying
+	 */
+	public VertexBuffer(final MeshData data) {
+		this(data.getVertexBuffer(), data.getNumberOfVertices(), data.getAttributes(), false);
+	}
+
+	private VertexBuffer(final FloatBuffer dataBuffer, final int numberOfVertices, final List<VertexAttribute> attributes,
+						 final boolean ownsData) {
 		this.attributes = attributes;
 		this.numberOfVertices = numberOfVertices;
-		final int floatComponentsPerVertex = getFloatComponentsPerVertex(attributes);
-		this.stride = floatComponentsPerVertex * SIZE_OF_FLOAT_BYTES;
-		this.dataBuffer = MemoryUtil.memAllocFloat(numberOfVertices * floatComponentsPerVertex);
+		this.stride = getFloatComponentsPerVertex(attributes) * SIZE_OF_FLOAT_BYTES;
+		this.dataBuffer = dataBuffer;
+		this.ownsData = ownsData;
 		this.handle = glGenBuffers();
 	}
 
@@ -91,8 +106,9 @@ public class VertexBuffer {
 	}
 
 	public void freeBufferData() {
-		if (dataBuffer != null) {
+		if (ownsData && dataBuffer != null) {
 			MemoryUtil.memFree(dataBuffer);
 		}
+		dataBuffer = null;
 	}
 }
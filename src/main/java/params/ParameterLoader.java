@@ -79,6 +79,7 @@ public final class ParameterLoader {
 			seed = parameters.random.seed;
 		}
 		parameters.random.setGenerator(new Random(seed));
+		parameters.random.setStreams(new RandomStreams(seed));
 		System.out.println("Random seed: " + seed);
 	}
 
@@ -56,6 +56,8 @@ public class Parameters {
 		public long seed = -1;
 		@JsonIgnore
 		public java.util.Random generator = null;
+		@JsonIgnore
+		public RandomStreams streams = null;
 	}
 
 	@NoArgsConstructor
@@ -197,6 +199,12 @@ public class Parameters {
 		public float radiusWeight = 0.3f;
 		public float smallRadiusViability = 0.4f;
 		public float averageRadiusViability = 0.4f;
+		public boolean parallel = false;
+		// File the simulation is saved to every checkpointYears years and when it finishes, or empty to not save it
+		public String checkpointFile = "";
+		public int checkpointYears = 5;
+		// Saved simulation to continue from instead of scattering new plants, or empty to start a new simulation
+		public String resumeFile = "";
 	}
 
 	@NoArgsConstructor
@@ -205,6 +213,13 @@ public class Parameters {
 		public int levels = 3;
 		public float thresholdCoefficient = 1.5f;
 		public boolean frustumCulling = true;
+		// Length of the chain of levels of detail, from the full models to the lowest level of detail
+		public int levelsOfDetail = 4;
+		// Projected radius of an object, as a fraction of half the height of the screen, below which it is drawn with
+		// the next level of detail. Each further level is used at half the size of the previous
+		public float lodScreenSize = 0.1f;
+		// Fraction of the triangles of each level which are kept in the next level, when it is made by decimation
+		public float lodTriangleRatio = 0.5f;
 	}
 
 	@NoArgsConstructor
@@ -218,6 +233,8 @@ public class Parameters {
 				new TreeTypes.AspenTree(),
 				new TreeTypes.PoplarTree()
 		);
+		// Directory in which generated trees are cached between runs with the same seed, or empty to not cache them
+		public String treeCacheDirectory = "";
 		public Twigs twigs = new Twigs();
 		public List<ExternalModel> externalModels = List.of(
 				new ExternalModel("/models/Rock1/Rock1.obj", "/models/Rock1", true, 0.3f)
@@ -319,6 +336,8 @@ public class Parameters {
 			public float seedRadiusMultiplier = 2.0f;
 			public int lowLODEdges = 2;
 			public int lowLODLeafMerges = 1;
+			// Draw the branches as instances of a shared segment mesh, rather than building a mesh of them
+			public boolean instancedBranches = false;
 
 			public Tree() {
 				super();
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package params;
+
+import java.util.Random;
+
+/**
+ * Independent random streams derived from the random seed, each identified by a subsystem and a list of keys (such as
+ * the tree type and pool index, or the coordinates of a quad). A stream always produces the same numbers for the same
+ * seed, regardless of which other streams have been used or in which order, so objects can be generated concurrently
+ * or out of order and the result is still reproducible.
+ */
+public class RandomStreams {
+
+	public enum Subsystem {
+		TREE,
+		TERRAIN_QUADTREE,
+		GROUND_OBJECTS,
+		ECOSYSTEM
+	}
+
+	private final long seed;
+
+	public RandomStreams(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Seed of the stream for the subsystem and keys
+	 */
+	public long getSeed(Subsystem subsystem, long... keys) {
+		return split(mix(seed, subsystem.ordinal()), keys);
+	}
+
+	/**
+	 * Seed of the stream split by the keys from the stream with the given seed, so that a stream can be continued from
+	 * its seed alone
+	 */
+	public static long split(long seed, long... keys) {
+		long result = seed;
+		for (long key : keys) {
+			result = mix(result, key);
+		}
+		return result;
+	}
+
+	/**
+	 * A new generator at the start of the stream for the subsystem and keys. Streams can be split further by
+	 * adding keys.
+	 */
+	public Random get(Subsystem subsystem, long... keys) {
+		return new Random(getSeed(subsystem, keys));
+	}
+
+	/**
+	 * Key for a floating point coordinate, such as the centre of a quad
+	 */
+	public static long key(float coordinate) {
+		return Float.floatToIntBits(coordinate);
+	}
+
+	/**
+	 * Combines value into seed with the SplitMix64 finalizer, so that nearby seeds and values give unrelated results
+	 */
+	public static long mix(long seed, long value) {
+		long z = seed + 0x9E3779B97F4A7C15L * (value + 1);
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -21,7 +21,86 @@
 
 package rendering;
 
-public enum LevelOfDetail {
-	HIGH,
-	LOW
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import lombok.Getter;
+import params.ParameterLoader;
+import params.Parameters;
+
+/**
+ * A level in the chain of levels of detail, from {@link #HIGH}, the full models, to {@link #LOW}, the coarsest.
+ * Models need not have every level, in which case they draw the nearest level which they have.
+ */
+public final class LevelOfDetail {
+
+	private static final Parameters parameters = ParameterLoader.getParameters();
+	public static final int COUNT = Math.max(parameters.quadtree.levelsOfDetail, 2);
+	private static final List<LevelOfDetail> levels = IntStream.range(0, COUNT)
+			.mapToObj(LevelOfDetail::new)
+			.collect(Collectors.toUnmodifiableList());
+	public static final LevelOfDetail HIGH = levels.get(0);
+	public static final LevelOfDetail LOW = levels.get(COUNT - 1);
+
+	// 0 for the highest level of detail
+	@Getter
+	private final int index;
+
+	private LevelOfDetail(int index) {
+		this.index = index;
+	}
+
+	/**
+	 * The level with the index, clamped to the chain
+	 */
+	public static LevelOfDetail get(int index) {
+		return levels.get(Math.max(0, Math.min(index, COUNT - 1)));
+	}
+
+	public static List<LevelOfDetail> values() {
+		return levels;
+	}
+
+	/**
+	 * The level for an object of the given projected radius, as a fraction of half the height of the screen. Each
+	 * level is used until the object is half the size on screen at which the previous level stopped being used
+	 */
+	public static LevelOfDetail forScreenSize(float screenSize) {
+		float threshold = parameters.quadtree.lodScreenSize;
+		if (!(screenSize < threshold)) {
+			return HIGH;
+		}
+		if (!(screenSize > 0)) {
+			return LOW;
+		}
+		return get(1 + (int) Math.floor(Math.log(threshold / screenSize) / Math.log(2)));
+	}
+
+	/**
+	 * For each level of the chain, the value of the nearest level which the map has, choosing the more detailed of
+	 * two equally near levels
+	 */
+	public static <T> List<T> fill(Map<LevelOfDetail, T> values) {
+		if (values.isEmpty()) {
+			throw new RuntimeException("No levels of detail were given");
+		}
+		return levels.stream().map(level -> {
+			for (int distance = 0; ; distance++) {
+				T value = values.get(get(level.index - distance));
+				if (value != null && level.index - distance >= 0) {
+					return value;
+				}
+				value = values.get(get(level.index + distance));
+				if (value != null && level.index + distance < COUNT) {
+					return value;
+				}
+			}
+		}).collect(Collectors.toList());
+	}
+
+	@Override
+	public String toString() {
+		return "LevelOfDetail(" + index + ")";
+	}
 }
@@ -54,8 +54,13 @@ public class CrossedBillboard extends InstancedGroundObject {
 		generate();
 	}
 
+	@Override
+	protected int getVariant() {
+		return index;
+	}
+
 	private Matrix4f getRandomRotation(float yAngle) {
-		Random r = ParameterLoader.getParameters().random.generator;
+		Random r = random;
 		return new Matrix4f()
 				.rotate(yAngle, up)
 				.rotate((float) (r.nextFloat() * Math.PI / 4 + Math.PI / 6),
@@ -65,9 +70,9 @@ public class CrossedBillboard extends InstancedGroundObject {
 	@Override
 	Map<LevelOfDetail, List<Mesh>> getMeshes() {
 		Parameters.SceneObjects.CrossedBillboard params = ParameterLoader.getParameters().sceneObjects.crossedBillboards.get(index);
-		Mesh board = MeshUtils.transform(Tree.leaf, new Matrix4f()
+		Mesh board = new Mesh(MeshUtils.transform(Tree.leaf, new Matrix4f()
 				.rotate((float) Math.PI / 2, out)
-				.scale(params.yScale, 1, params.xScale));
+				.scale(params.yScale, 1, params.xScale)));
 		board.addTexture("diffuseTexture", Textures.billboardTextures.get(index));
 		board.setShaderProgram(billboardShaderProgram);
 		return Map.of(
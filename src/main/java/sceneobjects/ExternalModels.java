@@ -52,15 +52,22 @@ public class ExternalModels extends InstancedGroundObject {
 		generate();
 	}
 
+	@Override
+	protected int getVariant() {
+		return index;
+	}
+
 	@Override
 	Map<LevelOfDetail, List<Mesh>> getMeshes() {
-		List<Mesh> meshes = models.get(index).getMeshes();
+		Map<LevelOfDetail, List<Mesh>> levels = models.get(index).getLevelsOfDetail();
 
-		for (Mesh mesh : meshes) {
-			mesh.setSegColour(Colour.extModel);
+		for (List<Mesh> meshes : levels.values()) {
+			for (Mesh mesh : meshes) {
+				mesh.setSegColour(Colour.extModel);
+			}
 		}
 
-		return Map.of(LevelOfDetail.HIGH, meshes);
+		return levels;
 	}
 
 	public void checkCollisions(Vector3f userPosition) {
@@ -27,6 +27,7 @@ import java.util.Map;
 import java.util.Random;
 import java.util.stream.Collectors;
 import generation.TerrainQuadtree;
+import lombok.Getter;
 import modeldata.InstancedLODModel;
 import modeldata.InstancedLODModelBuilder;
 import modeldata.SingleModel;
@@ -36,7 +37,9 @@ import org.joml.Vector2f;
 import org.joml.Vector3f;
 import params.ParameterLoader;
 import params.Parameters;
+import params.RandomStreams;
 import rendering.LevelOfDetail;
+import utils.MeshUtils;
 
 public abstract class InstancedGroundObject {
 
@@ -50,6 +53,11 @@ public abstract class InstancedGroundObject {
 	private final TerrainQuadtree quadtree;
 	private final Parameters.SceneObjects.SceneObject params;
 	private boolean generated = false;
+	// Radius of a sphere about each instance which contains it
+	@Getter
+	private float boundingRadius = 0;
+	// Stream of this object in its quad, set when it is generated
+	protected Random random;
 
 	public InstancedGroundObject(int numberOfTypes, int numberOfInstances, Vector2f regionCentre, float regionWidth, TerrainQuadtree quadtree, Parameters.SceneObjects.SceneObject params) {
 		this.numberOfTypes = numberOfTypes;
@@ -60,12 +68,24 @@ public abstract class InstancedGroundObject {
 		this.params = params;
 	}
 
+	/**
+	 * Distinguishes objects of the same class in a quad, such as the index of their parameters
+	 */
+	protected int getVariant() {
+		return 0;
+	}
+
 	public void generate() {
 		generated = true;
+		random = ParameterLoader.getParameters().random.streams.get(RandomStreams.Subsystem.GROUND_OBJECTS,
+				getClass().getSimpleName().hashCode(),
+				getVariant(),
+				RandomStreams.key(regionCentre.x),
+				RandomStreams.key(regionCentre.y));
 		if (numberOfInstances == 0) {
 			return;
 		}
-		Random r = ParameterLoader.getParameters().random.generator;
+		Random r = random;
 		for (int i = 0; i < numberOfTypes; i++) {
 			int numberOfThisType = getNumber(numberOfInstances, numberOfTypes);
 			if (numberOfThisType == 0) {
@@ -76,6 +96,10 @@ public abstract class InstancedGroundObject {
 			// For each LOD, construct the lod representation for type i
 			for (LevelOfDetail lod : lodMeshes.keySet()) {
 				List<Mesh> meshes = lodMeshes.get(lod).stream().map(mesh -> new Mesh(mesh, true)).collect(Collectors.toList());
+				for (Mesh mesh : meshes) {
+					boundingRadius = Math.max(boundingRadius,
+							MeshUtils.getBoundingRadius(mesh.getData()) * params.scale * params.maxScaleFactor);
+				}
 				SingleModel model = new SingleModel(meshes);
 				model.setIsInstanced(true);
 				modelBuilder.withLODModel(lod, model);
@@ -106,7 +130,7 @@ public abstract class InstancedGroundObject {
 	}
 
 	private int getNumber(int instances, int types) {
-		Random r = ParameterLoader.getParameters().random.generator;
+		Random r = random;
 		float val = (float) instances / types;
 		// If fewer than 1 should be present in this quad, generate 1 with probability (instances/types)
 		if (val < 1) {
@@ -21,12 +21,11 @@
 
 package sceneobjects;
 
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
-import java.util.stream.Collectors;
 
 import static rendering.ShaderPrograms.billboardShaderProgram;
 import static rendering.ShaderPrograms.leafShaderProgram;
@@ -38,13 +37,15 @@ import generation.TurtleInterpreter;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
-import lsystems.modules.Module;
+import lsystems.DerivationStream;
+import lsystems.LSystem;
 import lsystems.modules.ParametricValueModule;
 import modeldata.LODModel;
 import modeldata.LODModelBuilder;
 import modeldata.SingleModel;
 import modeldata.meshdata.Mesh;
-import modeldata.meshdata.Vertex;
+import modeldata.meshdata.MeshBuilder;
+import modeldata.meshdata.MeshData;
 import modeldata.meshdata.VertexAttribute;
 import org.apache.commons.lang3.NotImplementedException;
 import org.joml.Matrix4f;
@@ -57,55 +58,45 @@ import rendering.LevelOfDetail;
 import rendering.Textures;
 import utils.MathsUtils;
 import utils.MeshUtils;
-import utils.VectorUtils;
 
 public class Tree {
 
 	private static final Parameters parameters = ParameterLoader.getParameters();
 	private final static Vector3f up = new Vector3f(0f, 1f, 0f);
 	private final static Vector3f out = new Vector3f(0f, 0f, 1f);
-	public final static Mesh leaf = new Mesh(
-			List.of(
-					new Vertex(new Vector3f(0f, 0f, -0.5f), up, out, new Vector2f(0, 0)),
-					new Vertex(new Vector3f(1f, 0f, -0.5f), up, out, new Vector2f(0, 1)),
-					new Vertex(new Vector3f(1f, 0f, 0.5f), up, out, new Vector2f(1, 1)),
-					new Vertex(new Vector3f(0f, 0f, 0.5f), up, out, new Vector2f(1, 0))
-			),
-			new int[] {0, 1, 3, 1, 2, 3},
-			List.of(
-					VertexAttribute.POSITION,
-					VertexAttribute.NORMAL,
-					VertexAttribute.TANGENT,
-					VertexAttribute.TEXTURE)
-	);
+	// Mesh data rather than a mesh, so that trees can be generated without a GL context
+	public final static MeshData leaf = new MeshBuilder(
+			List.of(VertexAttribute.POSITION, VertexAttribute.NORMAL, VertexAttribute.TANGENT, VertexAttribute.TEXTURE), 4, 6)
+			.vertex().position(0f, 0f, -0.5f).normal(up).tangent(out).texCoord(0, 0)
+			.vertex().position(1f, 0f, -0.5f).normal(up).tangent(out).texCoord(0, 1)
+			.vertex().position(1f, 0f, 0.5f).normal(up).tangent(out).texCoord(1, 1)
+			.vertex().position(0f, 0f, 0.5f).normal(up).tangent(out).texCoord(1, 0)
+			.indices(new int[] {0, 1, 3, 1, 2, 3})
+			.build();
 	private final int typeIndex;
 	private LODModel model;
 	@Getter
-	private Mask mask = new Mask();
+	private final Mask mask;
 	@Getter
 	private final int numIterations;
 
-	public Tree(int typeIndex) {
-		this(typeIndex, Optional.empty());
+	public Tree(int typeIndex, Random random) {
+		this(generate(typeIndex, Optional.empty(), random));
 	}
 
-	public Tree(int typeIndex, int numIterations) {
-		this(typeIndex, Optional.of(numIterations));
+	public Tree(int typeIndex, int numIterations, Random random) {
+		this(generate(typeIndex, Optional.of(numIterations), random));
 	}
 
-	private Tree(int typeIndex, Optional<Integer> numIterations) {
-		this.typeIndex = typeIndex;
-		if (numIterations.isEmpty()) {
-			Parameters.SceneObjects.Tree params = parameters.sceneObjects.trees.get(typeIndex);
-			Random r = ParameterLoader.getParameters().random.generator;
-			int minI = params.minIterations;
-			int maxI = params.maxIterations;
-			this.numIterations = r.nextInt(maxI - minI) + minI;
-		} else {
-			this.numIterations = numIterations.get();
-		}
+	/**
+	 * Uploads the geometry, so must be called on the thread with the GL context
+	 */
+	public Tree(Geometry geometry) {
+		this.typeIndex = geometry.typeIndex;
+		this.numIterations = geometry.numIterations;
+		this.mask = geometry.mask;
 
-		Map<LevelOfDetail, List<Mesh>> lodMeshes = getMeshes();
+		Map<LevelOfDetail, List<Mesh>> lodMeshes = getMeshes(geometry);
 
 		LODModelBuilder modelBuilder = new LODModelBuilder();
 		// For each LOD, construct the mesh representation
@@ -124,50 +115,94 @@ public class Tree {
 		model.render(levelOfDetail, renderForShadows);
 	}
 
-	Map<LevelOfDetail, List<Mesh>> getMeshes() {
+	public static Geometry generate(int typeIndex, int numIterations, Random random) {
+		return generate(typeIndex, Optional.of(numIterations), random);
+	}
 
+	/**
+	 * Derives, interprets and measures a tree without using GL, so that it can run on any thread
+	 *
+	 * @param random Stream of the tree, from which every random choice in its generation is made
+	 */
+	private static Geometry generate(int typeIndex, Optional<Integer> iterations, Random random) {
 		Parameters.SceneObjects.Tree params = parameters.sceneObjects.trees.get(typeIndex);
+		int numIterations = iterations.orElseGet(() -> random.nextInt(params.maxIterations - params.minIterations)
+				+ params.minIterations);
 		int lowLODEdges = params.lowLODEdges;
 		int lowLODLeafMerges = params.lowLODLeafMerges;
 
 		int numEdges = params.numSides;
 		TurtleInterpreter turtleInterpreter = new TurtleInterpreter(numEdges);
-		turtleInterpreter.setSubModels(List.of(MeshUtils.transform(leaf,
-				new Matrix4f().scale(params.leafYScale / params.scale, 1, params.leafXScale / params.scale))));
-		TurtleInterpreter lowLODInterpreter = new TurtleInterpreter(lowLODEdges);
-		lowLODInterpreter.setSubModels(List.of(MeshUtils.transform(leaf,
+		MeshData leafModel = MeshUtils.transform(leaf,
+				new Matrix4f().scale(params.leafYScale / params.scale, 1, params.leafXScale / params.scale));
+		turtleInterpreter.setSubModels(List.of(leafModel));
+		MeshData lowLODLeafModel = MeshUtils.transform(leaf,
 				new Matrix4f().scale(
 						params.leafYScale * (1 + 0.1f * lowLODLeafMerges) / params.scale,
 						1,
-						params.leafXScale * (2 * lowLODLeafMerges) / params.scale))));
-		List<Module> instructions;
+						params.leafXScale * (2 * lowLODLeafMerges) / params.scale));
+		DerivationStream instructions;
 		if (params instanceof TreeTypes.BranchingTree) {
 			turtleInterpreter.setIgnored(List.of('A'));
-			lowLODInterpreter.setIgnored(List.of('A'));
-			instructions = TreeLSystems.branching(typeIndex)
-					.performDerivations(numIterations)
-					.stream()
-					.map(m -> m.getName() == 'A' ? new ParametricValueModule('~', 0f) : m)
-					.collect(Collectors.toList());
+			LSystem lSystem = TreeLSystems.branching(typeIndex, random);
+			lSystem.compile();
+			instructions = lSystem.streamDerivations(numIterations)
+					.substitute('A', new ParametricValueModule('~', 0f));
 		} else if (params instanceof TreeTypes.MonopodialTree) {
 			turtleInterpreter.setIgnored(List.of('A', 'B'));
-			lowLODInterpreter.setIgnored(List.of('A', 'B'));
-			instructions = TreeLSystems.monopodial(typeIndex)
-					.performDerivations(numIterations);
+			LSystem lSystem = TreeLSystems.monopodial(typeIndex, random);
+			lSystem.compile();
+			instructions = lSystem.streamDerivations(numIterations);
 		} else {
 			throw new NotImplementedException();
 		}
+		turtleInterpreter.setRandom(new Random(random.nextLong()));
+		// The derivation is streamed into the interpreter, so the final string is never held in memory. Every level of
+		// detail is built from this one interpretation
 		turtleInterpreter.interpretInstructions(instructions);
-		lowLODInterpreter.interpretInstructions(instructions);
+
+		// Each leaf is an instance of the leaf model
+		float[] leaves = turtleInterpreter.getSubModelInstances(0);
+		Mask mask = new Mask();
+		MeshData branches;
+		MeshData board;
+		float[] segments = null;
+		List<MeshData> decimatedBranches = List.of();
+		if (params.instancedBranches) {
+			// Both levels of detail draw the same segments, with fewer edges for the low level of detail
+			segments = turtleInterpreter.getSegmentInstances();
+			branches = TurtleInterpreter.getSegmentModel(numEdges);
+			board = TurtleInterpreter.getSegmentModel(lowLODEdges);
+			findMaxRadii(mask, segments);
+		} else {
+			branches = turtleInterpreter.getMeshData();
+			board = turtleInterpreter.getMeshData(lowLODEdges);
+			// The levels between the highest and lowest levels of detail
+			decimatedBranches = MeshUtils.decimate(branches, parameters.quadtree.lodTriangleRatio,
+					LevelOfDetail.COUNT - 2);
+			findMaxRadii(mask, branches, params.numSides);
+		}
+		findCanopyMask(mask, leafModel, leaves);
+
+		for (int i = 0; i < lowLODLeafMerges; i++) {
+			turtleInterpreter.reduceSubModelCount();
+		}
+		float[] lowLODLeaves = turtleInterpreter.getSubModelInstances(0);
+
+		return new Geometry(typeIndex, numIterations, branches, decimatedBranches, leafModel, leaves, board,
+				lowLODLeafModel, lowLODLeaves, segments, mask, turtleInterpreter.getMeshTime(),
+				turtleInterpreter.getSmoothingTime());
+	}
+
+	private Map<LevelOfDetail, List<Mesh>> getMeshes(Geometry geometry) {
+
+		Parameters.SceneObjects.Tree params = parameters.sceneObjects.trees.get(typeIndex);
 
 		Textures.TreeTextures treeTextures = Textures.treeTextures.get(typeIndex);
-		Mesh branches = turtleInterpreter.getMesh();
-		branches.addTexture("diffuseTexture", treeTextures.bark);
-		branches.addTexture("normalTexture", treeTextures.barkNormal);
-		branches.addTexture("specularTexture", treeTextures.barkGlossiness);
-		branches.setShaderProgram(textureShader);
+		Mesh branches = getBranchMesh(geometry.branches, geometry.segments, treeTextures);
 
-		Mesh canopy = turtleInterpreter.getCombinedSubModelMeshes().get(0);
+		Mesh canopy = new Mesh(geometry.leafModel);
+		canopy.setInstances(geometry.leaves);
 		canopy.addTexture("leafFront", treeTextures.leafFront);
 		canopy.addTexture("leafFrontTranslucency", treeTextures.leafFrontT);
 		canopy.addTexture("leafFrontNorm", treeTextures.leafFrontNorm);
@@ -180,22 +215,21 @@ public class Tree {
 		canopy.setColourFilter(params.leafColourFilter);
 		canopy.setLeaf(true);
 
-		findCanopyMask(branches, canopy);
-
 		// Uses leaf geometry to construct billboard
 //		Mesh board = MeshUtils.transform(Tree.leaf, new Matrix4f()
 //				.scale(1f, 10f / params.scale, 1f / params.scale)
 //				.rotate((float) Math.PI / 2, out));
-		Mesh board = lowLODInterpreter.getMesh();
+		Mesh board = new Mesh(geometry.board);
+		if (geometry.segments != null) {
+			board.setSegmentInstances(geometry.segments);
+		}
 		board.addTexture("diffuseTexture", treeTextures.bark);
 		board.addTexture("normalTexture", treeTextures.barkNormal);
 		branches.addTexture("specularTexture", treeTextures.barkGlossiness);
 		board.setShaderProgram(billboardShaderProgram);
 
-		for (int i = 0; i < lowLODLeafMerges; i++) {
-			lowLODInterpreter.reduceSubModelCount();
-		}
-		Mesh LODCanopy = lowLODInterpreter.getCombinedSubModelMeshes().get(0);
+		Mesh LODCanopy = new Mesh(geometry.lowLODLeafModel);
+		LODCanopy.setInstances(geometry.lowLODLeaves);
 		LODCanopy.addTexture("leafFront", treeTextures.leafFront);
 		LODCanopy.addTexture("leafFrontTranslucency", treeTextures.leafFrontT);
 		LODCanopy.addTexture("leafFrontNorm", treeTextures.leafFrontNorm);
@@ -213,45 +247,116 @@ public class Tree {
 //				LODCanopy
 //		);
 
-		return Map.of(
-				LevelOfDetail.HIGH, List.of(new Mesh(branches), new Mesh(canopy)),
-				LevelOfDetail.LOW, List.of(new Mesh(board), new Mesh(LODCanopy)));
+		Map<LevelOfDetail, List<Mesh>> meshes = new HashMap<>();
+		meshes.put(LevelOfDetail.HIGH, List.of(branches, canopy));
+		// The decimated branches are drawn with all of the leaves
+		for (int i = 0; i < geometry.decimatedBranches.size() && i + 1 < LevelOfDetail.COUNT - 1; i++) {
+			meshes.put(LevelOfDetail.get(i + 1),
+					List.of(getBranchMesh(geometry.decimatedBranches.get(i), null, treeTextures), canopy));
+		}
+		meshes.put(LevelOfDetail.LOW, List.of(board, LODCanopy));
+		return meshes;
 //		return Map.of(
 //				LevelOfDetail.HIGH, List.of(new Mesh(branches)),
 //				LevelOfDetail.LOW, List.of(new Mesh(board)));
 	}
 
-	private void findMaxRadii(Mesh branches) {
-		List<Vector3f> positions = branches.getVertices().stream().map(Vertex::getPosition).collect(Collectors.toList());
-		Parameters.SceneObjects.Tree params = parameters.sceneObjects.trees.get(typeIndex);
-		for (int i = 0; i < 4 * params.numSides; i++) {
-			Vector3f position = positions.get(i);
-			float len = (new Vector2f(position.x, position.z)).length();
-			if (len > mask.trunkRadius) {
+	private static Mesh getBranchMesh(MeshData data, float[] segments, Textures.TreeTextures treeTextures) {
+		Mesh branches = new Mesh(data);
+		if (segments != null) {
+			branches.setSegmentInstances(segments);
+		}
+		branches.addTexture("diffuseTexture", treeTextures.bark);
+		branches.addTexture("normalTexture", treeTextures.barkNormal);
+		branches.addTexture("specularTexture", treeTextures.barkGlossiness);
+		branches.setShaderProgram(textureShader);
+		return branches;
+	}
+
+	private static void findMaxRadii(Mask mask, MeshData branches, int numSides) {
+		Vector3f position = new Vector3f();
+		for (int i = 0; i < branches.getNumberOfVertices(); i++) {
+			branches.getPosition(i, position);
+			float len = (float) Math.sqrt(position.x * position.x + position.z * position.z);
+			if (i < 4 * numSides && len > mask.trunkRadius) {
 				mask.trunkRadius = len;
 			}
+			if (len > mask.canopyXZRadius) {
+				mask.canopyXZRadius = len;
+			}
 		}
-		for (Vector3f position : positions) {
-			float len = (new Vector2f(position.x, position.z)).length();
+	}
+
+	/**
+	 * As {@link #findMaxRadii(Mask, MeshData, int)} for branches drawn as segments, bounding each cross-section by
+	 * its centre and radius
+	 */
+	private static void findMaxRadii(Mask mask, float[] segments) {
+		int crossSectionSize = Mesh.SEGMENT_RECORD_SIZE / 2;
+		for (int i = 0; i < segments.length; i += crossSectionSize) {
+			float len = (float) Math.sqrt(segments[i] * segments[i] + segments[i + 2] * segments[i + 2]) + segments[i + 3];
+			// The first segment is the base of the trunk
+			if (i < Mesh.SEGMENT_RECORD_SIZE && len > mask.trunkRadius) {
+				mask.trunkRadius = len;
+			}
 			if (len > mask.canopyXZRadius) {
 				mask.canopyXZRadius = len;
 			}
 		}
 	}
 
-	private void findCanopyMask(Mesh branches, Mesh canopy) {
-		findMaxRadii(branches);
-		List<Vertex> vertices = canopy.getVertices();
-		List<Vector3f> positions = vertices.stream().map(Vertex::getPosition).collect(Collectors.toList());
-		mask.canopyCentre = positions.stream()
-				.reduce(VectorUtils::add)
-				.map(p -> p.div(vertices.size()))
-				.orElse(new Vector3f());
-		Vector3f topPoint = positions.stream().max(Comparator.comparingDouble(p -> p.y)).orElse(new Vector3f());
-		Vector3f bottomPoint = positions.stream().min(Comparator.comparingDouble(p -> p.y)).orElse(new Vector3f());
-		float canopyHeight = Math.abs(topPoint.y - bottomPoint.y);
-		mask.canopyYRadius = canopyHeight / 2;
-		mask.canopyCentre.y = (topPoint.y + bottomPoint.y) / 2;
+	private static void findCanopyMask(Mask mask, MeshData leafModel, float[] leaves) {
+		int numberOfLeaves = leaves.length / Mesh.INSTANCE_RECORD_SIZE;
+		mask.canopyCentre = new Vector3f();
+		if (numberOfLeaves == 0 || leafModel.getNumberOfVertices() == 0) {
+			return;
+		}
+		Matrix4f instanceModel = new Matrix4f();
+		Vector3f position = new Vector3f();
+		float top = -Float.MAX_VALUE;
+		float bottom = Float.MAX_VALUE;
+		for (int i = 0; i < leaves.length; i += Mesh.INSTANCE_RECORD_SIZE) {
+			instanceModel.translationRotateScale(
+					leaves[i], leaves[i + 1], leaves[i + 2],
+					leaves[i + 3], leaves[i + 4], leaves[i + 5], leaves[i + 6],
+					leaves[i + 7], leaves[i + 7], leaves[i + 7]);
+			for (int v = 0; v < leafModel.getNumberOfVertices(); v++) {
+				instanceModel.transformPosition(leafModel.getPosition(v, position));
+				mask.canopyCentre.add(position);
+				top = Math.max(top, position.y);
+				bottom = Math.min(bottom, position.y);
+			}
+		}
+		mask.canopyCentre.div((float) numberOfLeaves * leafModel.getNumberOfVertices());
+		mask.canopyYRadius = Math.abs(top - bottom) / 2;
+		mask.canopyCentre.y = (top + bottom) / 2;
+	}
+
+	/**
+	 * Mesh data of a tree before it is uploaded, which is generated without GL so that trees can be generated
+	 * concurrently
+	 */
+	@Getter
+	@AllArgsConstructor
+	public static class Geometry {
+		private final int typeIndex;
+		private final int numIterations;
+		private final MeshData branches;
+		// Branches of the levels of detail after the highest, each decimated from the last, which are empty if the
+		// branches are drawn as segments
+		private final List<MeshData> decimatedBranches;
+		private final MeshData leafModel;
+		private final float[] leaves;
+		private final MeshData board;
+		private final MeshData lowLODLeafModel;
+		private final float[] lowLODLeaves;
+		// Segment instances drawn with the branches and board, which are then segment meshes, or null if they are
+		// meshes of the whole tree
+		private final float[] segments;
+		private final Mask mask;
+		// Nanoseconds spent building the meshes of the tree and smoothing their normals, which are 0 if it was loaded
+		private final long meshTime;
+		private final long smoothingTime;
 	}
 
 	@Getter
@@ -264,6 +369,13 @@ public class Tree {
 		private Matrix4f model;
 		private float scale;
 
+		/**
+		 * Radius of a sphere about the tree which contains it, for choosing its level of detail
+		 */
+		public float getBoundingRadius() {
+			return TreePool.getTreePool().getInstanceMask(typeIndex, treePoolIndex).getBoundingRadius() * scale;
+		}
+
 		public void render(LevelOfDetail levelOfDetail, boolean renderForShadows) {
 			TreePool treePool = TreePool.getTreePool();
 			treePool.renderTreeWithModel(typeIndex, treePoolIndex, model, levelOfDetail, renderForShadows);
@@ -293,5 +405,13 @@ public class Tree {
 		private float canopyYRadius = 0;
 		private float trunkRadius = 0;
 		private Vector3f canopyCentre;
+
+		/**
+		 * Radius of a sphere about the middle of the tree which contains it
+		 */
+		public float getBoundingRadius() {
+			float height = canopyCentre.y + canopyYRadius;
+			return (float) Math.sqrt(canopyXZRadius * canopyXZRadius + height * height / 4);
+		}
 	}
 }
@@ -23,7 +23,6 @@ package sceneobjects;
 
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 
 import static lsystems.modules.DefinedModules.LB;
 import static lsystems.modules.DefinedModules.RB;
@@ -31,6 +30,7 @@ import static rendering.ShaderPrograms.textureShader;
 
 import generation.TerrainQuadtree;
 import generation.TurtleInterpreter;
+import lsystems.CompactState;
 import lsystems.LSystem;
 import lsystems.ProductionBuilder;
 import lsystems.modules.CharModule;
@@ -60,9 +60,11 @@ public class Twigs extends InstancedGroundObject {
 		int numEdges = ParameterLoader.getParameters().sceneObjects.twigs.numSides;
 		TurtleInterpreter twigTurtleInterpreter = new TurtleInterpreter(numEdges);
 		twigTurtleInterpreter.setIgnored(List.of('A', 'B', 'C'));
-		Random r = ParameterLoader.getParameters().random.generator;
-		List<Module> instructions = twigSystem().performDerivations(r.nextInt(2) + 5);
-		twigTurtleInterpreter.interpretInstructions(instructions);
+		twigTurtleInterpreter.setRandom(random);
+		LSystem twigSystem = twigSystem();
+		twigSystem.compile();
+		CompactState instructions = twigSystem.performCompactDerivations(random.nextInt(2) + 5);
+		twigTurtleInterpreter.interpretInstructions(instructions.view());
 		Mesh twig = MeshUtils.transform(twigTurtleInterpreter.getMesh(), new Matrix4f().rotate((float) Math.PI / 2, new Vector3f(1, 0, 0)));
 		twig.addTexture("diffuseTexture", Textures.twigBark);
 		twig.addTexture("normalTexture", Textures.twigBarkNormal);
@@ -80,10 +82,16 @@ public class Twigs extends InstancedGroundObject {
 		float wr = 0.707f;
 
 		CharModule D = new CharModule('$');
-		Module AOut = new ParametricExpressionModule('A', List.of("l", "w"), vars -> List.of(vars.get("l") * r1, vars.get("w") * wr));
-		Module BOut = new ParametricExpressionModule('B', List.of("l", "w"), vars -> List.of(vars.get("l") * r2, vars.get("w") * wr));
-		Module ExOut = new ParametricExpressionModule('!', List.of("l", "w"), vars -> List.of(vars.get("w")));
-		Module FOut = new ParametricExpressionModule('F', List.of("l", "w"), vars -> List.of(vars.get("l")));
+		Module AOut = ParametricExpressionModule.compiled('A', List.of("l", "w"), 2, (args, out) -> {
+			out[0] = args[0] * r1;
+			out[1] = args[1] * wr;
+		});
+		Module BOut = ParametricExpressionModule.compiled('B', List.of("l", "w"), 2, (args, out) -> {
+			out[0] = args[0] * r2;
+			out[1] = args[1] * wr;
+		});
+		Module ExOut = ParametricExpressionModule.compiled('!', List.of("w"), 1, (args, out) -> out[0] = args[0]);
+		Module FOut = ParametricExpressionModule.compiled('F', List.of("l"), 1, (args, out) -> out[0] = args[0]);
 
 		return new LSystem(
 				List.of(
@@ -128,7 +136,8 @@ public class Twigs extends InstancedGroundObject {
 										ExOut,
 										FOut
 								)).withProbability(0.7f).build()
-				));
+				),
+				random.nextLong());
 	}
 
 }
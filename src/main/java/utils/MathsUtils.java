@@ -37,14 +37,28 @@ public final class MathsUtils {
 
 
 	public static boolean circlesColliding(Vector2f centre1, float radius1, Vector2f centre2, float radius2) {
-		float distanceSquared = centre1.distanceSquared(centre2);
+		return circlesColliding(centre1.distanceSquared(centre2), radius1, radius2);
+	}
+
+	/**
+	 * As {@link #circlesColliding(Vector2f, float, Vector2f, float)}, given the squared distance between the centres
+	 */
+	public static boolean circlesColliding(float distanceSquared, float radius1, float radius2) {
 		float radiusSum = radius1 + radius2;
 		return (distanceSquared < (radiusSum * radiusSum));
 	}
 
 	public static boolean cylindersColliding(Vector2f centre1, float centre1Y, float radius1, float height1,
 											 Vector2f centre2, float centre2Y, float radius2, float height2) {
-		float distanceSquared = centre1.distanceSquared(centre2);
+		return cylindersColliding(centre1.distanceSquared(centre2), centre1Y, radius1, height1, centre2Y, radius2, height2);
+	}
+
+	/**
+	 * As {@link #cylindersColliding(Vector2f, float, float, float, Vector2f, float, float, float)}, given the squared
+	 * distance between the centres in XZ
+	 */
+	public static boolean cylindersColliding(float distanceSquared, float centre1Y, float radius1, float height1,
+											 float centre2Y, float radius2, float height2) {
 		float radiusSum = radius1 + radius2;
 		if (distanceSquared < (radiusSum * radiusSum)) {
 			float heightDist = Math.abs(centre2Y - centre1Y);
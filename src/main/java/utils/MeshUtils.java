@@ -21,38 +21,561 @@
 
 package utils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.PriorityQueue;
 import modeldata.meshdata.Mesh;
-import modeldata.meshdata.Vertex;
+import modeldata.meshdata.MeshBuilder;
+import modeldata.meshdata.MeshData;
+import modeldata.meshdata.VertexAttribute;
 import org.joml.Matrix4f;
+import org.joml.Vector2f;
 import org.joml.Vector3f;
 
 public final class MeshUtils {
 	private MeshUtils() {
 	}
 
-	public static List<Vertex> transform(List<Vertex> vertices, Matrix4f model) {
-		if (vertices.get(0).getTangent() != null) {
-			return vertices.stream()
-					.map(v -> new Vertex(
-							model.transformPosition(new Vector3f(v.getPosition())),
-							model.transformDirection(new Vector3f(v.getNormal())).normalize(),
-							model.transformDirection(new Vector3f(v.getTangent())).normalize(),
-							v.getTexCoord()))
-					.collect(Collectors.toList());
+	/**
+	 * Appends the vertices of source transformed by model to dest, along with its indices offset by the number of
+	 * vertices already in dest
+	 */
+	public static void transform(MeshData source, Matrix4f model, MeshBuilder dest) {
+		int offset = dest.getNumberOfVertices();
+		Vector3f vector = new Vector3f();
+		Vector2f texCoord = new Vector2f();
+		boolean hasNormal = source.hasAttribute(VertexAttribute.NORMAL);
+		boolean hasTangent = source.hasAttribute(VertexAttribute.TANGENT);
+		boolean hasTexCoord = source.hasAttribute(VertexAttribute.TEXTURE);
+		for (int i = 0; i < source.getNumberOfVertices(); i++) {
+			dest.vertex().position(model.transformPosition(source.getPosition(i, vector)));
+			if (hasNormal) {
+				dest.normal(model.transformDirection(source.getNormal(i, vector)).normalize());
+			}
+			if (hasTangent) {
+				dest.tangent(model.transformDirection(source.getTangent(i, vector)).normalize());
+			}
+			if (hasTexCoord) {
+				dest.texCoord(source.getTexCoord(i, texCoord));
+			}
 		}
-		return vertices.stream()
-				.map(v -> new Vertex(
-						model.transformPosition(new Vector3f(v.getPosition())),
-						model.transformDirection(new Vector3f(v.getNormal())).normalize(),
-						v.getTexCoord()))
-				.collect(Collectors.toList());
+		for (int i = 0; i < source.getNumberOfIndices(); i++) {
+			dest.index(source.getIndex(i) + offset);
+		}
+	}
+
+	public static MeshData transform(MeshData data, Matrix4f model) {
+		MeshBuilder builder = new MeshBuilder(data.getAttributes(), data.getNumberOfVertices(), data.getNumberOfIndices());
+		transform(data, model, builder);
+		return builder.build();
 	}
 
 	public static Mesh transform(Mesh mesh, Matrix4f model) {
-		List<Vertex> transformedVertices = transform(mesh.getVertices(), model);
-		return new Mesh(mesh, transformedVertices);
+		return new Mesh(mesh, transform(mesh.getData(), model));
+	}
+
+	/**
+	 * Largest distance of a vertex from the origin of the mesh
+	 */
+	public static float getBoundingRadius(MeshData data) {
+		Vector3f position = new Vector3f();
+		float radius = 0;
+		for (int i = 0; i < data.getNumberOfVertices(); i++) {
+			radius = Math.max(radius, data.getPosition(i, position).length());
+		}
+		return radius;
+	}
+
+	/**
+	 * A chain of up to the given number of levels of detail, each decimated from the last to ratio of its triangles.
+	 * The chain ends early once decimation removes less than half of the triangles it is asked to, as the mesh cannot
+	 * be simplified much further.
+	 */
+	public static List<MeshData> decimate(MeshData data, float ratio, int levels) {
+		List<MeshData> chain = new ArrayList<>();
+		MeshData previous = data;
+		for (int i = 0; i < levels; i++) {
+			MeshData decimated = decimate(previous, ratio);
+			if (decimated.getNumberOfIndices() > previous.getNumberOfIndices() * (1 + ratio) / 2) {
+				break;
+			}
+			chain.add(decimated);
+			previous = decimated;
+		}
+		return chain;
+	}
+
+	public static Mesh decimate(Mesh mesh, float ratio) {
+		return new Mesh(mesh, decimate(mesh.getData(), ratio));
+	}
+
+	/**
+	 * Simplifies the mesh by collapsing edges in order of the quadric error they introduce, until it has at most ratio
+	 * of its triangles or no more edges can be collapsed. Vertices at the same position are one point of the surface,
+	 * and a point is only collapsed onto a neighbouring point, so no cracks open between vertices and those which
+	 * remain keep their attributes. Each vertex of the collapsed point is replaced by the vertex of the other point
+	 * with the most similar attributes, such as the one on the same side of a texture seam. Points on a border are
+	 * only moved along it, which keeps the outline of the mesh.
+	 */
+	public static MeshData decimate(MeshData data, float ratio) {
+		int[] indices = data.getIndices();
+		int numberOfTriangles = indices.length / 3;
+		int target = (int) Math.ceil(numberOfTriangles * ratio);
+
+		// Vertices at the same position are one point of the surface, which is what is simplified
+		Map<Vector3f, Integer> pointIndices = new HashMap<>();
+		int[] points = new int[data.getNumberOfVertices()];
+		for (int i = 0; i < points.length; i++) {
+			points[i] = pointIndices.computeIfAbsent(data.getPosition(i, new Vector3f()), p -> pointIndices.size());
+		}
+		Surface surface = new Surface(data, indices, points, pointIndices.size());
+		PriorityQueue<Collapse> collapses = new PriorityQueue<>();
+		for (int t = 0; t < numberOfTriangles; t++) {
+			if (surface.isAlive(t)) {
+				for (int c = 0; c < 3; c++) {
+					surface.addCollapses(collapses, surface.getPoint(3 * t + c), surface.getPoint(3 * t + (c + 1) % 3));
+				}
+			}
+		}
+		while (surface.getNumberOfTriangles() > target && !collapses.isEmpty()) {
+			Collapse collapse = collapses.poll();
+			if (surface.isCurrent(collapse)) {
+				surface.collapse(collapse, collapses);
+			}
+		}
+
+		// Keep only the vertices of the remaining triangles, in their original order
+		int[] remap = new int[data.getNumberOfVertices()];
+		Arrays.fill(remap, -1);
+		for (int t = 0; t < numberOfTriangles; t++) {
+			if (surface.isAlive(t)) {
+				for (int c = 3 * t; c < 3 * t + 3; c++) {
+					remap[indices[c]] = 0;
+				}
+			}
+		}
+		MeshBuilder builder = new MeshBuilder(data.getAttributes(), data.getNumberOfVertices(),
+				3 * surface.getNumberOfTriangles());
+		Vector3f vector = new Vector3f();
+		Vector2f texCoord = new Vector2f();
+		for (int i = 0; i < remap.length; i++) {
+			if (remap[i] < 0) {
+				continue;
+			}
+			remap[i] = builder.getNumberOfVertices();
+			builder.vertex().position(data.getPosition(i, vector));
+			if (data.hasAttribute(VertexAttribute.NORMAL)) {
+				builder.normal(data.getNormal(i, vector));
+			}
+			if (data.hasAttribute(VertexAttribute.TANGENT)) {
+				builder.tangent(data.getTangent(i, vector));
+			}
+			if (data.hasAttribute(VertexAttribute.TEXTURE)) {
+				builder.texCoord(data.getTexCoord(i, texCoord));
+			}
+		}
+		for (int t = 0; t < numberOfTriangles; t++) {
+			if (surface.isAlive(t)) {
+				builder.triangle(remap[indices[3 * t]], remap[indices[3 * t + 1]], remap[indices[3 * t + 2]]);
+			}
+		}
+		return builder.build();
 	}
 
+	/**
+	 * Moving point from onto point to, with the error of the resulting point and the versions of both points when the
+	 * error was found
+	 */
+	private static class Collapse implements Comparable<Collapse> {
+		private final int from;
+		private final int to;
+		private final double error;
+		private final int fromVersion;
+		private final int toVersion;
+
+		Collapse(int from, int to, double error, int fromVersion, int toVersion) {
+			this.from = from;
+			this.to = to;
+			this.error = error;
+			this.fromVersion = fromVersion;
+			this.toVersion = toVersion;
+		}
+
+		@Override
+		public int compareTo(Collapse other) {
+			return Double.compare(error, other.error);
+		}
+	}
+
+	/**
+	 * The triangles of a mesh being decimated, which are edited in place: each corner holds the vertex index of the
+	 * mesh, and the triangles around each point are listed so that they can be updated when it is collapsed
+	 */
+	private static class Surface {
+		// The quadric of a point has 10 elements, the upper triangle of a symmetric 4x4 matrix
+		private static final int QUADRIC_SIZE = 10;
+		// Weight of the quadric of a border edge relative to a triangle of the same area, so that borders are kept
+		private static final double BORDER_WEIGHT = 10;
+
+		private final MeshData data;
+		private final int[] corners;
+		private final int[] points;
+		private final float[] positions;
+		private final double[] quadrics;
+		private final int[][] triangles;
+		private final int[] numberOfTriangles;
+		private final int[] versions;
+		// Points on an edge of only one triangle, which may only be collapsed along such an edge
+		private final boolean[] border;
+		// Points on an edge of more than two triangles, which are not collapsed
+		private final boolean[] locked;
+		private final boolean[] removed;
+		private final boolean[] alive;
+		private int aliveCount = 0;
+		// Marks of points when finding the neighbours which two points share
+		private final int[] marks;
+		private int mark = 0;
+		private final Vector3f a = new Vector3f();
+		private final Vector3f b = new Vector3f();
+		private final Vector2f texCoordA = new Vector2f();
+		private final Vector2f texCoordB = new Vector2f();
+
+		Surface(MeshData data, int[] corners, int[] points, int numberOfPoints) {
+			this.data = data;
+			this.corners = corners;
+			this.points = points;
+			positions = new float[3 * numberOfPoints];
+			Vector3f position = new Vector3f();
+			for (int i = 0; i < points.length; i++) {
+				data.getPosition(i, position);
+				positions[3 * points[i]] = position.x;
+				positions[3 * points[i] + 1] = position.y;
+				positions[3 * points[i] + 2] = position.z;
+			}
+			quadrics = new double[QUADRIC_SIZE * numberOfPoints];
+			triangles = new int[numberOfPoints][];
+			numberOfTriangles = new int[numberOfPoints];
+			versions = new int[numberOfPoints];
+			border = new boolean[numberOfPoints];
+			locked = new boolean[numberOfPoints];
+			removed = new boolean[numberOfPoints];
+			alive = new boolean[corners.length / 3];
+			marks = new int[numberOfPoints];
+
+			// The edges of each triangle, sorted so that the triangles of an edge can be counted
+			long[] edges = new long[corners.length];
+			int numberOfEdges = 0;
+			Vector3f normal = new Vector3f();
+			for (int t = 0; t < alive.length; t++) {
+				int a = getPoint(3 * t);
+				int b = getPoint(3 * t + 1);
+				int c = getPoint(3 * t + 2);
+				if (a == b || b == c || c == a) {
+					continue;
+				}
+				alive[t] = true;
+				aliveCount++;
+				// The quadric of a triangle is the squared distance from its plane, weighted by its area
+				getNormal(a, b, c, normal);
+				float area = normal.length() / 2;
+				normal.normalize();
+				for (int corner = 3 * t; corner < 3 * t + 3; corner++) {
+					int point = getPoint(corner);
+					addTriangle(point, t);
+					addQuadric(point, normal, a, area);
+					int next = getPoint(3 * t + (corner + 1) % 3);
+					edges[numberOfEdges++] = getEdge(point, next);
+				}
+			}
+			Arrays.sort(edges, 0, numberOfEdges);
+			// The quadric of a border edge is the squared distance from the plane through it perpendicular to its
+			// triangle, which keeps the border in place as its points are collapsed along it
+			Vector3f edgeNormal = new Vector3f();
+			for (int t = 0; t < alive.length; t++) {
+				if (!alive[t]) {
+					continue;
+				}
+				getNormal(getPoint(3 * t), getPoint(3 * t + 1), getPoint(3 * t + 2), normal).normalize();
+				for (int corner = 3 * t; corner < 3 * t + 3; corner++) {
+					int point = getPoint(corner);
+					int next = getPoint(3 * t + (corner + 1) % 3);
+					int count = getCount(edges, numberOfEdges, getEdge(point, next));
+					if (count == 1) {
+						edgeNormal.set(positions[3 * next] - positions[3 * point],
+								positions[3 * next + 1] - positions[3 * point + 1],
+								positions[3 * next + 2] - positions[3 * point + 2]);
+						float length = edgeNormal.length();
+						edgeNormal.cross(normal).normalize();
+						addQuadric(point, edgeNormal, point, BORDER_WEIGHT * length * length);
+						addQuadric(next, edgeNormal, point, BORDER_WEIGHT * length * length);
+						border[point] = true;
+						border[next] = true;
+					} else if (count > 2) {
+						locked[point] = true;
+						locked[next] = true;
+					}
+				}
+			}
+		}
+
+		private static int getCount(long[] sorted, int length, long value) {
+			int index = Arrays.binarySearch(sorted, 0, length, value);
+			int first = index;
+			while (first > 0 && sorted[first - 1] == value) {
+				first--;
+			}
+			int last = index;
+			while (last < length - 1 && sorted[last + 1] == value) {
+				last++;
+			}
+			return last - first + 1;
+		}
+
+		private long getEdge(int a, int b) {
+			return (long) Math.min(a, b) * marks.length + Math.max(a, b);
+		}
+
+		// Adds the squared distance from the plane with the normal through point on, multiplied by weight
+		private void addQuadric(int point, Vector3f normal, int on, double weight) {
+			if (!normal.isFinite()) {
+				return;
+			}
+			double[] plane = {normal.x, normal.y, normal.z,
+					-normal.dot(positions[3 * on], positions[3 * on + 1], positions[3 * on + 2])};
+			int k = QUADRIC_SIZE * point;
+			for (int i = 0; i < 4; i++) {
+				for (int j = i; j < 4; j++) {
+					quadrics[k++] += weight * plane[i] * plane[j];
+				}
+			}
+		}
+
+		int getPoint(int corner) {
+			return points[corners[corner]];
+		}
+
+		boolean isAlive(int triangle) {
+			return alive[triangle];
+		}
+
+		int getNumberOfTriangles() {
+			return aliveCount;
+		}
+
+		boolean isCurrent(Collapse collapse) {
+			return !removed[collapse.from] && !removed[collapse.to]
+					&& versions[collapse.from] == collapse.fromVersion && versions[collapse.to] == collapse.toVersion;
+		}
+
+		/**
+		 * Adds the collapses of the edge in either direction which move a point which is not locked
+		 */
+		void addCollapses(PriorityQueue<Collapse> collapses, int a, int b) {
+			if (!locked[a]) {
+				collapses.add(new Collapse(a, b, getError(a, b), versions[a], versions[b]));
+			}
+			if (!locked[b]) {
+				collapses.add(new Collapse(b, a, getError(b, a), versions[b], versions[a]));
+			}
+		}
+
+		// The error of the combined quadric of both points at the position of point to
+		private double getError(int from, int to) {
+			double x = positions[3 * to];
+			double y = positions[3 * to + 1];
+			double z = positions[3 * to + 2];
+			int f = QUADRIC_SIZE * from;
+			int t = QUADRIC_SIZE * to;
+			double[] q = quadrics;
+			return (q[f] + q[t]) * x * x + 2 * (q[f + 1] + q[t + 1]) * x * y + 2 * (q[f + 2] + q[t + 2]) * x * z
+					+ 2 * (q[f + 3] + q[t + 3]) * x
+					+ (q[f + 4] + q[t + 4]) * y * y + 2 * (q[f + 5] + q[t + 5]) * y * z + 2 * (q[f + 6] + q[t + 6]) * y
+					+ (q[f + 7] + q[t + 7]) * z * z + 2 * (q[f + 8] + q[t + 8]) * z
+					+ (q[f + 9] + q[t + 9]);
+		}
+
+		void collapse(Collapse collapse, PriorityQueue<Collapse> collapses) {
+			int from = collapse.from;
+			int to = collapse.to;
+			removeDeadTriangles(from);
+			removeDeadTriangles(to);
+			if (!canCollapse(from, to)) {
+				return;
+			}
+			// The vertices of point to, one of which replaces each vertex of point from
+			int numberOfCandidates = 0;
+			int[] candidates = new int[numberOfTriangles[to]];
+			for (int i = 0; i < numberOfTriangles[to]; i++) {
+				int t = triangles[to][i];
+				for (int c = 3 * t; c < 3 * t + 3; c++) {
+					if (getPoint(c) == to && indexOf(candidates, numberOfCandidates, corners[c]) < 0) {
+						candidates[numberOfCandidates++] = corners[c];
+					}
+				}
+			}
+			// Each vertex of point from which has been replaced, and the vertex which replaced it
+			int numberOfReplaced = 0;
+			int[] replaced = new int[numberOfTriangles[from]];
+			int[] replacements = new int[numberOfTriangles[from]];
+			for (int i = 0; i < numberOfTriangles[from]; i++) {
+				int t = triangles[from][i];
+				if (hasPoint(t, to)) {
+					alive[t] = false;
+					aliveCount--;
+					continue;
+				}
+				for (int c = 3 * t; c < 3 * t + 3; c++) {
+					if (getPoint(c) == from) {
+						int index = indexOf(replaced, numberOfReplaced, corners[c]);
+						if (index < 0) {
+							index = numberOfReplaced++;
+							replaced[index] = corners[c];
+							replacements[index] = getMostSimilar(corners[c], candidates, numberOfCandidates);
+						}
+						corners[c] = replacements[index];
+					}
+				}
+				addTriangle(to, t);
+			}
+			for (int i = 0; i < QUADRIC_SIZE; i++) {
+				quadrics[QUADRIC_SIZE * to + i] += quadrics[QUADRIC_SIZE * from + i];
+			}
+			removed[from] = true;
+			versions[to]++;
+			removeDeadTriangles(to);
+			for (int i = 0; i < numberOfTriangles[to]; i++) {
+				int t = triangles[to][i];
+				for (int c = 3 * t; c < 3 * t + 3; c++) {
+					if (getPoint(c) != to) {
+						addCollapses(collapses, getPoint(c), to);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Whether the collapse keeps the surface a manifold with the same borders: a point on a border is only moved
+		 * along it, the points share only the neighbours on the triangles of their edge, and no triangle is flipped
+		 */
+		private boolean canCollapse(int from, int to) {
+			int edgeTriangles = 0;
+			mark += 2;
+			for (int i = 0; i < numberOfTriangles[from]; i++) {
+				int t = triangles[from][i];
+				if (hasPoint(t, to)) {
+					edgeTriangles++;
+				}
+				for (int c = 3 * t; c < 3 * t + 3; c++) {
+					marks[getPoint(c)] = mark;
+				}
+			}
+			if (edgeTriangles == 0 || border[from] && edgeTriangles != 1) {
+				return false;
+			}
+			int shared = 0;
+			for (int i = 0; i < numberOfTriangles[to]; i++) {
+				int t = triangles[to][i];
+				for (int c = 3 * t; c < 3 * t + 3; c++) {
+					int point = getPoint(c);
+					if (point != from && point != to && marks[point] == mark) {
+						marks[point] = mark + 1;
+						shared++;
+					}
+				}
+			}
+			if (shared > edgeTriangles) {
+				return false;
+			}
+
+			Vector3f before = a;
+			Vector3f after = b;
+			for (int i = 0; i < numberOfTriangles[from]; i++) {
+				int t = triangles[from][i];
+				if (hasPoint(t, to)) {
+					continue;
+				}
+				int p0 = getPoint(3 * t);
+				int p1 = getPoint(3 * t + 1);
+				int p2 = getPoint(3 * t + 2);
+				getNormal(p0, p1, p2, before);
+				getNormal(p0 == from ? to : p0, p1 == from ? to : p1, p2 == from ? to : p2, after);
+				if (!(before.dot(after) > 0)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		// The candidate whose attributes other than its position are nearest to those of the vertex
+		private int getMostSimilar(int vertex, int[] candidates, int numberOfCandidates) {
+			boolean hasNormal = data.hasAttribute(VertexAttribute.NORMAL);
+			boolean hasTangent = data.hasAttribute(VertexAttribute.TANGENT);
+			boolean hasTexCoord = data.hasAttribute(VertexAttribute.TEXTURE);
+			int nearest = -1;
+			float nearestDistance = Float.MAX_VALUE;
+			for (int i = 0; i < numberOfCandidates; i++) {
+				int candidate = candidates[i];
+				float distance = 0;
+				if (hasNormal) {
+					distance += data.getNormal(vertex, a).distanceSquared(data.getNormal(candidate, b));
+				}
+				if (hasTangent) {
+					distance += data.getTangent(vertex, a).distanceSquared(data.getTangent(candidate, b));
+				}
+				if (hasTexCoord) {
+					distance += data.getTexCoord(vertex, texCoordA).distanceSquared(data.getTexCoord(candidate, texCoordB));
+				}
+				if (nearest < 0 || distance < nearestDistance) {
+					nearest = candidate;
+					nearestDistance = distance;
+				}
+			}
+			return nearest;
+		}
+
+		private static int indexOf(int[] array, int length, int value) {
+			for (int i = 0; i < length; i++) {
+				if (array[i] == value) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private boolean hasPoint(int triangle, int point) {
+			return getPoint(3 * triangle) == point || getPoint(3 * triangle + 1) == point
+					|| getPoint(3 * triangle + 2) == point;
+		}
+
+		private void addTriangle(int point, int triangle) {
+			if (triangles[point] == null) {
+				triangles[point] = new int[6];
+			} else if (numberOfTriangles[point] == triangles[point].length) {
+				triangles[point] = Arrays.copyOf(triangles[point], 2 * numberOfTriangles[point]);
+			}
+			triangles[point][numberOfTriangles[point]++] = triangle;
+		}
+
+		private void removeDeadTriangles(int point) {
+			int count = 0;
+			for (int i = 0; i < numberOfTriangles[point]; i++) {
+				if (alive[triangles[point][i]]) {
+					triangles[point][count++] = triangles[point][i];
+				}
+			}
+			numberOfTriangles[point] = count;
+		}
+
+		// Normal of the triangle scaled by twice its area
+		private Vector3f getNormal(int a, int b, int c, Vector3f dest) {
+			float ax = positions[3 * a];
+			float ay = positions[3 * a + 1];
+			float az = positions[3 * a + 2];
+			return dest.set(positions[3 * b] - ax, positions[3 * b + 1] - ay, positions[3 * b + 2] - az)
+					.cross(positions[3 * c] - ax, positions[3 * c + 1] - ay, positions[3 * c + 2] - az);
+		}
+	}
 }
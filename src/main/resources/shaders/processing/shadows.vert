@@ -6,12 +6,30 @@ layout (location = 2) in vec2 texCoord;
 uniform mat4 model;
 uniform mat4 lightVP;
 uniform bool isInstanced;
+// Each instance is a branch segment: the centre and radius then the orientation of the cross-section at each end
+uniform bool isSegment;
+// Each instance is a position, an orientation (split over the first two columns) and a scale
+uniform bool isRecord;
 
 out vec2 textureCoord;
 
+vec3 rotate(vec4 q, vec3 v) {
+    return v + 2.0 * cross(q.xyz, cross(q.xyz, v) + q.w * v);
+}
+
 void main() {
-    mat4 correctModel = isInstanced ? instanceModel : model;
-    vec4 worldPos = correctModel * vec4(pos, 1.0);
+    vec4 worldPos;
+    if (isSegment) {
+        vec4 section = pos.y < 0.5 ? instanceModel[0] : instanceModel[2];
+        vec4 orientation = pos.y < 0.5 ? instanceModel[1] : instanceModel[3];
+        worldPos = model * vec4(section.xyz + section.w * rotate(orientation, vec3(pos.x, 0.0, pos.z)), 1.0);
+    } else if (isRecord) {
+        vec4 orientation = vec4(instanceModel[0].w, instanceModel[1].xyz);
+        worldPos = model * vec4(instanceModel[0].xyz + instanceModel[1].w * rotate(orientation, pos), 1.0);
+    } else {
+        mat4 correctModel = isInstanced ? model * instanceModel : model;
+        worldPos = correctModel * vec4(pos, 1.0);
+    }
     textureCoord = texCoord;
     gl_Position = lightVP * worldPos;
 }
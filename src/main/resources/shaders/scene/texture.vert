@@ -14,15 +14,41 @@ uniform mat4 model;
 uniform mat4 view;
 uniform mat4 projection;
 uniform bool isInstanced;
+// Each instance is a branch segment: the centre and radius then the orientation of the cross-section at each end
+uniform bool isSegment;
+// Each instance is a position, an orientation (split over the first two columns) and a scale
+uniform bool isRecord;
+
+vec3 rotate(vec4 q, vec3 v) {
+    return v + 2.0 * cross(q.xyz, cross(q.xyz, v) + q.w * v);
+}
 
 void main()
 {
-    mat4 correctModel = isInstanced ? instanceModel : model;
-    worldPos = vec3(correctModel * vec4(pos, 1.0));
+    vec3 position = pos;
+    vec3 vertexNormal = norm;
+    vec3 vertexTangent = tang;
+    mat4 correctModel = model;
+    if (isSegment) {
+        // The segment mesh is a unit cylinder, with y = 0 at the start of the segment and y = 1 at its end
+        vec4 section = pos.y < 0.5 ? instanceModel[0] : instanceModel[2];
+        vec4 orientation = pos.y < 0.5 ? instanceModel[1] : instanceModel[3];
+        position = section.xyz + section.w * rotate(orientation, vec3(pos.x, 0.0, pos.z));
+        vertexNormal = rotate(orientation, norm);
+        vertexTangent = rotate(orientation, tang);
+    } else if (isRecord) {
+        vec4 orientation = vec4(instanceModel[0].w, instanceModel[1].xyz);
+        position = instanceModel[0].xyz + instanceModel[1].w * rotate(orientation, pos);
+        vertexNormal = rotate(orientation, norm);
+        vertexTangent = rotate(orientation, tang);
+    } else if (isInstanced) {
+        correctModel = model * instanceModel;
+    }
+    worldPos = vec3(correctModel * vec4(position, 1.0));
 
     mat3 normalMatrix = transpose(inverse(mat3(correctModel)));
-    vec3 T = normalize(normalMatrix * tang);
-    vec3 N = normalize(normalMatrix * norm);
+    vec3 T = normalize(normalMatrix * vertexTangent);
+    vec3 N = normalize(normalMatrix * vertexNormal);
     // re-orthogonalize T with respect to N
     T = normalize(T - dot(T, N) * N);
     vec3 B = cross(N, T);
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package generation;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import params.ParameterLoader;
+import params.Parameters;
+import params.RandomStreams;
+
+/**
+ * Measures one step of the {@link EcosystemSimulation} (seeding, collisions, deaths and growth) for populations of the
+ * given size, on one thread and in parallel. The terrain is widened so that the default densities give that many initial
+ * plants, and as the terrain width is read when the simulation class is loaded each size runs in its own fork. The
+ * simulation is run up to its first seeding step, which is measured from a snapshot restored before every invocation.
+ * Placing a million plants takes tens of minutes, so that size is only run when passed with -p plants=1000000.
+ * At 10k plants it also compares scoring every plant against population totals calculated once with a copy of the
+ * earlier scoring, which recalculated them for every score.
+ * Run with: mvn test-compile exec:java -Dexec.mainClass=generation.EcosystemBenchmark -Dexec.classpathScope=test
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class EcosystemBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class PerStepPopulation {
+		@Param({"10000", "100000"})
+		public int plants;
+
+		@Param({"true", "false"})
+		public boolean parallel;
+
+		private EcosystemSimulation simulation;
+		private Path snapshot;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			simulation = createSimulation(plants, parallel);
+			snapshot = Files.createTempFile("ecosystem", ".bin");
+			simulation.save(snapshot);
+		}
+
+		@Setup(Level.Invocation)
+		public void restore() {
+			simulation.load(snapshot);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			Files.deleteIfExists(snapshot);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Scoring {
+		// Recalculating the totals for every score takes minutes per step at larger sizes
+		@Param({"10000"})
+		public int plants;
+
+		private EcosystemSimulation simulation;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			simulation = createSimulation(plants, false);
+			seedingStep(simulation);
+		}
+	}
+
+	private static EcosystemSimulation createSimulation(int plants, boolean parallel) {
+		Parameters parameters = ParameterLoader.getParameters();
+		parameters.random.streams = new RandomStreams(0);
+		parameters.ecosystemSimulation.parallel = parallel;
+		float averageDensity = (float) parameters.sceneObjects.trees.stream()
+				.mapToDouble(tree -> tree.density)
+				.average()
+				.orElse(1);
+		parameters.terrain.width = (float) Math.sqrt(plants / (EcosystemSimulation.DEFAULT_TREE_DENSITY * averageDensity));
+		// The terrain is only needed to place the final trees
+		EcosystemSimulation simulation = new EcosystemSimulation(null);
+		for (int iteration = 1; iteration < parameters.ecosystemSimulation.yearLength; iteration++) {
+			simulation.step(iteration);
+		}
+		return simulation;
+	}
+
+	// The measured step is the first to seed, as most collisions are between seedlings and the plants around them
+	private static int seedingStep(EcosystemSimulation simulation) {
+		simulation.step(ParameterLoader.getParameters().ecosystemSimulation.yearLength);
+		return simulation.getPlantCount();
+	}
+
+	@Benchmark
+	public int step(PerStepPopulation state) {
+		return seedingStep(state.simulation);
+	}
+
+	/**
+	 * Scores every plant against population totals calculated once, as the simulation does for each step
+	 */
+	@Benchmark
+	public float scorePerStepPopulation(Scoring state) {
+		EcosystemSimulation simulation = state.simulation;
+		float[] totals = getPopulationTotals(simulation);
+		float sum = 0;
+		for (int plant = 0; plant < simulation.getPlantCount(); plant++) {
+			sum += getViability(simulation, plant, totals);
+		}
+		return sum;
+	}
+
+	/**
+	 * Scores every plant against population totals recalculated for each score, as the simulation did before the
+	 * totals were calculated once per step
+	 */
+	@Benchmark
+	public float scorePerScorePopulation(Scoring state) {
+		EcosystemSimulation simulation = state.simulation;
+		float sum = 0;
+		for (int plant = 0; plant < simulation.getPlantCount(); plant++) {
+			sum += getViability(simulation, plant, getPopulationTotals(simulation));
+		}
+		return sum;
+	}
+
+	/**
+	 * Copy of the simulation's population totals: the covered area of each type, then the total covered area and the
+	 * average, minimum and maximum canopy radius
+	 */
+	private static float[] getPopulationTotals(EcosystemSimulation simulation) {
+		int numTypes = ParameterLoader.getParameters().sceneObjects.trees.size();
+		float[] totals = new float[numTypes + 4];
+		float minRadius = Float.POSITIVE_INFINITY;
+		float maxRadius = 0;
+		double radiusSum = 0;
+		for (int plant = 0; plant < simulation.getPlantCount(); plant++) {
+			float r = simulation.getCanopyXZRadius(plant);
+			totals[simulation.getType(plant)] += (float) (Math.PI * r * r);
+			radiusSum += r;
+			minRadius = Math.min(minRadius, r);
+			maxRadius = Math.max(maxRadius, r);
+		}
+		for (int type = 0; type < numTypes; type++) {
+			totals[numTypes] += totals[type];
+		}
+		totals[numTypes + 1] = (float) (radiusSum / simulation.getPlantCount());
+		totals[numTypes + 2] = minRadius;
+		totals[numTypes + 3] = maxRadius;
+		return totals;
+	}
+
+	/**
+	 * Copy of the simulation's viability of a plant, relative to the population totals
+	 */
+	private static float getViability(EcosystemSimulation simulation, int plant, float[] totals) {
+		Parameters.EcosystemSimulation params = ParameterLoader.getParameters().ecosystemSimulation;
+		int numTypes = totals.length - 4;
+		int type = simulation.getType(plant);
+		float threshold = params.ageThreshold;
+		float x = Math.min((float) simulation.getAge(plant) /
+				ParameterLoader.getParameters().sceneObjects.trees.get(type).maxAge, 1);
+		float plantViability = x < threshold
+				? x / threshold
+				: (1 - x) / (1 - threshold);
+		float speciesWeightedViability = (1 - totals[type] / totals[numTypes]) * plantViability;
+		float minRadius = totals[numTypes + 2];
+		float maxRadius = totals[numTypes + 3];
+		float scaledAvgRadius = (totals[numTypes + 1] - minRadius) / (maxRadius - minRadius);
+		float scaledRadius = (simulation.getCanopyXZRadius(plant) - minRadius) / (maxRadius - minRadius);
+		float p = params.smallRadiusViability;
+		float m = params.averageRadiusViability;
+		float radiusViability = scaledRadius < scaledAvgRadius
+				? (m - p) / scaledAvgRadius * scaledRadius + p
+				: (1 - m) * (scaledRadius - scaledAvgRadius) / (1 - scaledAvgRadius) + m;
+		float rW = params.radiusWeight;
+		return radiusViability * rW + speciesWeightedViability * (1 - rW);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(EcosystemBenchmark.class.getSimpleName()).build()).run();
+	}
+}
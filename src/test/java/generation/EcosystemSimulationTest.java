@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package generation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import params.ParameterLoader;
+import params.RandomStreams;
+
+class EcosystemSimulationTest {
+
+	// Byte offsets of the plant count and the first plant's type in a saved simulation
+	private static final int COUNT_OFFSET = 4 * Integer.BYTES;
+	private static final int HEADER_SIZE = 5 * Integer.BYTES + Long.BYTES;
+
+	@TempDir
+	Path directory;
+
+	private static EcosystemSimulation create(long seed) {
+		ParameterLoader.getParameters().random.streams = new RandomStreams(seed);
+		return new EcosystemSimulation(null);
+	}
+
+	@Test
+	public void resumedSimulationMatchesUninterrupted() throws IOException {
+		Path halfway = directory.resolve("halfway.bin");
+		Path uninterrupted = directory.resolve("uninterrupted.bin");
+		Path reloaded = directory.resolve("reloaded.bin");
+		Path resumed = directory.resolve("resumed.bin");
+
+		EcosystemSimulation simulation = create(42);
+		for (int i = 1; i <= 10; i++) {
+			simulation.step(i);
+		}
+		simulation.save(halfway);
+		for (int i = 11; i <= 20; i++) {
+			simulation.step(i);
+		}
+		simulation.save(uninterrupted);
+
+		// A different global seed, as the saved random stream should replace it
+		EcosystemSimulation resumedSimulation = create(7);
+		assertTrue(resumedSimulation.load(halfway));
+		resumedSimulation.save(reloaded);
+		assertArrayEquals(Files.readAllBytes(halfway), Files.readAllBytes(reloaded));
+
+		for (int i = 11; i <= 20; i++) {
+			resumedSimulation.step(i);
+		}
+		resumedSimulation.save(resumed);
+		assertEquals(simulation.getPlantCount(), resumedSimulation.getPlantCount());
+		assertArrayEquals(Files.readAllBytes(uninterrupted), Files.readAllBytes(resumed));
+	}
+
+	@Test
+	public void parallelStepsMatchSequential() throws IOException {
+		Path sequential = directory.resolve("sequential.bin");
+		Path parallel = directory.resolve("parallel.bin");
+		// Two years, so seedlings are appended and removed
+		int iterations = 2 * ParameterLoader.getParameters().ecosystemSimulation.yearLength;
+		boolean wasParallel = ParameterLoader.getParameters().ecosystemSimulation.parallel;
+		try {
+			for (boolean isParallel : new boolean[]{false, true}) {
+				ParameterLoader.getParameters().ecosystemSimulation.parallel = isParallel;
+				EcosystemSimulation simulation = create(42);
+				for (int i = 1; i <= iterations; i++) {
+					simulation.step(i);
+				}
+				simulation.save(isParallel ? parallel : sequential);
+			}
+		} finally {
+			ParameterLoader.getParameters().ecosystemSimulation.parallel = wasParallel;
+		}
+		assertArrayEquals(Files.readAllBytes(sequential), Files.readAllBytes(parallel));
+	}
+
+	@Test
+	public void corruptSimulationsRejected() throws IOException {
+		Path saved = directory.resolve("saved.bin");
+		Path corrupt = directory.resolve("corrupt.bin");
+		EcosystemSimulation simulation = create(42);
+		simulation.save(saved);
+		byte[] bytes = Files.readAllBytes(saved);
+		int count = simulation.getPlantCount();
+		assertTrue(count > 0);
+
+		Files.write(corrupt, Arrays.copyOf(bytes, bytes.length - 1));
+		assertThrows(RuntimeException.class, () -> simulation.load(corrupt));
+
+		Files.write(corrupt, Arrays.copyOf(bytes, HEADER_SIZE - 1));
+		assertThrows(RuntimeException.class, () -> simulation.load(corrupt));
+
+		ByteBuffer tooMany = ByteBuffer.wrap(bytes.clone()).order(ByteOrder.nativeOrder());
+		tooMany.putInt(COUNT_OFFSET, count + 1);
+		Files.write(corrupt, tooMany.array());
+		assertThrows(RuntimeException.class, () -> simulation.load(corrupt));
+
+		ByteBuffer badType = ByteBuffer.wrap(bytes.clone()).order(ByteOrder.nativeOrder());
+		badType.putInt(HEADER_SIZE + count * Long.BYTES, ParameterLoader.getParameters().sceneObjects.trees.size());
+		Files.write(corrupt, badType.array());
+		assertThrows(RuntimeException.class, () -> simulation.load(corrupt));
+
+		// The plants are unchanged by the rejected files
+		assertEquals(count, simulation.getPlantCount());
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package generation;
+
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class SpatialGridTest {
+
+	@Test
+	public void nearIncludesOnlyAdjacentCells() {
+		// Cells of width 1 from -5 to 5
+		SpatialGrid grid = new SpatialGrid(10, 1);
+		grid.add(0, 0.5f, 0.5f);
+		grid.add(1, 1.5f, -0.5f);
+		grid.add(2, 2.5f, 0.5f);
+		grid.add(3, 0.5f, -1.5f);
+		assertArrayEquals(new int[]{0, 1}, grid.getNear(0.5f, 0.5f));
+		assertArrayEquals(new int[]{0, 1, 2}, grid.getNear(1.5f, 0.5f));
+		assertArrayEquals(new int[]{0, 1, 3}, grid.getNear(0.5f, -0.5f));
+		assertTrue(grid.anyNear(0.5f, 0.5f, i -> i == 1));
+		assertFalse(grid.anyNear(0.5f, 0.5f, i -> i == 2));
+	}
+
+	@Test
+	public void nearIsAscendingWhenCellsGrow() {
+		SpatialGrid grid = new SpatialGrid(10, 1);
+		int[] indices = {17, 3, 12, 0, 8, 19, 5, 14, 1, 10, 6, 15, 2, 11, 18, 4, 9, 13, 7, 16};
+		for (int i = 0; i < indices.length; i++) {
+			// Spread over two neighbouring cells
+			grid.add(indices[i], i % 2 == 0 ? 0.5f : 1.5f, 0.5f);
+		}
+		assertArrayEquals(IntStream.range(0, indices.length).toArray(), grid.getNear(1, 0.5f));
+	}
+
+	@Test
+	public void edgesAndOutOfRangeUseEdgeCells() {
+		SpatialGrid grid = new SpatialGrid(10, 1);
+		grid.add(0, -5, -5);
+		grid.add(1, 4.99f, 4.99f);
+		// Outside the square, so kept in the edge cells
+		grid.add(2, -100, 0.5f);
+		grid.add(3, 5, 100);
+		grid.add(4, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+
+		assertArrayEquals(new int[]{0}, grid.getNear(-5, -5));
+		assertArrayEquals(new int[]{0}, grid.getNear(-1000, -1000));
+		assertArrayEquals(new int[]{1, 3}, grid.getNear(5, 5));
+		assertArrayEquals(new int[]{1, 3}, grid.getNear(1000, 1000));
+		assertArrayEquals(new int[]{2}, grid.getNear(-5, 0));
+		assertArrayEquals(new int[]{4}, grid.getNear(-1000, 1000));
+		assertArrayEquals(new int[]{}, grid.getNear(0, 0));
+
+		assertTrue(grid.anyNear(1000, 1000, i -> i == 3));
+		assertTrue(grid.anyNear(-100, 0.5f, i -> i == 2));
+		assertFalse(grid.anyNear(-1000, -1000, i -> i != 0));
+		assertFalse(grid.anyNear(0, 0, i -> true));
+	}
+
+	@Test
+	public void cellSizesOutsideWidthAreLimited() {
+		// A single cell, so everything is near
+		SpatialGrid coarse = new SpatialGrid(10, 20);
+		coarse.add(0, -5, -5);
+		coarse.add(1, 5, 5);
+		assertArrayEquals(new int[]{0, 1}, coarse.getNear(-5, 5));
+
+		// Limited to 1024 cells across, each of width 1
+		SpatialGrid fine = new SpatialGrid(1024, 0.001f);
+		fine.add(0, 0.5f, 0.5f);
+		fine.add(1, 2.5f, 0.5f);
+		assertArrayEquals(new int[]{0}, fine.getNear(-0.5f, 0.5f));
+		assertArrayEquals(new int[]{0, 1}, fine.getNear(1.5f, 0.5f));
+	}
+}
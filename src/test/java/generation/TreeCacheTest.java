@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package generation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import modeldata.meshdata.MeshData;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import params.ParameterLoader;
+import params.Parameters;
+import sceneobjects.Tree;
+
+class TreeCacheTest {
+
+	private static final Parameters parameters = ParameterLoader.getParameters();
+	private static final int ITERATIONS = 4;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void savedTreesLoadUnchanged() {
+		TreeCache cache = new TreeCache(directory.toString());
+		// Default parameters: tree type 0 is a branching tree and type 1 is a monopodial tree
+		for (int type = 0; type < 2; type++) {
+			Tree.Geometry geometry = Tree.generate(type, ITERATIONS, new Random(type));
+			String key = cache.getKey(parameters.sceneObjects.trees.get(type), ITERATIONS, 0, type);
+			assertFalse(cache.load(key).isPresent());
+			cache.save(key, geometry);
+			Optional<Tree.Geometry> loaded = cache.load(key);
+			assertTrue(loaded.isPresent());
+			assertGeometryEquals(geometry, loaded.get());
+		}
+	}
+
+	@Test
+	public void keysDependOnEveryInput() {
+		TreeCache cache = new TreeCache(directory.toString());
+		Parameters.SceneObjects.Tree params = parameters.sceneObjects.trees.get(0);
+		String key = cache.getKey(params, ITERATIONS, 0, 0);
+		assertEquals(key, cache.getKey(params, ITERATIONS, 0, 0));
+		assertNotEquals(key, cache.getKey(parameters.sceneObjects.trees.get(1), ITERATIONS, 0, 0));
+		assertNotEquals(key, cache.getKey(params, ITERATIONS + 1, 0, 0));
+		assertNotEquals(key, cache.getKey(params, ITERATIONS, 1, 0));
+		assertNotEquals(key, cache.getKey(params, ITERATIONS, 0, 1));
+	}
+
+	@Test
+	public void unreadableTreesIgnored() throws IOException {
+		TreeCache cache = new TreeCache(directory.toString());
+		String key = cache.getKey(parameters.sceneObjects.trees.get(0), ITERATIONS, 0, 0);
+		cache.save(key, Tree.generate(0, ITERATIONS, new Random(0)));
+		byte[] bytes = Files.readAllBytes(directory.resolve(key));
+
+		// Another version
+		ByteBuffer version = ByteBuffer.wrap(bytes.clone()).order(ByteOrder.nativeOrder());
+		version.putInt(Integer.BYTES, version.getInt(Integer.BYTES) + 1);
+		Files.write(directory.resolve(key), version.array());
+		assertFalse(cache.load(key).isPresent());
+
+		// Incomplete
+		Files.write(directory.resolve(key), Arrays.copyOf(bytes, bytes.length / 2));
+		assertFalse(cache.load(key).isPresent());
+	}
+
+	private static void assertGeometryEquals(Tree.Geometry expected, Tree.Geometry actual) {
+		assertEquals(expected.getTypeIndex(), actual.getTypeIndex());
+		assertEquals(expected.getNumIterations(), actual.getNumIterations());
+		assertMeshEquals(expected.getBranches(), actual.getBranches());
+		assertEquals(expected.getDecimatedBranches().size(), actual.getDecimatedBranches().size());
+		for (int i = 0; i < expected.getDecimatedBranches().size(); i++) {
+			assertMeshEquals(expected.getDecimatedBranches().get(i), actual.getDecimatedBranches().get(i));
+		}
+		assertMeshEquals(expected.getLeafModel(), actual.getLeafModel());
+		assertArrayEquals(expected.getLeaves(), actual.getLeaves());
+		assertMeshEquals(expected.getBoard(), actual.getBoard());
+		assertMeshEquals(expected.getLowLODLeafModel(), actual.getLowLODLeafModel());
+		assertArrayEquals(expected.getLowLODLeaves(), actual.getLowLODLeaves());
+		assertArrayEquals(expected.getSegments(), actual.getSegments());
+		Tree.Mask expectedMask = expected.getMask();
+		Tree.Mask actualMask = actual.getMask();
+		assertEquals(expectedMask.getCanopyXZRadius(), actualMask.getCanopyXZRadius());
+		assertEquals(expectedMask.getCanopyYRadius(), actualMask.getCanopyYRadius());
+		assertEquals(expectedMask.getTrunkRadius(), actualMask.getTrunkRadius());
+		assertEquals(expectedMask.getCanopyCentre(), actualMask.getCanopyCentre());
+	}
+
+	private static void assertMeshEquals(MeshData expected, MeshData actual) {
+		assertArrayEquals(serialize(expected), serialize(actual));
+	}
+
+	private static byte[] serialize(MeshData data) {
+		ByteBuffer buffer = ByteBuffer.allocate(data.getSerializedSize()).order(ByteOrder.nativeOrder());
+		data.write(buffer);
+		return buffer.array();
+	}
+}
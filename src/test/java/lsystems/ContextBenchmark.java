@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package lsystems;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static lsystems.modules.DefinedModules.LB;
+import static lsystems.modules.DefinedModules.RB;
+
+import lsystems.modules.CharModule;
+import lsystems.modules.Module;
+import lsystems.modules.ParametricExpressionModule;
+import lsystems.modules.ParametricParameterModule;
+import lsystems.modules.ParametricValueModule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Derives the grammar of figure 2.8 from The Algorithmic Beauty of Plants (see LSystemTest.canHandleABoP_2_8) to
+ * large strings, with the growth of the internodes made context-sensitive to measure context matching.
+ * The string grows threefold each iteration (about 470,000 modules after 10).
+ * Run with: mvn test-compile exec:java -Dexec.mainClass=lsystems.ContextBenchmark -Dexec.classpathScope=test
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ContextBenchmark {
+
+	// none: the original grammar, left: F(l) grows only after !(w), right: !(w) widens only before F(l)
+	@Param({"none", "left", "right"})
+	public String context;
+
+	@Param({"false", "true"})
+	public boolean bracketed;
+
+	@Param({"8", "10"})
+	public int iterations;
+
+	private LSystem lSystem;
+
+	@Setup(Level.Invocation)
+	public void setUp() {
+		lSystem = abop28(context);
+		lSystem.setBracketedContext(bracketed);
+	}
+
+	@Benchmark
+	public CompactState derive() {
+		return lSystem.performCompactDerivations(iterations);
+	}
+
+	static LSystem abop28(String context) {
+		float d1 = 94.74f;
+		float d2 = 132.63f;
+		float a = 18.95f;
+		float lr = 1.109f;
+		float vr = 1.732f;
+
+		CharModule A = new CharModule('A');
+		ParametricParameterModule ExIn = new ParametricParameterModule('!', List.of("w"));
+		Module ExOut = ParametricExpressionModule.compiled('!', List.of("w"), 1, (args, out) -> out[0] = args[0] * vr);
+		ParametricParameterModule FIn = new ParametricParameterModule('F', List.of("l"));
+		Module FOut = ParametricExpressionModule.compiled('F', List.of("l"), 1, (args, out) -> out[0] = args[0] * lr);
+
+		List<Production> productions = new ArrayList<>();
+		productions.add(new ProductionBuilder(List.of(A), List.of(
+				new ParametricValueModule('!', vr),
+				new ParametricValueModule('F', 50f),
+				LB,
+				new ParametricValueModule('&', a),
+				new ParametricValueModule('F', 50f),
+				A,
+				RB,
+				new ParametricValueModule('/', d1),
+				LB,
+				new ParametricValueModule('&', a),
+				new ParametricValueModule('F', 50f),
+				A,
+				RB,
+				new ParametricValueModule('/', d2),
+				new ParametricValueModule('&', a),
+				new ParametricValueModule('F', 50f),
+				A
+		)).build());
+		ProductionBuilder F = new ProductionBuilder(List.of(FIn), List.of(FOut));
+		ProductionBuilder Ex = new ProductionBuilder(List.of(ExIn), List.of(ExOut));
+		if (context.equals("left")) {
+			F.withLeftContext(List.of(ExIn));
+		} else if (context.equals("right")) {
+			Ex.withRightContext(List.of(FIn));
+		}
+		productions.add(F.build());
+		productions.add(Ex.build());
+
+		return new LSystem(
+				List.of(
+						new ParametricValueModule('!', 1f),
+						new ParametricValueModule('F', 200f),
+						new ParametricValueModule('/', 45f),
+						A
+				),
+				List.of(new ParametricValueModule('/', 0f), new ParametricValueModule('&', 0f)),
+				productions,
+				0L);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(ContextBenchmark.class.getSimpleName()).build()).run();
+	}
+}
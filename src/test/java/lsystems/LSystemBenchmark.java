@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package lsystems;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import generation.TreeLSystems;
+import lsystems.modules.Module;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares derivation of the tree grammars in {@link TreeLSystems} with and without the production index.
+ * Run with: mvn test-compile exec:java -Dexec.mainClass=lsystems.LSystemBenchmark -Dexec.classpathScope=test
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class LSystemBenchmark {
+
+	@Param({"branching", "monopodial"})
+	public String grammar;
+
+	@Param({"8"})
+	public int iterations;
+
+	@Param({"true", "false"})
+	public boolean indexed;
+
+	private LSystem lSystem;
+
+	@Setup(Level.Invocation)
+	public void setUp() {
+		// Default parameters: tree type 0 is a branching tree and type 1 is a monopodial tree
+		lSystem = grammar.equals("branching") ? TreeLSystems.branching(0, new Random(0)) : TreeLSystems.monopodial(1, new Random(0));
+		lSystem.setIndexed(indexed);
+	}
+
+	@Benchmark
+	public List<Module> derive() {
+		return lSystem.performDerivations(iterations);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(LSystemBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -22,6 +22,9 @@
 package lsystems;
 
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
 
 import static lsystems.modules.DefinedModules.F;
 import static lsystems.modules.DefinedModules.LB;
@@ -29,12 +32,18 @@ import static lsystems.modules.DefinedModules.MI;
 import static lsystems.modules.DefinedModules.PL;
 import static lsystems.modules.DefinedModules.RB;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import generation.TreeLSystems;
+import lsystems.modules.AxiomaticModule;
 import lsystems.modules.CharModule;
 import lsystems.modules.Module;
 import lsystems.modules.ParametricExpressionModule;
 import lsystems.modules.ParametricParameterModule;
 import lsystems.modules.ParametricValueModule;
+import lsystems.modules.PredecessorModule;
 import org.junit.jupiter.api.Test;
 
 class LSystemTest {
@@ -291,4 +300,265 @@ class LSystemTest {
 		assertEquals("B+BB-BB+BB", ls.performDerivationStep());
 
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void bracketedContext() {
+		// Example from The Algorithmic Beauty of Plants, section 1.8
+		List<PredecessorModule> left = List.of(new CharModule('B'), new CharModule('C'));
+		List<PredecessorModule> right = List.of(new CharModule('G'), LB, new CharModule('H'), RB, new CharModule('M'));
+		List<Production> productions = List.of(new ProductionBuilder(List.of(new CharModule('S')), List.of(new CharModule('X')))
+				.withLeftContext(left)
+				.withRightContext(right)
+				.build());
+		List<AxiomaticModule> axiom = "ABC[DE][SG[HI[JK]L]MNO]".chars()
+				.mapToObj(c -> new CharModule((char) c))
+				.collect(Collectors.toList());
+
+		LSystem bracketed = new LSystem(axiom, List.of(), productions);
+		bracketed.setBracketedContext(true);
+		assertEquals("ABC[DE][XG[HI[JK]L]MNO]", bracketed.performDerivationStep());
+		LSystem compact = new LSystem(axiom, List.of(), productions);
+		compact.setBracketedContext(true);
+		compact.performCompactDerivations(1);
+		assertEquals("ABC[DE][XG[HI[JK]L]MNO]", compact.getStateSting());
+
+		LSystem unbracketed = new LSystem(axiom, List.of(), productions);
+		assertEquals("ABC[DE][SG[HI[JK]L]MNO]", unbracketed.performDerivationStep());
+	}
+
+	@Test
+	public void longestPredecessorMatchedFirst() {
+		CharModule A = new CharModule('A');
+		CharModule B = new CharModule('B');
+		CharModule C = new CharModule('C');
+		LSystem ls = new LSystem(
+				List.of(A, B, A, C, A),
+				List.of(),
+				List.of(new ProductionBuilder(
+								List.of(A),
+								List.of(C)
+						).build(),
+						new ProductionBuilder(
+								List.of(A, B),
+								List.of(B)
+						).build(),
+						new ProductionBuilder(
+								List.of(new ParametricParameterModule('A', List.of("x"))),
+								List.of(B)
+						).build()
+				));
+		assertEquals("ABACA", ls.getStateSting());
+		assertEquals("BCCC", ls.performDerivationStep());
+		assertEquals("BCCC", ls.performDerivationStep());
+	}
+
+	@Test
+	public void compactDerivationMatchesModuleList() {
+		ParametricParameterModule Ain = new ParametricParameterModule('A', List.of("x", "y"));
+		Module Aout1 = new ParametricExpressionModule('A', List.of("x", "y"),
+				vars -> List.of(vars.get("x") * 2, vars.get("x") + vars.get("y")));
+		Module Aout2 = new ParametricExpressionModule('B', List.of("x"),
+				vars -> List.of(vars.get("x")));
+		ParametricParameterModule Bin = new ParametricParameterModule('B', List.of("x"));
+		Module Bout = new ParametricExpressionModule('B', List.of("x"), vars -> List.of(vars.get("x") - 1));
+		List<Production> productions = List.of(
+				new ProductionBuilder(List.of(Bin), List.of(Bout, LB, F, RB)).build(),
+				new ProductionBuilder(List.of(Ain), List.of(Aout1, Aout2)).build(),
+				new ProductionBuilder(List.of(F), List.of(F, F)).withLeftContext(List.of(LB)).build());
+		List<AxiomaticModule> axiom = List.of(
+				new ParametricValueModule('B', 2f),
+				new ParametricValueModule('A', 4f, 2f));
+
+		LSystem ls = new LSystem(axiom, List.of(), productions);
+		LSystem compact = new LSystem(axiom, List.of(), productions);
+		ls.performDerivations(5);
+		CompactState state = compact.performCompactDerivations(5);
+		assertEquals(ls.getStateSting(), compact.getStateSting());
+
+		StringBuilder viewed = new StringBuilder();
+		state.view().forEach(viewed::append);
+		assertEquals(ls.getStateSting(), viewed.toString());
+	}
+
+	@Test
+	public void parallelDerivationMatchesSequential() {
+		CharModule A = new CharModule('A');
+		ParametricParameterModule Bin = new ParametricParameterModule('B', List.of("x"));
+		Module Bout = new ParametricExpressionModule('B', List.of("x"),
+				vars -> List.of(vars.get("x") + DerivationRandom.currentOr(null).nextFloat()));
+		List<Production> productions = List.of(
+				new ProductionBuilder(List.of(A), List.of(A, A)).withProbability(0.5f).build(),
+				new ProductionBuilder(List.of(A), List.of(A, new ParametricValueModule('B', 0f), A))
+						.withProbability(0.5f).build(),
+				new ProductionBuilder(List.of(Bin), List.of(Bout)).build());
+
+		LSystem sequential = new LSystem(List.of(A), List.of(), productions, 42L);
+		LSystem parallel = new LSystem(List.of(A), List.of(), productions, 42L);
+		LSystem parallelCompact = new LSystem(List.of(A), List.of(), productions, 42L);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		parallel.setParallel(pool);
+		parallelCompact.setParallel(pool);
+
+		sequential.performDerivations(14);
+		parallel.performDerivations(14);
+		parallelCompact.performCompactDerivations(14);
+		pool.shutdown();
+
+		assertTrue(sequential.getState().size() > 2 * LSystem.PARALLEL_CHUNK_SIZE);
+		assertEquals(sequential.getStateSting(), parallel.getStateSting());
+		assertEquals(sequential.getStateSting(), parallelCompact.getStateSting());
+	}
+
+	@Test
+	public void streamedDerivationMatchesFullDerivation() {
+		CharModule A = new CharModule('A');
+		ParametricParameterModule Bin = new ParametricParameterModule('B', List.of("x"));
+		Module Bout = new ParametricExpressionModule('B', List.of("x"),
+				vars -> List.of(vars.get("x") + DerivationRandom.currentOr(null).nextFloat()));
+		List<Production> productions = List.of(
+				new ProductionBuilder(List.of(A), List.of(A, LB, A, RB)).withProbability(0.5f).build(),
+				new ProductionBuilder(List.of(A), List.of(A, new ParametricValueModule('B', 0f), A))
+						.withProbability(0.5f).build(),
+				new ProductionBuilder(List.of(Bin), List.of(Bout)).build());
+
+		LSystem full = new LSystem(List.of(A), List.of(), productions, 7L);
+		LSystem streamed = new LSystem(List.of(A), List.of(), productions, 7L);
+		DerivationStream stream = streamed.streamDerivations(9);
+
+		full.performDerivations(9);
+		StringBuilder streamedString = new StringBuilder();
+		stream.forEach(module -> streamedString.append(module.toString()));
+		assertEquals(full.getStateSting(), streamedString.toString());
+		// Iterating again derives the same modules, and streaming does not change the state
+		StringBuilder again = new StringBuilder();
+		stream.forEach(module -> again.append(module.toString()));
+		assertEquals(streamedString.toString(), again.toString());
+		assertEquals("A", streamed.getStateSting());
+
+		StringBuilder substituted = new StringBuilder();
+		stream.substitute('A', new ParametricValueModule('~', 0f)).forEach(module -> substituted.append(module.toString()));
+		assertEquals(full.getStateSting().replace("A", "~(0.0)"), substituted.toString());
+	}
+
+	@Test
+	public void stochasticSelectionIsReproducible() {
+		CharModule A = new CharModule('A');
+		List<Production> productions = List.of(
+				new ProductionBuilder(List.of(A), List.of(A, new CharModule('B'), A)).withProbability(0.2f).build(),
+				new ProductionBuilder(List.of(A), List.of(A, new CharModule('C'), A)).withProbability(0.3f).build(),
+				new ProductionBuilder(List.of(A), List.of(A, new CharModule('D'), A)).withProbability(0.5f).build());
+
+		String derived = new LSystem(List.of(A), List.of(), productions, 11L).performDerivations(12).stream()
+				.map(Object::toString).collect(Collectors.joining());
+		assertEquals(derived, new LSystem(List.of(A), List.of(), productions, 11L).performDerivations(12).stream()
+				.map(Object::toString).collect(Collectors.joining()));
+		LSystem compact = new LSystem(List.of(A), List.of(), productions, 11L);
+		compact.performCompactDerivations(12);
+		assertEquals(derived, compact.getStateSting());
+		assertFalse(derived.equals(new LSystem(List.of(A), List.of(), productions, 12L).performDerivations(12).stream()
+				.map(Object::toString).collect(Collectors.joining())));
+
+		// 4095 choices, so each count is within 4 standard deviations of its expectation
+		long b = derived.chars().filter(c -> c == 'B').count();
+		long c = derived.chars().filter(ch -> ch == 'C').count();
+		long d = derived.chars().filter(ch -> ch == 'D').count();
+		assertEquals(4095, b + c + d);
+		assertTrue(Math.abs(b - 819) < 104);
+		assertTrue(Math.abs(c - 1228) < 118);
+		assertTrue(Math.abs(d - 2047) < 128);
+
+		// The same tree grammar is built and derived for the same seed
+		String tree = TreeLSystems.branching(0, new Random(5L)).performCompactDerivations(6).stream()
+				.map(Object::toString).collect(Collectors.joining());
+		assertEquals(tree, TreeLSystems.branching(0, new Random(5L)).performCompactDerivations(6).stream()
+				.map(Object::toString).collect(Collectors.joining()));
+	}
+
+	@Test
+	public void probabilitiesValidatedOnConstruction() {
+		CharModule A = new CharModule('A');
+		List<Production> productions = List.of(
+				new ProductionBuilder(List.of(A), List.of(A, A)).withProbability(0.6f).build(),
+				new ProductionBuilder(List.of(A), List.of(A)).withProbability(0.6f).build());
+		assertThrows(RuntimeException.class, () -> new LSystem(List.of(A), List.of(), productions, 0L));
+
+		// Grammars such as those in TreeLSystems construct a new module for each predecessor
+		List<Production> separatePredecessors = List.of(
+				new ProductionBuilder(List.of(new CharModule('A')), List.of(A, A)).withProbability(0.6f).build(),
+				new ProductionBuilder(List.of(new CharModule('A')), List.of(A)).withProbability(0.6f).build());
+		assertThrows(RuntimeException.class, () -> new LSystem(List.of(A), List.of(), separatePredecessors, 0L));
+	}
+
+	@Test
+	public void compiledProductionsMatchMapBased() {
+		ParametricParameterModule Ain = new ParametricParameterModule('A', List.of("x", "y"));
+		List<Production> mapBased = List.of(
+				new ProductionBuilder(List.of(Ain), List.of(
+						new ParametricExpressionModule('A', List.of("x", "y"),
+								vars -> List.of(vars.get("x") * 2, vars.get("x") + vars.get("y"))),
+						new ParametricExpressionModule('B', List.of("y"), vars -> List.of(vars.get("y")))))
+						.withCondition(vars -> vars.get("x") < 100).build());
+		List<Production> compiled = List.of(
+				new ProductionBuilder(List.of(Ain), List.of(
+						ParametricExpressionModule.compiled('A', List.of("x", "y"), 2, (args, out) -> {
+							out[0] = args[0] * 2;
+							out[1] = args[0] + args[1];
+						}),
+						ParametricExpressionModule.compiled('B', List.of("y"), 1, (args, out) -> out[0] = args[0])))
+						.withCondition(List.of("x"), args -> args[0] < 100).build());
+		List<AxiomaticModule> axiom = List.of(new ParametricValueModule('A', 4f, 2f));
+
+		LSystem expected = new LSystem(axiom, List.of(), mapBased);
+		LSystem list = new LSystem(axiom, List.of(), compiled);
+		LSystem compact = new LSystem(axiom, List.of(), compiled);
+		expected.performDerivations(8);
+		list.performDerivations(8);
+		compact.performCompactDerivations(8);
+		assertEquals("A(128.0,126.0)B(62.0)B(30.0)B(14.0)B(6.0)B(2.0)", expected.getStateSting());
+		assertEquals(expected.getStateSting(), list.getStateSting());
+		assertEquals(expected.getStateSting(), compact.getStateSting());
+	}
+
+	@Test
+	public void compiledGrammarMatchesInterpreted() {
+		ParametricParameterModule Ain = new ParametricParameterModule('A', List.of("x"));
+		Module Aout = ParametricExpressionModule.compiled('A', List.of("x"), 1, (args, out) -> out[0] = args[0] + 1);
+		List<Production> productions = List.of(
+				new ProductionBuilder(List.of(Ain), List.of(Aout, new CharModule('B')))
+						.withCondition(List.of("x"), args -> args[0] < 3).withProbability(0.5f).build(),
+				new ProductionBuilder(List.of(Ain), List.of(Aout, LB, new ParametricValueModule('C', 1f), RB, Aout))
+						.withProbability(0.5f).build(),
+				new ProductionBuilder(List.of(Ain), List.of(
+						new ParametricExpressionModule('D', List.of("x"), vars -> List.of(vars.get("x") * 2))))
+						.withCondition(vars -> vars.get("x") >= 3).withProbability(0.5f).build(),
+				new ProductionBuilder(List.of(new CharModule('B')), List.of(F, new CharModule('B'))).build());
+		List<AxiomaticModule> axiom = List.of(new ParametricValueModule('A', 0f));
+
+		LSystem interpreted = new LSystem(axiom, List.of(), productions, 9L);
+		LSystem compiled = new LSystem(axiom, List.of(), productions, 9L);
+		assertTrue(compiled.compile());
+		interpreted.performCompactDerivations(7);
+		compiled.performCompactDerivations(7);
+		assertEquals(interpreted.getStateSting(), compiled.getStateSting());
+
+		LSystem compiledStream = new LSystem(axiom, List.of(), productions, 9L);
+		compiledStream.compile();
+		StringBuilder streamed = new StringBuilder();
+		compiledStream.streamDerivations(7).forEach(module -> streamed.append(module.toString()));
+		assertEquals(interpreted.getStateSting(), streamed.toString());
+
+		for (int type = 0; type < 2; type++) {
+			LSystem tree = type == 0 ? TreeLSystems.branching(0, new Random(5L)) : TreeLSystems.monopodial(1, new Random(5L));
+			LSystem compiledTree = type == 0 ? TreeLSystems.branching(0, new Random(5L)) : TreeLSystems.monopodial(1, new Random(5L));
+			assertTrue(compiledTree.compile());
+			assertEquals(tree.performCompactDerivations(6).stream().map(Object::toString).collect(Collectors.joining()),
+					compiledTree.performCompactDerivations(6).stream().map(Object::toString).collect(Collectors.joining()));
+		}
+
+		// Context-sensitive grammars are interpreted
+		CharModule A = new CharModule('A');
+		LSystem context = new LSystem(List.of(A), List.of(), List.of(
+				new ProductionBuilder(List.of(A), List.of(A, A)).withLeftContext(List.of(A)).build()));
+		assertFalse(context.compile());
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package modeldata;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import modeldata.meshdata.MeshData;
+import modeldata.meshdata.MeshFile;
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import params.ParameterLoader;
+import params.Parameters;
+
+/**
+ * Compares loading the default external model with Assimp against loading it from a {@link MeshFile}. Both read every
+ * position so that the pages of the mapped file are included.
+ * Run with: mvn test-compile exec:java -Dexec.mainClass=modeldata.MeshFileBenchmark -Dexec.classpathScope=test
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class MeshFileBenchmark {
+
+	private String modelPath;
+	private Path meshFilePath;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		Parameters parameters = ParameterLoader.getParameters();
+		modelPath = new File(parameters.resourcesRoot + parameters.sceneObjects.externalModels.get(0).modelPath)
+				.getAbsolutePath();
+		meshFilePath = Files.createTempFile("model", MeshFile.EXTENSION);
+		MeshFile.write(meshFilePath, LoadedModel.importMeshes(modelPath, LoadedModel.DEFAULT_FLAGS));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(meshFilePath);
+	}
+
+	@Benchmark
+	public float importModel() {
+		return sumPositions(LoadedModel.importMeshes(modelPath, LoadedModel.DEFAULT_FLAGS));
+	}
+
+	@Benchmark
+	public float mapMeshFile() {
+		return sumPositions(MeshFile.read(meshFilePath));
+	}
+
+	private static float sumPositions(List<MeshFile.Entry> entries) {
+		float sum = 0;
+		Vector3f position = new Vector3f();
+		for (MeshFile.Entry entry : entries) {
+			MeshData data = entry.getData();
+			for (int i = 0; i < data.getNumberOfVertices(); i++) {
+				sum += data.getPosition(i, position).x;
+			}
+		}
+		return sum;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(MeshFileBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2021 Callum Newlands
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The additional term of 7.b applies: Requiring preservation of specified
+ *     reasonable legal notices or author attributions in that material or in the
+ *     Appropriate Legal Notices displayed by works containing it
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package utils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import modeldata.meshdata.MeshBuilder;
+import modeldata.meshdata.MeshData;
+import modeldata.meshdata.VertexAttribute;
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+import org.junit.jupiter.api.Test;
+
+class MeshUtilsTest {
+
+	private static final List<VertexAttribute> ATTRIBUTES =
+			List.of(VertexAttribute.POSITION, VertexAttribute.NORMAL, VertexAttribute.TEXTURE);
+
+	@Test
+	public void decimatedPlaneKeepsItsOutline() {
+		MeshData plane = createPlane(16);
+		MeshData decimated = MeshUtils.decimate(plane, 0.25f);
+		assertTrue(getNumberOfTriangles(decimated) <= Math.ceil(getNumberOfTriangles(plane) * 0.25f));
+		assertValid(decimated);
+		assertVerticesFrom(plane, decimated);
+
+		// Flat, with the corners and the border in place
+		Vector3f position = new Vector3f();
+		Set<Vector3f> corners = new HashSet<>();
+		for (int i = 0; i < decimated.getNumberOfVertices(); i++) {
+			decimated.getPosition(i, position);
+			assertEquals(0, position.y);
+			if (Math.abs(position.x) == 1 && Math.abs(position.z) == 1) {
+				corners.add(new Vector3f(position));
+			}
+		}
+		assertEquals(4, corners.size());
+		assertEquals(4, getArea(decimated), 1e-4);
+	}
+
+	@Test
+	public void decimatedSphereStaysClosed() {
+		// Texture seams and poles are separate vertices at the same positions
+		MeshData sphere = createSphere(16, 32);
+		assertClosed(sphere);
+		MeshData decimated = MeshUtils.decimate(sphere, 0.2f);
+		assertTrue(getNumberOfTriangles(decimated) <= Math.ceil(getNumberOfTriangles(sphere) * 0.2f));
+		assertTrue(getNumberOfTriangles(decimated) > 0);
+		assertValid(decimated);
+		assertVerticesFrom(sphere, decimated);
+		assertClosed(decimated);
+	}
+
+	@Test
+	public void chainDecreasesUntilLevels() {
+		MeshData sphere = createSphere(16, 32);
+		List<MeshData> chain = MeshUtils.decimate(sphere, 0.5f, 3);
+		assertEquals(3, chain.size());
+		MeshData previous = sphere;
+		for (MeshData decimated : chain) {
+			assertTrue(getNumberOfTriangles(decimated) <= Math.ceil(getNumberOfTriangles(previous) * 0.5f));
+			assertValid(decimated);
+			previous = decimated;
+		}
+
+		// A single triangle cannot be simplified, so the chain ends
+		MeshBuilder builder = new MeshBuilder(ATTRIBUTES, 3, 3);
+		builder.vertex().position(0, 0, 0);
+		builder.vertex().position(1, 0, 0);
+		builder.vertex().position(0, 0, 1);
+		builder.triangle(0, 1, 2);
+		assertTrue(MeshUtils.decimate(builder.build(), 0.5f, 3).isEmpty());
+	}
+
+	@Test
+	public void ratioOfOneKeepsEveryTriangle() {
+		MeshData sphere = createSphere(8, 16);
+		MeshData decimated = MeshUtils.decimate(sphere, 1);
+		assertEquals(getNumberOfTriangles(sphere), getNumberOfTriangles(decimated));
+		assertValid(decimated);
+	}
+
+	/**
+	 * A square from -1 to 1 in x and z, divided into a grid of the given number of squares across
+	 */
+	private static MeshData createPlane(int squares) {
+		int across = squares + 1;
+		MeshBuilder builder = new MeshBuilder(ATTRIBUTES, across * across, 6 * squares * squares);
+		for (int i = 0; i < across; i++) {
+			for (int j = 0; j < across; j++) {
+				float u = (float) i / squares;
+				float v = (float) j / squares;
+				builder.vertex().position(2 * u - 1, 0, 2 * v - 1).normal(0, 1, 0).texCoord(u, v);
+			}
+		}
+		for (int i = 0; i < squares; i++) {
+			for (int j = 0; j < squares; j++) {
+				int a = i * across + j;
+				builder.triangle(a, a + 1, a + across);
+				builder.triangle(a + 1, a + across + 1, a + across);
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * A unit sphere with a vertex for each ring and segment, where the first and last segments and the vertices of
+	 * each pole are at the same positions but have different texture coordinates
+	 */
+	private static MeshData createSphere(int rings, int segments) {
+		MeshBuilder builder = new MeshBuilder(ATTRIBUTES, (rings + 1) * (segments + 1), 6 * rings * segments);
+		for (int ring = 0; ring <= rings; ring++) {
+			double theta = Math.PI * ring / rings;
+			for (int segment = 0; segment <= segments; segment++) {
+				double phi = 2 * Math.PI * (segment % segments) / segments;
+				float x = ring == 0 || ring == rings ? 0 : (float) (Math.sin(theta) * Math.cos(phi));
+				float y = (float) Math.cos(theta);
+				float z = ring == 0 || ring == rings ? 0 : (float) (Math.sin(theta) * Math.sin(phi));
+				builder.vertex().position(x, y, z).normal(x, y, z)
+						.texCoord((float) segment / segments, (float) ring / rings);
+			}
+		}
+		for (int ring = 0; ring < rings; ring++) {
+			for (int segment = 0; segment < segments; segment++) {
+				int a = ring * (segments + 1) + segment;
+				int b = a + segments + 1;
+				if (ring > 0) {
+					builder.triangle(a, a + 1, b);
+				}
+				if (ring < rings - 1) {
+					builder.triangle(a + 1, b + 1, b);
+				}
+			}
+		}
+		return builder.build();
+	}
+
+	private static int getNumberOfTriangles(MeshData data) {
+		return data.getNumberOfIndices() / 3;
+	}
+
+	/**
+	 * Every index is of a vertex, and no triangle has two corners at the same position
+	 */
+	private static void assertValid(MeshData data) {
+		assertEquals(0, data.getNumberOfIndices() % 3);
+		for (int t = 0; t < getNumberOfTriangles(data); t++) {
+			Vector3f[] corners = new Vector3f[3];
+			for (int c = 0; c < 3; c++) {
+				int index = data.getIndex(3 * t + c);
+				assertTrue(index >= 0 && index < data.getNumberOfVertices());
+				corners[c] = data.getPosition(index, new Vector3f());
+			}
+			assertTrue(!corners[0].equals(corners[1]) && !corners[1].equals(corners[2])
+					&& !corners[2].equals(corners[0]));
+		}
+	}
+
+	/**
+	 * Every vertex of decimated is a vertex of the original, with all of its attributes
+	 */
+	private static void assertVerticesFrom(MeshData original, MeshData decimated) {
+		Set<List<Float>> vertices = new HashSet<>();
+		for (int i = 0; i < original.getNumberOfVertices(); i++) {
+			vertices.add(getAttributes(original, i));
+		}
+		for (int i = 0; i < decimated.getNumberOfVertices(); i++) {
+			assertTrue(vertices.contains(getAttributes(decimated, i)));
+		}
+	}
+
+	private static List<Float> getAttributes(MeshData data, int vertex) {
+		Vector3f position = data.getPosition(vertex, new Vector3f());
+		Vector3f normal = data.getNormal(vertex, new Vector3f());
+		Vector2f texCoord = data.getTexCoord(vertex, new Vector2f());
+		return List.of(position.x, position.y, position.z, normal.x, normal.y, normal.z, texCoord.x, texCoord.y);
+	}
+
+	/**
+	 * Every edge between two positions is shared by exactly two triangles, so the surface has no cracks
+	 */
+	private static void assertClosed(MeshData data) {
+		Map<Set<Vector3f>, Integer> edges = new HashMap<>();
+		for (int t = 0; t < getNumberOfTriangles(data); t++) {
+			for (int c = 0; c < 3; c++) {
+				Vector3f a = data.getPosition(data.getIndex(3 * t + c), new Vector3f());
+				Vector3f b = data.getPosition(data.getIndex(3 * t + (c + 1) % 3), new Vector3f());
+				edges.merge(Set.of(a, b), 1, Integer::sum);
+			}
+		}
+		edges.values().forEach(count -> assertEquals(2, count));
+	}
+
+	private static float getArea(MeshData data) {
+		float area = 0;
+		for (int t = 0; t < getNumberOfTriangles(data); t++) {
+			Vector3f a = data.getPosition(data.getIndex(3 * t), new Vector3f());
+			Vector3f b = data.getPosition(data.getIndex(3 * t + 1), new Vector3f());
+			Vector3f c = data.getPosition(data.getIndex(3 * t + 2), new Vector3f());
+			area += b.sub(a).cross(c.sub(a)).length() / 2;
+		}
+		return area;
+	}
+}